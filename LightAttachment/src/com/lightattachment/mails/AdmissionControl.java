@@ -0,0 +1,136 @@
+package com.lightattachment.mails;
+
+import org.apache.log4j.Logger;
+
+import com.lightattachment.smtp.streamed.StreamedMailParser;
+
+/**
+ * Defer the new mails while LightAttachment has too much work in progress, so that Postfix keeps them in its queue.
+ * The work in progress is measured by:
+ * <ul>
+ * <li><code>parse</code>: the messages waiting to be parsed or being parsed;</li>
+ * <li><code>save</code>: the mails waiting to be saved and the attachments being uploaded;</li>
+ * <li><code>inject</code>: the mails waiting to be sent back to Postfix or being sent;</li>
+ * <li><code>spool</code>: the bytes reserved or used in <code>directory.temp</code> (see <code>SpoolSpaceManager</code>).</li>
+ * </ul>
+ * Each measure has a high and a low water mark in <code>message.admission</code>. New mails are deferred once a
+ * measure reaches its high water mark, and accepted again once every measure is below its low water mark. A mark
+ * not set (or set to 0) is not checked. The measures are taken at most every <code>message.admission[@interval]</code>
+ * ms.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class AdmissionControl {
+
+	/** Default time between two measures, in ms. */
+	public static final long DEFAULT_INTERVAL = 1000;
+
+	/** Names of the measures, as in <code>message.admission</code>. */
+	private static final String[] MEASURES = { "parse", "save", "inject", "spool" };
+
+	/** The parser of the received mails. */
+	private StreamedMailParser parser;
+
+	/** The <code>MailManager</code> saving and injecting the mails. */
+	private MailManager manager;
+
+	/** High water mark of each measure, 0 if not checked. */
+	private long[] high;
+
+	/** Low water mark of each measure. */
+	private long[] low;
+
+	/** Time between two measures, in ms. */
+	private long interval;
+
+	/** Date of the last measure. */
+	private long measured;
+
+	/** <code>true</code> while the new mails are deferred. */
+	private volatile boolean deferring;
+
+	/** Logger used to trace activity. */
+	static Logger log = Logger.getLogger(AdmissionControl.class);
+
+	/** Build an <code>AdmissionControl</code> (needs <code>lightattachment.xml</code> config file).
+	 * @param parser the parser of the received mails
+	 * @param manager the <code>MailManager</code> saving and injecting the mails */
+	public AdmissionControl(StreamedMailParser parser, MailManager manager) {
+		this.parser = parser;
+		this.manager = manager;
+		this.high = new long[MEASURES.length];
+		this.low = new long[MEASURES.length];
+		for (int i = 0; i < MEASURES.length; i++) {
+			high[i] = LightAttachment.config.getLong("message.admission." + MEASURES[i] + "[@high]", 0);
+			low[i] = Math.min(high[i], LightAttachment.config.getLong("message.admission." + MEASURES[i] + "[@low]", high[i]));
+		}
+		this.interval = LightAttachment.config.getLong("message.admission[@interval]", DEFAULT_INTERVAL);
+		this.measured = 0;
+		this.deferring = false;
+	}
+
+	/** Return <code>true</code> if a new mail must be deferred. The measures are taken again if they are older than
+	 * <code>interval</code>.
+	 * @return <code>true</code> if the mail must be deferred */
+	public boolean defer() {
+		if (System.currentTimeMillis() - measured >= interval) measure();
+		return deferring;
+	}
+
+	/** Take the measures and update the deferring state. */
+	private synchronized void measure() {
+		if (System.currentTimeMillis() - measured < interval) return;
+		measured = System.currentTimeMillis();
+
+		long[] values = null;
+		for (int i = 0; i < MEASURES.length; i++) {
+			if (high[i] > 0) {
+				if (values == null) values = values();
+				if (!deferring && values[i] >= high[i]) {
+					deferring = true;
+					log.warn("Deferring new mails: " + MEASURES[i] + " at " + values[i] + " (high water mark " + high[i] + ")");
+					return;
+				}
+			}
+		}
+		if (deferring) {
+			for (int i = 0; i < MEASURES.length; i++) {
+				if (high[i] > 0 && values[i] > low[i]) return;
+			}
+			deferring = false;
+			log.info("Accepting new mails again: " + toString(values));
+		}
+	}
+
+	/** Return the current measures.
+	 * @return the measures, in <code>MEASURES</code> order */
+	private long[] values() {
+		long[] values = new long[MEASURES.length];
+		values[0] = parser.getDepth();
+		values[1] = manager.getSaveDepth();
+		values[2] = manager.getInjectDepth();
+		values[3] = SpoolSpaceManager.get().getUsed();
+		return values;
+	}
+
+	/** Format measures for the logs.
+	 * @param values the measures */
+	private static String toString(long[] values) {
+		String s = "";
+		for (int i = 0; i < MEASURES.length; i++) s += (i > 0 ? ", " : "") + MEASURES[i] + " " + values[i];
+		return s;
+	}
+
+	public boolean isDeferring() {
+		return deferring;
+	}
+
+	@Override
+	public String toString() {
+		return "Admission control: " + (deferring ? "deferring" : "accepting") + ", " + toString(values());
+	}
+
+}
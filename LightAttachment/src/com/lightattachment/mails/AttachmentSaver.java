@@ -9,19 +9,24 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 
-import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.AbstractFileConfiguration;
+import org.apache.commons.configuration.event.ConfigurationEvent;
+import org.apache.commons.configuration.event.ConfigurationListener;
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpStatus;
@@ -30,10 +35,10 @@ import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
+import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.log4j.Logger;
 
 import com.lightattachment.stats.SendErrorReportThread;
-import com.lightattachment.stats.StoppableThread;
 
 /** 
  * Send the attachments of its queue to e-BigSend.
@@ -45,26 +50,53 @@ import com.lightattachment.stats.StoppableThread;
 
 public class AttachmentSaver extends Thread {
 
+	/** Interval between two logs of the e-BigSend connections, in ms. */
+	private static final long REPORT_INTERVAL = 60000;
+	
+	/** Default size of the chunks of a chunked upload. */
+	public static final long DEFAULT_CHUNK_SIZE = 8388608;
+
 	/** The queue of the <code>MailSet</code> to save. It is filled by the <code>MailManager</code>. */
-	private ArrayList<MailSet> toSaveQueue;
+	private PipelineQueue<MailSet> toSaveQueue;
 
 	/** The <code>MailManager</code> to send the modified mails back. */
 	private MailManager manager;
 	
 	/** Set to <code>false</code> to shutdown. */
-	private boolean working;
+	private volatile boolean working;
+	
+	/** Save each <code>MailSet</code> with a <code>SaveHandler</code>. */
+	private WorkerPool<MailSet> savePool;
+	
+	/** Save each <code>MailSet</code> to a list of hosts with a <code>SaveByHostHandler</code>. */
+	private WorkerPool<SaveByHostRequest> byhostPool;
+	
+	/** Upload the attachments of the <code>MailSet</code>s concurrently with an <code>UploadHandler</code>. */
+	private WorkerPool<Upload> uploadPool;
+	
+	/** Limit the concurrent uploads to each e-BigSend URL to <code>ebigsend.host-limit</code>. */
+	private ConcurrentHashMap<String, Semaphore> hostPermits;
+	
+	/** The circuit breaker of each e-BigSend URL. */
+	private ConcurrentHashMap<String, HostBreaker> breakers;
+	
+	/** Choose the host each mail is uploaded to first. */
+	private HostBalancer balancer;
+	
+	/** The pool of connections to the e-BigSend hosts. */
+	private EBigSendConnectionManager connections;
 	
-	/** <code>SaveThread</code> pool. */
-	private ArrayList<SaveThread> savePool;
+	/** The HTTP client shared by every upload. */
+	private HttpClient httpClient;
 	
-	/** <code>SaveByHostThread</code> pool. */
-	private ArrayList<SaveByHostThread> byhostPool;
+	/** Upload the attachments without blocking a thread, or <code>null</code> if <code>ebigsend.async</code> is not set. */
+	private EBigSendAsyncClient asyncClient;
 	
-	/** Count <code>SaveThread</code> running. */
-	public static int saveRunning = 0;
+	/** Links to the attachments already saved, or <code>null</code> if <code>ebigsend.link-cache</code> is not set. */
+	private LinkCache linkCache;
 	
-	/** Count <code>SaveByHostThread</code> running. */
-	public static int byhostRunning = 0;
+	/** The e-BigSend routing table, replaced when the configuration changes. */
+	private volatile EBigSendRoutes routes;
 	
 	/** Logger used to trace activity. */
 	static Logger log = Logger.getLogger(AttachmentSaver.class);
@@ -78,131 +110,76 @@ public class AttachmentSaver extends Thread {
 		super();
 		this.manager = manager;
 		this.working = true;
-		this.toSaveQueue = new ArrayList<MailSet>();
-		this.savePool = new ArrayList<SaveThread>();
-		this.byhostPool = new ArrayList<SaveByHostThread>();
-	}
-	
-	/** Select a <code>SaveThread</code> in <code>savePool</code>.
-	 * If the pool is empty, creates a new thread and return it.
-	 * Else if one the thread is free, return it.
-	 * Else if limit not reached, creates a new thread and return it.
-	 * Else select the thread with the smaller queue and return it.
-	 * @return the selected <code>SaveThread</code> */
-	public SaveThread selectSave() {
-		if (savePool.size() == 0) {
-			SaveThread st = new SaveThread();
-			st.start();
-			savePool.add(st);
-			return st;
-		} else {
-			SaveThread st = null;
-			for (SaveThread s : savePool) {
-				if (s.queue.size() == 0) return s;
-				else if (st == null) st = s;
-				else if (s.queue.size() < st.queue.size()) st = s;
-			}
-			
-			if (st.queue.size() > 0 && savePool.size() < LightAttachment.config.getInt("message.output-limit")) {
-				st = new SaveThread();
-				st.start();
-				savePool.add(st);
-			}
-			
-			return st;
+		this.toSaveQueue = new PipelineQueue<MailSet>("AttachmentSaver");
+		this.savePool = new WorkerPool<MailSet>("SaveThread", LightAttachment.config.getInt("message.output-limit"), new SaveHandler());
+		this.byhostPool = new WorkerPool<SaveByHostRequest>("SaveByHostThread", LightAttachment.config.getInt("message.output-limit"), 
+				new SaveByHostHandler());
+		this.uploadPool = new WorkerPool<Upload>("UploadThread", LightAttachment.config.getInt("message.output-limit"), 
+				new UploadHandler());
+		this.hostPermits = new ConcurrentHashMap<String, Semaphore>();
+		this.breakers = new ConcurrentHashMap<String, HostBreaker>();
+		try {
+			this.balancer = new HostBalancer(LightAttachment.config.getString("ebigsend.balancing", HostBalancer.FAILOVER),
+					LightAttachment.config.getDouble("ebigsend.balancing[@decay]", HostBalancer.DEFAULT_DECAY));
+		} catch (IllegalArgumentException e) {
+			log.error(e.getMessage() + ", falling back to " + HostBalancer.FAILOVER, e);
+			this.balancer = new HostBalancer(HostBalancer.FAILOVER, HostBalancer.DEFAULT_DECAY);
 		}
-	}
-	
-	/** Select a <code>SaveByHostThread</code> in <code>byhostPool</code>.
-	 * If the pool is empty, creates a new thread and return it.
-	 * Else if one the thread is free, return it.
-	 * Else if limit not reached, creates a new thread and return it.
-	 * Else select the thread with the smaller queue and return it.
-	 * @return the selected <code>SaveByHostThread</code> */
-	public synchronized SaveByHostThread selectByHost() {
-		if (byhostPool.size() == 0) {
-			SaveByHostThread sbht = new SaveByHostThread();
-			sbht.start();
-			byhostPool.add(sbht);
-			return sbht;
-		} else {
-			SaveByHostThread sbht = null;
-			for (SaveByHostThread s : byhostPool) {
-				if (s.queue.size() == 0) sbht = s;
-				else if (sbht == null) sbht = s;
-				else if (s.queue.size() < sbht.queue.size()) sbht = s;				
+		this.connections = new EBigSendConnectionManager();
+		this.httpClient = new HttpClient(connections);
+		if (LightAttachment.config.getBoolean("ebigsend.async", false)) {
+			try {
+				this.asyncClient = new EBigSendAsyncClient(LightAttachment.config.getInt("ebigsend.async[@io-threads]", 2),
+						LightAttachment.config.getInt("ebigsend.async[@callback-threads]", 4),
+						LightAttachment.config.getInt("ebigsend.host-limit", LightAttachment.config.getInt("message.output-limit")),
+						LightAttachment.config.getInt("ebigsend.timeout"),
+						LightAttachment.config.getInt("ebigsend.pool[@so-timeout]", 0));
+				log.info("Attachments are uploaded asynchronously");
+			} catch (IOException e) {
+				log.error("Asynchronous upload client couldn't be started: " + e.getMessage(), e);
+				e.printStackTrace();
 			}
-			
-			if (sbht.queue.size() > 0 && byhostPool.size() < LightAttachment.config.getInt("message.output-limit")) {
-				sbht = new SaveByHostThread();
-				sbht.start();
-				byhostPool.add(sbht);
+		}
+		if (LightAttachment.config.getInt("ebigsend.link-cache[@size]", 0) > 0) {
+			this.linkCache = new LinkCache(LightAttachment.config.getInt("ebigsend.link-cache[@size]"),
+					LightAttachment.config.getLong("ebigsend.link-cache[@max-age]", 86400000), 
+					LightAttachment.config.getString("ebigsend.link-cache[@file]"));
+			try {
+				linkCache.load();
+			} catch (IOException e) {
+				log.warn("Link cache couldn't be loaded: " + e.getMessage(), e);
 			}
-			
-			return sbht;
 		}
-	}
-
-	/** Push a <code>MailSet</code> to the saved queue. 
-	 * @param mail the <code>MailSet</code> to push into the queue */
-	public synchronized void push(MailSet mail) {
-		if (mail != null) toSaveQueue.add(mail);
-	}
-	
-	/** Return the first value of the save queue without removing it.
-	 * @return the first value of the save queue */
-	@SuppressWarnings("unused")
-	private synchronized MailSet peek() {
-		if (toSaveQueue.size() > 0)
-			return toSaveQueue.get(0);
-		else 
-			return null;
+		this.routes = new EBigSendRoutes(LightAttachment.config);
+		LightAttachment.config.addConfigurationListener(new ConfigurationListener() {
+			public void configurationChanged(ConfigurationEvent event) {
+				if (!event.isBeforeUpdate() && (event.getType() == AbstractFileConfiguration.EVENT_RELOAD 
+						|| (event.getPropertyName() != null && event.getPropertyName().startsWith("ebigsend.address")))) {
+					routes = new EBigSendRoutes(LightAttachment.config);
+					log.info("e-BigSend routing table reloaded");
+				}
+			}
+		});
 	}
 	
-	/** Return the first value of the save queue and remove it.
-	 * @return the first value of the save queue */
-	private synchronized MailSet pop() { 
-		if (toSaveQueue.size() > 0) {
-			MailSet ms = toSaveQueue.get(0);
-			toSaveQueue.remove(0);
-			return ms;
-		} else {
-			return null;
-		}
+	/** Push a <code>MailSet</code> to the saved queue, waiting for space if it is full. 
+	 * @param mail the <code>MailSet</code> to push into the queue */
+	public void push(MailSet mail) throws InterruptedException {
+		if (mail != null) toSaveQueue.put(mail);
 	}
 	
 	/** Select the e-BigSend URL in functions of the target address of the message. 
 	 * See <code>lightattachment.xml</code> to add other e-BigSend URL.
 	 * @param to the target adress of the message (a single one)
 	 * @return the selected e-BigSend URL */
-	@SuppressWarnings("unchecked")
-	private synchronized ArrayList<String> selectEBigSend(String to) {			
-		List<HierarchicalConfiguration> c = LightAttachment.config.configurationsAt("ebigsend.address.alternate");
-		
-		ArrayList<String> selected = new ArrayList<String>();
-		for (HierarchicalConfiguration h : c) {
-			String pattern = h.getString("incoming-host");
-			Matcher m = Pattern.compile(pattern).matcher(to);
-			boolean found = m.find();
-			StringTokenizer ch = new StringTokenizer(h.getString("outcoming-host")," ");
-			
-			if (ch.countTokens() != 0 && found) {
-				while (ch.hasMoreTokens()) {
-					String host = ch.nextToken();
-					selected.add(host.replace("\n", ""));
-				}
-			}
-		}
-		
-		selected.add(LightAttachment.config.getString("ebigsend.address.default"));				
-		
-		return selected;
+	private ArrayList<String> selectEBigSend(String to) {
+		return routes.select(to);
 	}
 	
 	/** Select e-BigSend URL for several recipient.
 	 * @param to a list of recipient separated by a coma
 	 * @return list of possible hosts associated to several recipient */
-	private synchronized HashMap<ArrayList<String>,LinkedList<String>> selectEBigSends(String to) {
+	private HashMap<ArrayList<String>,LinkedList<String>> selectEBigSends(String to) {
 		HashMap<ArrayList<String>,LinkedList<String>> selected = new HashMap<ArrayList<String>, LinkedList<String>>();		
 		StringTokenizer token = new StringTokenizer(to,",");
 		while (token.hasMoreTokens()) {
@@ -218,27 +195,41 @@ public class AttachmentSaver extends Thread {
 		return selected;
 	}	
 	
+	/** Return the number of mails waiting to be saved or being saved, and of attachments being uploaded.
+	 * @return the number of mails and attachments */
+	public int getDepth() {
+		return toSaveQueue.size() + savePool.getOutstanding() + byhostPool.getOutstanding() + balancer.getInFlight();
+	}
+
 	/** Safely shutdown the instance. */
 	public synchronized void shutdown() throws HttpException, IOException, MessagingException, InterruptedException {
-		for (SaveByHostThread s : byhostPool) s.shutdown();
-		for (SaveThread st : savePool)  st.shutdown();
+		uploadPool.shutdown();
+		byhostPool.shutdown();
+		savePool.shutdown();
+		if (asyncClient != null) asyncClient.shutdown();
+		log.info(connections);
+		connections.shutdown();
+		if (linkCache != null) linkCache.save();
 		working = false;
 		log.info("AttachmentSaver stopped");		
 	}
 	
 	public void run() {
 		super.run();
+		long reported = System.currentTimeMillis();
 		while (working) {
 						
 			try {
 
-				MailSet set = null;
-				if ((set = this.pop()) != null) {
-					SaveThread st = selectSave();
-					st.push(set);
-				}
+				ArrayList<MailSet> sets = new ArrayList<MailSet>();
+				toSaveQueue.drainTo(sets, toSaveQueue.getCapacity(), 100, TimeUnit.MILLISECONDS);
+				for (MailSet set : sets) savePool.push(set);
 				
-				sleep(100);
+				if (log.isDebugEnabled() && System.currentTimeMillis() - reported > REPORT_INTERVAL) {
+					log.debug(connections);
+					log.debug(balancer);
+					reported = System.currentTimeMillis();
+				}
 				
 			} catch (InterruptedException e) {
 				log.error(e.getMessage(),e);
@@ -248,65 +239,27 @@ public class AttachmentSaver extends Thread {
 		}
 	}
 	
-	/** Each set is saved within an instance of this thread. */
-	private class SaveThread extends StoppableThread {
-
-		/** The sets to save. */
-		private ArrayList<MailSet> queue;
-		
-		/** Build a <code>SaveThread</code> */
-		public SaveThread() {
-			super();
-			this.queue = new ArrayList<MailSet>();	
-			saveRunning++;
-			System.err.println("SaveThread++ count: "+saveRunning);
-		}
-
-		/** Add a <code>MailSet</code> to the queue.
-		 * @param set the <code>MailSet</code> to add*/
-		public void push(MailSet set) {
-			if (set != null) queue.add(set);
-		}
+	/** Each set is saved by this handler. */
+	private class SaveHandler implements WorkerPool.Handler<MailSet> {
 
-		/** Return the first <code>MailSet</code> of the queue without removing it.
-		 * @return the first <code>MailSet</code> of the queue */
-		public MailSet peek() {
-			if (queue.size() > 0) return queue.get(0);
-			else return null;
-		}
-		
-		/** Shutdown the instance. */
-		public void shutdown() {
-			setDone(true);
-			saveRunning--;
-			System.err.println("SaveThread-- count: "+saveRunning);
-		}
-		
-		public void run() {
-			super.run();
-			while (!isDone()) {
-				MailSet set = peek();
-				try {					
-					if (set != null) {
-						save(set);
-						queue.remove(set);
-					} else sleep(100);
-				} catch (MessagingException e) {
-					log.error(e.getMessage(), e);
-					e.printStackTrace();
-					SendErrorReportThread sert = new SendErrorReportThread(set, "Error while saving message.", e);
-					sert.start();
-				} catch (IOException e) {
-					log.error(e.getMessage(), e);
-					e.printStackTrace();
-					SendErrorReportThread sert = new SendErrorReportThread(set, "Error while saving message.", e);
-					sert.start();
-				} catch (InterruptedException e) {
-					log.error(e.getMessage(), e);
-					e.printStackTrace();
-					SendErrorReportThread sert = new SendErrorReportThread(set, "Error while saving message.", e);
-					sert.start();
-				}
+		public void handle(MailSet set) {
+			try {					
+				save(set);
+			} catch (MessagingException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(set, "Error while saving message.", e);
+				sert.start();
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(set, "Error while saving message.", e);
+				sert.start();
+			} catch (InterruptedException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(set, "Error while saving message.", e);
+				sert.start();
 			}
 		}
 		
@@ -314,9 +267,10 @@ public class AttachmentSaver extends Thread {
 		/** Save the attachment of the specified <code>MailSet</code> to e-BigSend. 
 		 * It will try to save it as many time as allowed in <code>lightattachment.xml</code>. If it still fail to be saved, it will forward the message.
 		 * If successfully saved, a new multipart is added to the modified mail with links to the saved attachment and the message is pushed to the 
-		 * <code>MailManager</code> save queue. 
+		 * <code>MailManager</code> save queue. Once every copy of the message is sent, the message is pushed to the <code>MailManager</code>
+		 * clean queue.
 		 * @param set the <code>MailSet</code> to save */
-		private void save(MailSet set) throws MessagingException, IOException, InterruptedException {
+		private void save(final MailSet set) throws MessagingException, IOException, InterruptedException {
 			if (set != null) {
 				
 				
@@ -357,336 +311,884 @@ public class AttachmentSaver extends Thread {
 						log.info("Message "+set.hashCode()+" now reffers to "+nset);
 					}
 					
-					//LinkedList<SaveByHostThread> saveThreads = new LinkedList<SaveByHostThread>(); 
-					for (ArrayList<String> h : clones.keySet()) {
-						//SaveByHostThread sbht = new SaveByHostThread(clones.get(h),h);
-						//saveThreads.add(sbht);
-						//sbht.start();
-						SaveByHostThread sbht = selectByHost();
-						sbht.push(clones.get(h),h);
-					}
-					
-					boolean done = false;
-					while (!done) {
-						done = true;
-						for (MailSet s : clones.values()) done = done && s.isSent();
-						sleep(100);
-					}
-					for (String filename : set.getParts().keySet()) {
-						if (!filename.endsWith("-message")) {
-							String ofilename = set.getParts().get(filename);
-							if (!set.getOriginalMessages().contains(LightAttachment.config.getString("directory.temp") + ofilename))
-								set.getOriginalMessages().add(LightAttachment.config.getString("directory.temp") + ofilename);
+					final int[] pending = { clones.size() };
+					MailSet.CompletionListener listener = new MailSet.CompletionListener() {
+						public void completed(MailSet sent) {
+							synchronized (pending) {
+								if (--pending[0] > 0) return;
+							}
+							clean(set);
 						}
-					}
-					manager.pushToClean(set);
+					};
+					for (MailSet s : clones.values()) s.addCompletionListener(listener);
+					
+					for (ArrayList<String> h : clones.keySet()) saveByHost(clones.get(h), h);
 				
 			}
 		}
 		
+		/** Push a <code>MailSet</code> whose copies are all sent to the <code>MailManager</code> clean queue.
+		 * Called by the completion listener of the copies: the clean queue never waits.
+		 * @param set the <code>MailSet</code> to clean */
+		private void clean(MailSet set) {
+			for (String filename : set.getParts().keySet()) {
+				if (!filename.endsWith("-message")) {
+					String ofilename = set.getParts().get(filename);
+					if (!set.getOriginalMessages().contains(LightAttachment.config.getString("directory.temp") + ofilename))
+						set.getOriginalMessages().add(LightAttachment.config.getString("directory.temp") + ofilename);
+				}
+			}
+			try {
+				manager.pushToClean(set);
+			} catch (InterruptedException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(set, "Error while cleaning message.", e);
+				sert.start();
+			}
+		}
+		
 	}
 	
-	/** Save <code>MailSet</code> using several host.*/
-	private class SaveByHostThread extends StoppableThread {
-
-		/** The sets to save */
-		private ArrayList<MailSet> queue;
-
-		/** Hosts to use for saving */
-		private ArrayList<ArrayList<String>> hostQueue;
+	/** Push a <code>MailSet</code> to save with a list of hosts to the <code>SaveByHostHandler</code>s.
+	 * @param set the <code>MailSet</code> to save
+	 * @param host the selected e-BigSend URLs, in failover order */
+	void saveByHost(MailSet set, ArrayList<String> host) throws InterruptedException {
+		byhostPool.push(new SaveByHostRequest(set, host));
+	}
+	
+	/** A <code>MailSet</code> to save and the hosts to use.
+	 * Each attachment is uploaded by an <code>Upload</code>, and the last one to complete finishes the request. */
+	class SaveByHostRequest {
 		
-		/** Build a <code>SaveByHostThread</code> */
-		public SaveByHostThread() {
-			super();
-			this.queue = new ArrayList<MailSet>();
-			this.hostQueue = new ArrayList<ArrayList<String>>();
-			byhostRunning++;
-			System.err.println("SaveByHostThread++ count: "+byhostRunning);
-		}
+		/** The set to save. */
+		private MailSet set;
+		
+		/** Hosts to use for saving. */
+		private ArrayList<String> host;
 		
-		/** Add a <code>MailSet</code> to the queue.
-		 * @param set the <code>MailSet</code> to add
+		/** Original names of the attachments, in the <code>parts</code> order. */
+		private ArrayList<String> names;
+		
+		/** Links to the saved attachments, in the <code>parts</code> order. */
+		private String[] links;
+		
+		/** Number of attachments not uploaded yet. */
+		private int pending;
+		
+		/** <code>true</code> if an attachment couldn't be saved. */
+		private boolean failed;
+		
+		/** The last error met while uploading, if any. */
+		private Exception error;
+		
+		/** Processing beginning date. */
+		private long begin;
+		
+		/** Build a <code>SaveByHostRequest</code>.
+		 * @param set the <code>MailSet</code> to save
 		 * @param host the list of host associated to the <code>MailSet</code> */
-		public void push(MailSet set, ArrayList<String> host) {
-			if (set != null && host != null) {
-				queue.add(set);
-				hostQueue.add(host);
-			}
+		public SaveByHostRequest(MailSet set, ArrayList<String> host) {
+			this.set = set;
+			this.host = host;
+			this.names = new ArrayList<String>();
+			this.failed = false;
+			this.error = null;
 		}
 		
-		/** Return the first <code>MailSet</code> of the queue without removing it.
-		 * @return the first <code>MailSet</code> */
-		public MailSet peek() {
-			if (queue.size() > 0) return queue.get(0);
-			else return null;
-		}
-		
-		/** Return the first list of host from the queue.
-		 * @return the first list of host */
-		public ArrayList<String> peekHost() {
-			if (hostQueue.size() > 0) return hostQueue.get(0);
-			else return null;
-		}
-		
-		/** Shutdown the instance */
-		public void shutdown() {
-			setDone(true);
-			byhostRunning--;
-			System.err.println("SaveByHostThread-- count: "+byhostRunning);
-		}
-		
-		/** Convert the byte representation of a CRC to a string representation.
-		 * @param bytes the CRC
-		 * @param separator 
-		 * @param line
-		 * @return the string representation of the CRC */
-		public String byteToString(byte[] bytes, String separator, int line) {
-		    if (bytes == null) return "";
-		    StringBuilder sb = new StringBuilder();
-		    int iCount = 1;
-		    for (byte bt : bytes) {
-		        sb.append(Integer.toHexString((bt&0xFF)+0x100).substring(1).toUpperCase());
-		        if (iCount++ >= line && line != 0) {
-		            iCount = 1;
-		            sb.append("\n");
-		        } else sb.append(separator);		        
-		    } 
-		    return sb.substring(0, sb.length()-1);
-		}
-		
-		public void run() {
-			while (!isDone()) {
-				MailSet set = peek();
-				ArrayList<String> host = peekHost();
-
-				if (set != null && host != null) {
-					try {
-						long begin = System.currentTimeMillis();
-						HttpClient client = new HttpClient();
-						client.getHttpConnectionManager().getParams().setConnectionTimeout(
-								LightAttachment.config.getInt("ebigsend.timeout"));
-
-						LinkedHashMap<String, String> links = new LinkedHashMap<String, String>();
-
-						boolean failure = false;
-						for (String filename : set.getParts().keySet()) {
-							if (!filename.endsWith("-message")) {
-
-								String ofilename = set.getParts().get(filename);
-								File targetFile = new File(filename);
-
-								// Compute the attachment CRC
-								MessageDigest m = MessageDigest.getInstance("MD5");
-								DigestInputStream dis = new DigestInputStream(new FileInputStream(filename), m);
-								byte[] buf = new byte[4096];
-								while (dis.read(buf) >= 0) {
-								}
-								String CRC = byteToString(m.digest(), "", 0);
-								dis.close();
-
-								boolean tryAgain = true;
-								int attempt = 1;
-
-								while (tryAgain
-										&& (attempt <= LightAttachment.config.getInt("ebigsend.attempt") || host.size() > 0)) {
-									if (attempt > 1)
-										Thread.sleep(LightAttachment.config.getInt("ebigsend.attempt-wait"));
-									try {
-										attempt++;
-
-										// Check the file is not already on e-BigSend
-										boolean already = false;
-										PostMethod post = new PostMethod(host.get(0));
-										Part[] data = { new StringPart("CRC", CRC) };
-										post.setRequestEntity(new MultipartRequestEntity(data, post.getParams()));
-
-										int st = client.executeMethod(post);
-										if (st == HttpStatus.SC_OK) {
-											String r = post.getResponseBodyAsString();
-											if (r != null && !r.equals("false") && !r.equals("null")) {
-												// It's already there, so grab the link to it
-												log.info("Attachment '" + ofilename + "' of mail " + set.hashCode()
-														+ " was already saved at " + r);
-												links.put(r, ofilename);
-												tryAgain = false;
-												failure = false;
-												already = true;
-											}
-										} else failure = true;
-
-										post.releaseConnection();
-
-										// If not found on e-BigSend, try to send it
-										if (!already) {
-											if (attempt == 2)
-												log.info("Selecting host " + host.get(0) + " for message " + set.hashCode());
-											PostMethod filePost = new PostMethod(host.get(0));
-											Part[] parts = { new FilePart(ofilename, targetFile) };
-											filePost.setRequestEntity(new MultipartRequestEntity(parts, filePost.getParams()));
-
-											int status = client.executeMethod(filePost);
-											if (status == HttpStatus.SC_OK) {
-												String place = filePost.getResponseBodyAsString();
-												log.info("Attachment '" + ofilename + "' of mail " + set.hashCode()
-														+ " successfully saved at " + place + " in " + (attempt - 1)
-														+ " attempt(s)");
-												links.put(place, ofilename);
-												tryAgain = false;
-												failure = false;
-											} else {
-												log.warn("Attachment '" + ofilename + "' of mail " + set.hashCode()
-														+ " couldn't be saved (attempt #" + (attempt - 1) + "): "
-														+ HttpStatus.getStatusText(status));
-												failure = true;
-												if (attempt > LightAttachment.config.getInt("ebigsend.attempt")
-														&& host.size() <= 1) {
-													log.error("Mail " + set.hashCode()
-															+ " couldn't be saved and will be forwarded");
-													SendErrorReportThread sert = new SendErrorReportThread(
-															set,
-															"No e-BigSend server was reachable. The message has been forwarded unchanged.",
-															null);
-													sert.start();
-													manager.pushToInjectFromFile(set);
-													break;
-												}
-											}
+		/** Record the result of an attachment upload.
+		 * @param index the index of the attachment
+		 * @param link the link to the saved attachment, or <code>null</code> if it couldn't be saved
+		 * @param e the last error met while uploading, if any
+		 * @return <code>true</code> if every attachment is processed */
+		public synchronized boolean done(int index, String link, Exception e) {
+			links[index] = link;
+			if (link == null) failed = true;
+			if (e != null) error = e;
+			return --pending == 0;
+		}
+		
+		/** Return the links to the saved attachments, in the <code>parts</code> order.
+		 * @return the links, <code>null</code> for an attachment not saved */
+		String[] getLinks() {
+			return links;
+		}
+		
+		public boolean isFailed() {
+			return failed;
+		}
+		
+	}
+	
+	/** An attachment of a <code>SaveByHostRequest</code> to upload. */
+	private class Upload {
+		
+		/** The request of the attachment. */
+		protected SaveByHostRequest request;
+		
+		/** The index of the attachment in the request. */
+		protected int index;
+		
+		/** The attachment file. */
+		protected String filename;
+		
+		/** The last error met while uploading, if any. */
+		protected Exception error;
+		
+		/** <code>true</code> if the attachment is known not to be saved on the first host. */
+		protected boolean missing;
+		
+		/** The host the attachment is counted on by the balancer, or <code>null</code>. */
+		protected String assigned;
+		
+		/** Date the attachment was assigned to its host. */
+		protected long since;
+		
+		/** Build an <code>Upload</code>.
+		 * @param request the request of the attachment
+		 * @param index the index of the attachment in the request
+		 * @param filename the attachment file
+		 * @param missing <code>true</code> if the attachment is known not to be saved on the first host */
+		public Upload(SaveByHostRequest request, int index, String filename, boolean missing) {
+			this.request = request;
+			this.index = index;
+			this.filename = filename;
+			this.missing = missing;
+		}
+		
+	}
+	
+	/** Return the permits limiting the concurrent uploads to a host.
+	 * @param host the e-BigSend URL
+	 * @return the permits of the host */
+	private Semaphore getPermits(String host) {
+		Semaphore permits = hostPermits.get(host);
+		if (permits == null) {
+			permits = new Semaphore(LightAttachment.config.getInt("ebigsend.host-limit", 
+					LightAttachment.config.getInt("message.output-limit")), true);
+			Semaphore previous = hostPermits.putIfAbsent(host, permits);
+			if (previous != null) permits = previous;
+		}
+		return permits;
+	}
+	
+	/** Return the circuit breaker of a host, configured by <code>ebigsend.breaker</code>.
+	 * @param host the e-BigSend URL
+	 * @return the breaker of the host */
+	private HostBreaker getBreaker(String host) {
+		HostBreaker breaker = breakers.get(host);
+		if (breaker == null) {
+			breaker = new HostBreaker(host, LightAttachment.config.getInt("ebigsend.breaker[@failures]", 5),
+					LightAttachment.config.getLong("ebigsend.breaker[@open]", 30000),
+					LightAttachment.config.getLong("ebigsend.breaker[@max-open]", 600000));
+			HostBreaker previous = breakers.putIfAbsent(host, breaker);
+			if (previous != null) breaker = previous;
+		}
+		return breaker;
+	}
+	
+	/** Order the hosts of a mail with the <code>ebigsend.balancing</code> strategy. The hosts marked down are not
+	 * chosen first, unless they all are. The last host, <code>ebigsend.address.default</code>, is not balanced: it
+	 * stays the last resort.
+	 * @param host the selected e-BigSend URLs, in failover order (see <code>EBigSendRoutes.select</code>)
+	 * @return a new list of the hosts */
+	ArrayList<String> balance(ArrayList<String> host) {
+		if (host.size() < 3) return new ArrayList<String>(host);
+		List<String> matched = host.subList(0, host.size() - 1);
+		HashSet<String> down = new HashSet<String>();
+		for (String h : matched) {
+			HostBreaker breaker = breakers.get(h);
+			if (breaker != null && breaker.getState() == HostBreaker.OPEN) down.add(h);
+		}
+		ArrayList<String> ordered = balancer.order(matched, down);
+		ordered.add(host.get(host.size() - 1));
+		return ordered;
+	}
+	
+	/** Return the wait before a new attempt on a host: <code>ebigsend.attempt-wait</code>, doubled after each failed
+	 * attempt up to <code>ebigsend.attempt-wait[@max]</code>. Half of the wait is drawn at random, so that the
+	 * uploads which failed together don't retry together.
+	 * @param failures number of failed attempts on the host
+	 * @return the wait in ms */
+	private long backoff(int failures) {
+		long base = LightAttachment.config.getLong("ebigsend.attempt-wait");
+		long max = LightAttachment.config.getLong("ebigsend.attempt-wait[@max]", 8 * base);
+		long wait = Math.min(max, base << Math.min(Math.max(failures - 1, 0), 16));
+		return wait / 2 + (long) (Math.random() * (wait / 2 + 1));
+	}
+	
+	/** Convert the byte representation of a CRC to a string representation.
+	 * @param bytes the CRC
+	 * @param separator 
+	 * @param line
+	 * @return the string representation of the CRC */
+	private String byteToString(byte[] bytes, String separator, int line) {
+	    if (bytes == null) return "";
+	    StringBuilder sb = new StringBuilder();
+	    int iCount = 1;
+	    for (byte bt : bytes) {
+	        sb.append(Integer.toHexString((bt&0xFF)+0x100).substring(1).toUpperCase());
+	        if (iCount++ >= line && line != 0) {
+	            iCount = 1;
+	            sb.append("\n");
+	        } else sb.append(separator);		        
+	    } 
+	    return sb.substring(0, sb.length()-1);
+	}
+	
+	/** Compute the MD5 digest of an attachment file.
+	 * Only used if the digest wasn't computed during extraction.
+	 * @param filename the attachment file
+	 * @return the MD5 digest of the file */
+	private byte[] digest(String filename) throws IOException, NoSuchAlgorithmException {
+		MessageDigest m = MessageDigest.getInstance("MD5");
+		DigestInputStream dis = new DigestInputStream(new FileInputStream(filename), m);
+		byte[] buf = new byte[4096];
+		while (dis.read(buf) >= 0) {
+		}
+		dis.close();
+		return m.digest();
+	}
+	
+	/** Return the CRC sent to e-BigSend for an attachment.
+	 * @param set the <code>MailSet</code> of the attachment
+	 * @param filename the attachment file
+	 * @return the CRC of the attachment */
+	private String getCRC(MailSet set, String filename) throws IOException, NoSuchAlgorithmException {
+		// The attachment CRC is computed while the attachment is extracted
+		byte[] md5 = set.getDigest(filename);
+		if (md5 == null) md5 = digest(filename);
+		return byteToString(md5, "", 0);
+	}
+	
+	/** Return the cached link to an attachment.
+	 * @param set the <code>MailSet</code> of the attachment
+	 * @param host the e-BigSend URL
+	 * @param filename the attachment file
+	 * @return the link to the attachment, or <code>null</code> if it is not cached */
+	private String getCachedLink(MailSet set, String host, String filename) {
+		if (linkCache == null) return null;
+		try {
+			return linkCache.get(getCRC(set, filename), host);
+		} catch (Exception e) {
+			log.warn("Attachment '" + set.getParts().get(filename) + "' of mail " + set.hashCode() 
+					+ " couldn't be looked up in the link cache: " + e.getMessage(), e);
+			return null;
+		}
+	}
+	
+	/** Look up every attachment of a <code>MailSet</code> on e-BigSend with a single request.
+	 * The request holds a <code>CRC</code> field for each attachment, and e-BigSend answers a line for each of
+	 * them, in the same order: the link to the attachment if it is already saved, <code>false</code> or
+	 * <code>null</code> else.
+	 * @param set the <code>MailSet</code> of the attachments
+	 * @param host the e-BigSend URL
+	 * @param files the attachment files
+	 * @return the link to each attachment already saved (<code>null</code> for the others), or <code>null</code>
+	 * if the lookup failed */
+	String[] lookup(MailSet set, String host, ArrayList<String> files) {
+		HostBreaker breaker = getBreaker(host);
+		if (!breaker.allow()) return null;
+		Semaphore permits = getPermits(host);
+		try {
+			String[] crcs = new String[files.size()];
+			Part[] data = new Part[files.size()];
+			for (int i = 0; i < files.size(); i++) {
+				crcs[i] = getCRC(set, files.get(i));
+				data[i] = new StringPart("CRC", crcs[i]);
+			}
+			
+			PostMethod post = new PostMethod(host);
+			post.setRequestEntity(new MultipartRequestEntity(data, post.getParams()));
+			
+			permits.acquire();
+			try {
+				int st = httpClient.executeMethod(post);
+				if (st != HttpStatus.SC_OK) {
+					if (st >= HttpStatus.SC_INTERNAL_SERVER_ERROR) breaker.failure();
+					log.warn("Attachments lookup of mail " + set.hashCode() + " failed: " + HttpStatus.getStatusText(st));
+					return null;
+				}
+				breaker.success();
+				
+				String[] lines = post.getResponseBodyAsString().trim().split("\r?\n");
+				if (lines.length != files.size()) {
+					log.warn("Attachments lookup of mail " + set.hashCode() + " failed: " + lines.length 
+							+ " answers for " + files.size() + " attachments");
+					return null;
+				}
+				
+				String[] links = new String[lines.length];
+				for (int i = 0; i < lines.length; i++) {
+					String r = lines[i].trim();
+					if (r.length() > 0 && !r.equals("false") && !r.equals("null")) {
+						links[i] = r;
+						if (linkCache != null) linkCache.put(crcs[i], host, r);
+					}
+				}
+				return links;
+			} finally {
+				post.releaseConnection();
+				permits.release();
+			}
+		} catch (Exception e) {
+			if (e instanceof IOException) breaker.failure();
+			log.warn("Attachments lookup of mail " + set.hashCode() + " failed: " + e.getMessage(), e);
+			return null;
+		}
+	}
+	
+	/** Look up a single attachment on e-BigSend.
+	 * @param host the e-BigSend URL
+	 * @param CRC the CRC of the attachment
+	 * @return the link to the attachment if it is already saved, <code>null</code> else */
+	String lookup(String host, String CRC) throws IOException {
+		PostMethod post = new PostMethod(host);
+		Part[] data = { new StringPart("CRC", CRC) };
+		post.setRequestEntity(new MultipartRequestEntity(data, post.getParams()));
 
-											filePost.releaseConnection();
-										}
+		try {
+			int st = httpClient.executeMethod(post);
+			if (st == HttpStatus.SC_OK) {
+				String r = post.getResponseBodyAsString();
+				if (r != null && !r.equals("false") && !r.equals("null")) return r;
+			}
+			return null;
+		} finally {
+			post.releaseConnection();
+		}
+	}
+	
+	/** Find the attachments of a <code>MailSet</code> already saved on a host: their link is cached, or with
+	 * <code>ebigsend.batch-lookup</code> they are looked up with a single request. If the batch lookup fails, nothing
+	 * is known of the attachments not cached, and each one is looked up by its upload.
+	 * @param set the <code>MailSet</code> of the attachments
+	 * @param host the e-BigSend URL
+	 * @param files the attachment files
+	 * @param missing set to <code>true</code> for each attachment known not to be saved on the host
+	 * @return the link to each attachment already saved, <code>null</code> for the others */
+	String[] findSaved(MailSet set, String host, ArrayList<String> files, boolean[] missing) {
+		String[] found = new String[files.size()];
+		ArrayList<Integer> uncached = new ArrayList<Integer>();
+		for (int i = 0; i < files.size(); i++) {
+			found[i] = getCachedLink(set, host, files.get(i));
+			if (found[i] == null) uncached.add(i);
+		}
+		
+		if (uncached.size() > 0 && LightAttachment.config.getBoolean("ebigsend.batch-lookup", false)) {
+			ArrayList<String> lookups = new ArrayList<String>();
+			for (int i : uncached) lookups.add(files.get(i));
+			String[] links = lookup(set, host, lookups);
+			if (links != null) {
+				for (int j = 0; j < links.length; j++) {
+					found[uncached.get(j)] = links[j];
+					missing[uncached.get(j)] = links[j] == null;
+				}
+			}
+		}
+		return found;
+	}
+	
+	/** Upload an attachment by chunks of <code>ebigsend.chunked[@size]</code> bytes, resuming after the bytes
+	 * e-BigSend already acknowledged. Each chunk is a multipart request holding the <code>upload-id</code> of the
+	 * attachment (its CRC and length), its <code>length</code>, the <code>offset</code> of the chunk and the chunk
+	 * itself. e-BigSend answers <code>OFFSET n</code> with the number of bytes it holds, or the link to the
+	 * attachment once it is complete, so that an empty chunk at the end of a complete attachment returns its link.
+	 * The same request without <code>offset</code> nor chunk returns the number of bytes held. A chunk is tried 
+	 * <code>ebigsend.attempt</code> times before the upload attempt fails.
+	 * @param url the e-BigSend URL
+	 * @param CRC the attachment CRC
+	 * @param file the attachment file
+	 * @param ofilename the original name of the attachment
+	 * @param set the <code>MailSet</code> of the attachment
+	 * @param attempt the number of the upload attempt
+	 * @return the link to the saved attachment, or <code>null</code> if e-BigSend refused it */
+	String uploadChunks(String url, String CRC, File file, String ofilename, MailSet set, int attempt) 
+			throws IOException, InterruptedException {
+		long length = file.length();
+		long size = LightAttachment.config.getLong("ebigsend.chunked[@size]", DEFAULT_CHUNK_SIZE);
+		String id = CRC + "-" + length;
+		
+		long offset = queryOffset(url, id, length);
+		if (offset > 0) log.info("Resuming upload of attachment '" + ofilename + "' of mail " + set.hashCode() 
+				+ " at byte " + offset + " of " + length);
+		
+		int failures = 0;
+		while (true) {
+			PostMethod post = new PostMethod(url);
+			Part[] parts = { new StringPart("upload-id", id), new StringPart("length", String.valueOf(length)),
+					new StringPart("offset", String.valueOf(offset)), 
+					new FilePart(ofilename, new FileRangePartSource(ofilename, file, offset, Math.min(size, length - offset))) };
+			post.setRequestEntity(new MultipartRequestEntity(parts, post.getParams()));
+			// A lost chunk is resumed from the offset held by e-BigSend, not sent again blindly
+			post.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(0, false));
+			
+			String r;
+			try {
+				int status = httpClient.executeMethod(post);
+				if (status != HttpStatus.SC_OK) {
+					log.warn("Attachment '" + ofilename + "' of mail " + set.hashCode()
+							+ " couldn't be saved (attempt #" + attempt + "): "
+							+ HttpStatus.getStatusText(status));
+					return null;
+				}
+				r = post.getResponseBodyAsString();
+			} catch (IOException e) {
+				if (++failures >= LightAttachment.config.getInt("ebigsend.attempt")) throw e;
+				log.warn("Chunk at byte " + offset + " of attachment '" + ofilename + "' of mail " + set.hashCode()
+						+ " couldn't be sent (attempt #" + failures + "): " + e.getMessage());
+				Thread.sleep(backoff(failures));
+				offset = queryOffset(url, id, length);
+				continue;
+			} finally {
+				post.releaseConnection();
+			}
+			
+			if (r == null || !r.startsWith("OFFSET ")) return r;
+			long acked = Long.parseLong(r.substring(7).trim());
+			if (acked <= offset || acked > length) {
+				if (++failures >= LightAttachment.config.getInt("ebigsend.attempt"))
+					throw new IOException("Unexpected acknowledgement of byte " + acked + " at byte " + offset);
+			} else failures = 0;
+			log.debug("Attachment '" + ofilename + "' of mail " + set.hashCode() + ": " + acked + " of " + length 
+					+ " bytes acknowledged");
+			offset = Math.max(0, Math.min(acked, length));
+		}
+	}
+	
+	/** Return the number of bytes of a chunked upload e-BigSend already holds.
+	 * @param url the e-BigSend URL
+	 * @param id the <code>upload-id</code> of the attachment
+	 * @param length the attachment length
+	 * @return the number of bytes held, 0 if e-BigSend doesn't know the upload */
+	long queryOffset(String url, String id, long length) throws IOException {
+		PostMethod post = new PostMethod(url);
+		Part[] parts = { new StringPart("upload-id", id), new StringPart("length", String.valueOf(length)) };
+		post.setRequestEntity(new MultipartRequestEntity(parts, post.getParams()));
+		try {
+			int status = httpClient.executeMethod(post);
+			if (status != HttpStatus.SC_OK) return 0;
+			String r = post.getResponseBodyAsString();
+			if (r == null || !r.startsWith("OFFSET ")) return 0;
+			long offset = Long.parseLong(r.substring(7).trim());
+			return offset >= 0 && offset <= length ? offset : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		} finally {
+			post.releaseConnection();
+		}
+	}
+	
+	/** Return <code>true</code> if an attachment is uploaded by chunks: <code>ebigsend.chunked</code> is set and the
+	 * attachment is larger than a chunk.
+	 * @param file the attachment file */
+	private boolean isChunked(File file) {
+		return LightAttachment.config.getBoolean("ebigsend.chunked", false) 
+			&& file.length() > LightAttachment.config.getLong("ebigsend.chunked[@size]", DEFAULT_CHUNK_SIZE);
+	}
+	
+	/** Count an attachment on the host it is uploaded to, until it is saved or moves to another host. 
+	 * @param upload the attachment
+	 * @param host the e-BigSend URL */
+	private void assign(Upload upload, String host) {
+		if (host.equals(upload.assigned)) return;
+		if (upload.assigned != null) balancer.end(upload.assigned, upload.since, false);
+		upload.assigned = host;
+		upload.since = balancer.start(host);
+	}
+	
+	/** Record the result of an attachment upload, and finish its request if it is the last one.
+	 * @param upload the uploaded attachment
+	 * @param link the link to the saved attachment, or <code>null</code> if it couldn't be saved
+	 * @param error the last error met while uploading, if any */
+	private void done(Upload upload, String link, Exception error) {
+		SaveByHostRequest request = upload.request;
+		if (upload.assigned != null) balancer.end(upload.assigned, upload.since, link != null);
+		try {
+			if (request.done(upload.index, link, error)) finish(request);
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+			e.printStackTrace();
+			SendErrorReportThread sert = new SendErrorReportThread(null, "AttachmentSaver has been stopped.", e);
+			sert.start();
+		} catch (MessagingException e) {
+			log.error(e.getMessage(), e);
+			e.printStackTrace();
+			SendErrorReportThread sert = new SendErrorReportThread(null, "AttachmentSaver has been stopped.", e);
+			sert.start();
+		} catch (InterruptedException e) {
+			log.error(e.getMessage(), e);
+			e.printStackTrace();
+			SendErrorReportThread sert = new SendErrorReportThread(null, "AttachmentSaver has been stopped.", e);
+			sert.start();
+		}
+	}
+	
+	/** Save <code>MailSet</code> using several host: an <code>Upload</code> is pushed for each attachment.
+	 * The attachments whose link is cached are not uploaded. With <code>ebigsend.batch-lookup</code>, the others
+	 * are first looked up on e-BigSend with a single request, and only those not already saved are uploaded.*/
+	private class SaveByHostHandler implements WorkerPool.Handler<SaveByHostRequest> {
 
-									} catch (HttpException e) {
-										log.warn("Attachment(s) of mail " + set.hashCode() + " couldn't be saved (attempt #"
-												+ (attempt - 1) + "): " + e.getMessage(), e);
-										failure = true;
-										if (attempt > LightAttachment.config.getInt("ebigsend.attempt") && host.size() <= 1) {
-											log.error("Mail " + set.hashCode() + " couldn't be saved and will be forwarded");
-											SendErrorReportThread sert = new SendErrorReportThread(
-													set,
-													"No e-BigSend server was reachable. The message has been forwarded unchanged.",
-													e);
-											sert.start();
-											manager.pushToInjectFromFile(set);
-											break;
-										}
-									} catch (IOException e) {
-										log.warn("Attachment(s) of mail " + set.hashCode() + " couldn't be saved (attempt #"
-												+ (attempt - 1) + "): " + e.getMessage(), e);
-										failure = true;
+		public void handle(SaveByHostRequest request) {
+			MailSet set = request.set;
+			request.begin = System.currentTimeMillis();
+			request.host = balance(request.host);
+			
+			ArrayList<String> files = new ArrayList<String>();
+			for (String filename : set.getParts().keySet()) {
+				if (!filename.endsWith("-message")) {
+					files.add(filename);
+					request.names.add(set.getParts().get(filename));
+				}
+			}
+			request.links = new String[files.size()];
+			request.pending = files.size();
+			
+			try {
+				if (files.size() == 0) finish(request);
+				else {
+					boolean[] missing = new boolean[files.size()];
+					String[] found = findSaved(set, request.host.get(0), files, missing);
+					
+					for (int i = 0; i < files.size(); i++) {
+						if (found[i] != null) {
+							log.info("Attachment '" + request.names.get(i) + "' of mail " + set.hashCode()
+									+ " was already saved at " + found[i]);
+							if (request.done(i, found[i], null)) finish(request);
+						} else if (asyncClient != null && !isChunked(new File(files.get(i)))) {
+							AsyncUpload upload = new AsyncUpload(request, i, files.get(i), missing[i]);
+							assign(upload, request.host.get(0));
+							upload.start();
+						} else {
+							Upload upload = new Upload(request, i, files.get(i), missing[i]);
+							assign(upload, request.host.get(0));
+							uploadPool.push(upload);
+						}
+					}
+				}
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(null, "AttachmentSaver has been stopped.", e);
+				sert.start();
+			} catch (MessagingException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(null, "AttachmentSaver has been stopped.", e);
+				sert.start();
+			} catch (InterruptedException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(null, "AttachmentSaver has been stopped.", e);
+				sert.start();
+			}
+		}
+		
+	}
+	
+	/** Upload an attachment to e-BigSend, and finish its request if it is the last one. */
+	private class UploadHandler implements WorkerPool.Handler<Upload> {
 
-										if (attempt > LightAttachment.config.getInt("ebigsend.attempt") && host.size() <= 1) {
-											log.error("Mail " + set.hashCode() + " couldn't be saved and will be forwarded");
-											SendErrorReportThread sert = new SendErrorReportThread(
-													set,
-													"No e-BigSend server was reachable. The message has been forwarded unchanged.",
-													e);
-											sert.start();
-											manager.pushToInjectFromFile(set);
-											break;
-										}
-									} catch (Exception e) {
-										log.warn("Attachment(s) of mail " + set.hashCode() + " couldn't be saved (attempt #"
-												+ (attempt - 1) + "): " + e.getMessage(), e);
-										failure = true;
-										if (attempt > LightAttachment.config.getInt("ebigsend.attempt") && host.size() <= 1) {
-											log.error("Mail " + set.hashCode() + " couldn't be saved and will be forwarded");
-											SendErrorReportThread sert = new SendErrorReportThread(
-													set,
-													"No e-BigSend server was reachable. The message has been forwarded unchanged.",
-													e);
-											sert.start();
-											manager.pushToInjectFromFile(set);
-											break;
-										}
-									}
-									if (attempt > LightAttachment.config.getInt("ebigsend.attempt")) {
-										host.remove(0);
-										if (host.size() > 0)
-											attempt = 1;
-									}
-								}
+		public void handle(Upload upload) {
+			String link = null;
+			Exception error = null;
+			try {
+				link = upload(upload);
+				error = upload.error;
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				error = e;
+			}
+			done(upload, link, error);
+		}
+		
+		/** Upload an attachment. It is tried as many time as allowed in <code>lightattachment.xml</code> on each host of
+		 * its request, in turn. The number of concurrent uploads to a host is limited by <code>ebigsend.host-limit</code>.
+		 * @param upload the attachment to upload
+		 * @return the link to the saved attachment, or <code>null</code> if it couldn't be saved */
+		private String upload(Upload upload) throws IOException, NoSuchAlgorithmException, InterruptedException {
+			MailSet set = upload.request.set;
+			String filename = upload.filename;
+			String ofilename = set.getParts().get(filename);
+			File targetFile = new File(filename);
+			// Each attachment fails over to the next host on its own
+			ArrayList<String> host = new ArrayList<String>(upload.request.host);
 
-							} else {
-								if (!failure) {
-									StringBuffer data = new StringBuffer();
-									data.append("Content-Type: text/plain; charset=ISO-8859-1\n");
-									data.append("Content-Disposition: inline\n");
-									data.append("Content-Transfer-Encoding: 7bit\n\n");
-									data.append(LightAttachment.config.getString("ebigsend.head-message") + "\n\n");
-									for (String key : links.keySet()) {
-										String lname = key;
-										String oname = links.get(key);
-										data.append(LightAttachment.config.getString("ebigsend.att-message").replace("{name}",
-												oname).replace("{address}", lname)
-												+ "\n");
-									}
+			String CRC = getCRC(set, filename);
 
-									ByteArrayInputStream inMsgStream = new ByteArrayInputStream(data.toString().getBytes());
+			int attempt = 1;
+			Exception error = null;
+			while (host.size() > 0) {
+				if (attempt > 1)
+					Thread.sleep(backoff(attempt - 1));
+				
+				HostBreaker breaker = getBreaker(host.get(0));
+				if (!breaker.allow()) {
+					log.info("Skipping host " + host.get(0) + " for message " + set.hashCode() + ": marked down");
+					host.remove(0);
+					attempt = 1;
+					continue;
+				}
+				
+				assign(upload, host.get(0));
+				Semaphore permits = getPermits(host.get(0));
+				permits.acquire();
+				try {
+					attempt++;
 
-									MimeMessage msg = set.getMessage();
+					// Check the file is not already on e-BigSend, unless the batch lookup just did
+					if (!upload.missing) {
+						String r = lookup(host.get(0), CRC);
+						if (r != null) {
+							// It's already there, so grab the link to it
+							log.info("Attachment '" + ofilename + "' of mail " + set.hashCode()
+									+ " was already saved at " + r);
+							if (linkCache != null) linkCache.put(CRC, host.get(0), r);
+							breaker.success();
+							return r;
+						}
+					}
+					upload.missing = false;
 
-									// TDODO Detect mail without attachment before if min size limit set to 0
-									if (msg.getContent() instanceof MimeMultipart) {
-										MimeMultipart multi = (MimeMultipart) msg.getContent();
+					// If not found on e-BigSend, try to send it
+					if (attempt == 2)
+						log.info("Selecting host " + host.get(0) + " for message " + set.hashCode());
+					String place = null;
+					if (isChunked(targetFile)) place = uploadChunks(host.get(0), CRC, targetFile, ofilename, set, attempt - 1);
+					else {
+						PostMethod filePost = new PostMethod(host.get(0));
+						Part[] parts = { new FilePart(ofilename, targetFile) };
+						filePost.setRequestEntity(new MultipartRequestEntity(parts, filePost.getParams()));
+	
+						try {
+							int status = httpClient.executeMethod(filePost);
+							if (status == HttpStatus.SC_OK) place = filePost.getResponseBodyAsString();
+							else {
+								log.warn("Attachment '" + ofilename + "' of mail " + set.hashCode()
+										+ " couldn't be saved (attempt #" + (attempt - 1) + "): "
+										+ HttpStatus.getStatusText(status));
+							}
+						} finally {
+							filePost.releaseConnection();
+						}
+					}
+					
+					if (place != null) {
+						log.info("Attachment '" + ofilename + "' of mail " + set.hashCode()
+								+ " successfully saved at " + place + " in " + (attempt - 1)
+								+ " attempt(s)");
+						if (linkCache != null) linkCache.put(CRC, host.get(0), place);
+						breaker.success();
+						return place;
+					}
+					breaker.failure();
 
-										MimeBodyPart bpart = new MimeBodyPart(inMsgStream);
+				} catch (Exception e) {
+					breaker.failure();
+					log.warn("Attachment(s) of mail " + set.hashCode() + " couldn't be saved (attempt #"
+							+ (attempt - 1) + "): " + e.getMessage(), e);
+					error = e;
+				} finally {
+					permits.release();
+				}
+				
+				if (attempt > LightAttachment.config.getInt("ebigsend.attempt")) {
+					host.remove(0);
+					attempt = 1;
+				}
+			}
+			
+			upload.error = error;
+			return null;
+		}
+		
+	}
+	
+	/** An attachment uploaded by the <code>EBigSendAsyncClient</code>.
+	 * It goes through the same steps as <code>UploadHandler.upload</code>, each request completing on a callback
+	 * thread and each wait between attempts being scheduled, so that no thread is held while e-BigSend works. */
+	private class AsyncUpload extends Upload {
+		
+		/** Hosts left to try. */
+		private ArrayList<String> host;
+		
+		/** Number of the next attempt on the current host, plus one. */
+		private int attempt;
+		
+		/** The attachment CRC. */
+		private String CRC;
+		
+		/** Build an <code>AsyncUpload</code>.
+		 * @param request the request of the attachment
+		 * @param index the index of the attachment in the request
+		 * @param filename the attachment file
+		 * @param missing <code>true</code> if the attachment is known not to be saved on the first host */
+		public AsyncUpload(SaveByHostRequest request, int index, String filename, boolean missing) {
+			super(request, index, filename, missing);
+			// Each attachment fails over to the next host on its own
+			this.host = new ArrayList<String>(request.host);
+			this.attempt = 1;
+		}
+		
+		/** Start the upload. */
+		public void start() {
+			try {
+				CRC = getCRC(request.set, filename);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				done(this, null, e);
+				return;
+			}
+			step();
+		}
+		
+		/** Run an attempt on the current host: check the attachment is not already saved, then send it. */
+		private void step() {
+			if (host.size() == 0) {
+				done(this, null, error);
+				return;
+			}
+			if (!getBreaker(host.get(0)).allow()) {
+				log.info("Skipping host " + host.get(0) + " for message " + request.set.hashCode() + ": marked down");
+				host.remove(0);
+				attempt = 1;
+				step();
+				return;
+			}
+			attempt++;
+			assign(this, host.get(0));
+			
+			if (missing) {
+				send();
+				return;
+			}
+			final MailSet set = request.set;
+			asyncClient.post(host.get(0), "CRC", CRC, new EBigSendAsyncClient.Callback() {
+				public void completed(int status, String r) {
+					if (status == HttpStatus.SC_OK && r != null && !r.equals("false") && !r.equals("null")) {
+						// It's already there, so grab the link to it
+						log.info("Attachment '" + set.getParts().get(filename) + "' of mail " + set.hashCode()
+								+ " was already saved at " + r);
+						if (linkCache != null) linkCache.put(CRC, host.get(0), r);
+						getBreaker(host.get(0)).success();
+						done(AsyncUpload.this, r, null);
+					} else send();
+				}
+				public void failed(Exception e) {
+					retry(e);
+				}
+			});
+		}
+		
+		/** Send the attachment to the current host. */
+		private void send() {
+			missing = false;
+			final MailSet set = request.set;
+			final String ofilename = set.getParts().get(filename);
+			if (attempt == 2)
+				log.info("Selecting host " + host.get(0) + " for message " + set.hashCode());
+			asyncClient.post(host.get(0), ofilename, new File(filename), new EBigSendAsyncClient.Callback() {
+				public void completed(int status, String place) {
+					if (status == HttpStatus.SC_OK) {
+						log.info("Attachment '" + ofilename + "' of mail " + set.hashCode()
+								+ " successfully saved at " + place + " in " + (attempt - 1)
+								+ " attempt(s)");
+						if (linkCache != null) linkCache.put(CRC, host.get(0), place);
+						getBreaker(host.get(0)).success();
+						done(AsyncUpload.this, place, null);
+					} else {
+						log.warn("Attachment '" + ofilename + "' of mail " + set.hashCode()
+								+ " couldn't be saved (attempt #" + (attempt - 1) + "): "
+								+ HttpStatus.getStatusText(status));
+						retry(null);
+					}
+				}
+				public void failed(Exception e) {
+					retry(e);
+				}
+			});
+		}
+		
+		/** Schedule the next attempt, on the next host once the current one is tried <code>ebigsend.attempt</code> times.
+		 * @param e the error of the failed attempt, if any */
+		private void retry(Exception e) {
+			getBreaker(host.get(0)).failure();
+			if (e != null) {
+				log.warn("Attachment(s) of mail " + request.set.hashCode() + " couldn't be saved (attempt #"
+						+ (attempt - 1) + "): " + e.getMessage(), e);
+				error = e;
+			}
+			if (attempt > LightAttachment.config.getInt("ebigsend.attempt")) {
+				host.remove(0);
+				attempt = 1;
+			}
+			
+			if (host.size() > 0 && attempt > 1) {
+				asyncClient.schedule(new Runnable() {
+					public void run() {
+						step();
+					}
+				}, backoff(attempt - 1));
+			} else step();
+		}
+		
+	}
+	
+	/** Finish a request once every attachment is processed.
+	 * If they are all saved, a new multipart is added to the modified mail with links to the saved attachments,
+	 * in the <code>parts</code> order, and the message is pushed to the <code>MailManager</code>. Else the
+	 * message is forwarded unchanged.
+	 * @param request the request to finish */
+	void finish(SaveByHostRequest request) throws IOException, MessagingException, InterruptedException {
+		MailSet set = request.set;
+		if (request.failed) {
+			log.error("Mail " + set.hashCode() + " couldn't be saved and will be forwarded");
+			SendErrorReportThread sert = new SendErrorReportThread(
+					set,
+					"No e-BigSend server was reachable. The message has been forwarded unchanged.",
+					request.error);
+			sert.start();
+			manager.pushToInjectFromFile(set);
+		} else {
+			LinkedHashMap<String, String> links = new LinkedHashMap<String, String>();
+			for (int i = 0; i < request.links.length; i++) links.put(request.links[i], request.names.get(i));
+			
+			StringBuffer data = new StringBuffer();
+			data.append("Content-Type: text/plain; charset=ISO-8859-1\n");
+			data.append("Content-Disposition: inline\n");
+			data.append("Content-Transfer-Encoding: 7bit\n\n");
+			data.append(LightAttachment.config.getString("ebigsend.head-message") + "\n\n");
+			for (String key : links.keySet()) {
+				String lname = key;
+				String oname = links.get(key);
+				data.append(LightAttachment.config.getString("ebigsend.att-message").replace("{name}",
+						oname).replace("{address}", lname)
+						+ "\n");
+			}
 
-										multi.addBodyPart(bpart);
+			ByteArrayInputStream inMsgStream = new ByteArrayInputStream(data.toString().getBytes());
 
-										msg.setContent(multi);
-										msg.saveChanges();
-									}
+			MimeMessage msg = set.getMessage();
 
-									manager.pushToInject(set);
-								}
-							}
-						}
+			// TDODO Detect mail without attachment before if min size limit set to 0
+			if (msg.getContent() instanceof MimeMultipart) {
+				MimeMultipart multi = (MimeMultipart) msg.getContent();
 
-						// setDone(true);
+				MimeBodyPart bpart = new MimeBodyPart(inMsgStream);
 
-						long end = System.currentTimeMillis();
-						log.info("All attachments of mail " + set.hashCode() + " processed in " + (end-begin) + " ms");
+				multi.addBodyPart(bpart);
 
-						while (true) {
-							if (set.isSent()) break;
-							sleep(100);
-						}
-					} catch (IOException e) {
-						log.error(e.getMessage(), e);
-						e.printStackTrace();
-						// setDone(true);
-						SendErrorReportThread sert = new SendErrorReportThread(null, "AttachmentSaver has been stopped.", e);
-						sert.start();
-					} catch (MessagingException e) {
-						log.error(e.getMessage(), e);
-						e.printStackTrace();
-						// setDone(true);
-						SendErrorReportThread sert = new SendErrorReportThread(null, "AttachmentSaver has been stopped.", e);
-						sert.start();
-					} catch (InterruptedException e) {
-						log.error(e.getMessage(), e);
-						e.printStackTrace();
-						// setDone(true);
-						SendErrorReportThread sert = new SendErrorReportThread(null, "AttachmentSaver has been stopped.", e);
-						sert.start();
-					} catch (NoSuchAlgorithmException e) {
-						log.error(e.getMessage(), e);
-						e.printStackTrace();
-						// setDone(true);
-						SendErrorReportThread sert = new SendErrorReportThread(null, "AttachmentSaver has been stopped.", e);
-						sert.start();
-					}
-					queue.remove(set);
-					hostQueue.remove(host);
-				} else {
-					try {
-						sleep(100);
-					} catch (InterruptedException e) {
-						log.error(e.getMessage(), e);
-						e.printStackTrace();
-					}
-				}
+				msg.setContent(multi);
+				msg.saveChanges();
 			}
+
+			manager.getJournal().saved(set);
+			manager.pushToInject(set);
 		}
+
+		long end = System.currentTimeMillis();
+		log.info("All attachments of mail " + set.hashCode() + " processed in " + (end-request.begin) + " ms");
 	}
 }
@@ -56,6 +56,12 @@ public class Base64 {
 	 */
 	public final static int ORDERED = 32;
 
+	/**
+	 * When decoding with a {@link Base64.OutputStream}, skip the bytes outside of the alphabet
+	 * instead of failing, as {@link Base64.InputStream} does.
+	 */
+	public final static int SKIP_INVALID = 64;
+
 	/* ********  P R I V A T E   F I E L D S  ******** */
 
 	/** Maximum line length (76) of Base64 output. */
@@ -1374,6 +1380,8 @@ public class Base64 {
 
 		private byte[] decodabet; // Local copies to avoid extra method calls
 
+		private boolean skipInvalid;
+
 		/**
 		 * Constructs a {@link Base64.OutputStream} in ENCODE mode.
 		 *
@@ -1393,6 +1401,8 @@ public class Base64 {
 		 *   DONT_BREAK_LINES: don't break lines at 76 characters
 		 *     (only meaningful when encoding)
 		 *     <i>Note: Technically, this makes your encoding non-compliant.</i>
+		 *   SKIP_INVALID: skip the bytes outside of the alphabet
+		 *     (only meaningful when decoding)
 		 * </pre>
 		 * <p>
 		 * Example: <code>new Base64.OutputStream( out, Base64.ENCODE )</code>
@@ -1417,6 +1427,7 @@ public class Base64 {
 			this.options = options;
 			//this.alphabet = getAlphabet(options);
 			this.decodabet = getDecodabet(options);
+			this.skipInvalid = (options & SKIP_INVALID) == SKIP_INVALID;
 		} // end constructor
 
 		/**
@@ -1457,6 +1468,11 @@ public class Base64 {
 
 			// Else, Decoding
 			else {
+				// Skipped byte?
+				if (skipInvalid && (theByte & 0x80) != 0) {
+					return;
+				} // end if: outside of the alphabet
+
 				// Meaningful Base64 character?
 				if (decodabet[theByte & 0x7f] > WHITE_SPACE_ENC) {
 					buffer[position++] = (byte) theByte;
@@ -1468,7 +1484,7 @@ public class Base64 {
 						position = 0;
 					} // end if: enough to output
 				} // end if: meaningful base64 character
-				else if (decodabet[theByte & 0x7f] != WHITE_SPACE_ENC) {
+				else if (decodabet[theByte & 0x7f] != WHITE_SPACE_ENC && !skipInvalid) {
 					throw new java.io.IOException("Invalid character in Base64 data.");
 				} // end else: not white space either
 			} // end else: decoding
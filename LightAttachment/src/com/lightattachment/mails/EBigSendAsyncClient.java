@@ -0,0 +1,649 @@
+package com.lightattachment.mails;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.nio.DefaultClientIOEventDispatch;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.FileContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.entity.BufferingNHttpEntity;
+import org.apache.http.nio.entity.ConsumingNHttpEntity;
+import org.apache.http.nio.entity.ProducingNHttpEntity;
+import org.apache.http.nio.protocol.AsyncNHttpClientHandler;
+import org.apache.http.nio.protocol.NHttpRequestExecutionHandler;
+import org.apache.http.nio.reactor.IOReactorExceptionHandler;
+import org.apache.http.nio.reactor.SessionRequest;
+import org.apache.http.nio.reactor.SessionRequestCallback;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.RequestConnControl;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.protocol.RequestUserAgent;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Send multipart <code>POST</code> requests to the e-BigSend hosts without blocking the caller.
+ * The requests are run by a few I/O threads of an <code>httpcore-nio</code> reactor: attachment files are streamed
+ * from disk to the socket as it becomes writable, so that a slow e-BigSend host holds a connection but no thread.
+ * Each host gets at most <code>hostLimit</code> keep-alive connections; the requests beyond are queued until a
+ * connection is free. The result of a request is handed to its <code>Callback</code> on a callback thread, which
+ * can block without stalling the I/O threads.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class EBigSendAsyncClient {
+
+	/** Context attribute holding the <code>Slot</code> of a connection. */
+	private static final String SLOT = "lightattachment.slot";
+
+	/** Size of the socket buffers. */
+	private static final int BUFFER_SIZE = 65536;
+
+	/** Receive the result of a request. */
+	public interface Callback {
+
+		/** Called when the response is received.
+		 * @param status the HTTP status of the response
+		 * @param body the response body */
+		public void completed(int status, String body);
+
+		/** Called when the request couldn't be sent or the response couldn't be read.
+		 * @param e the error */
+		public void failed(Exception e);
+
+	}
+
+	/** A request to send. */
+	private static class Job {
+
+		/** The host of the request. */
+		private Host host;
+
+		/** The path of the request. */
+		private String path;
+
+		/** The request body. */
+		private MultipartEntity entity;
+
+		/** Receive the result. */
+		private Callback callback;
+
+		/** <code>true</code> once the request is handed to a connection. */
+		private boolean submitted;
+
+	}
+
+	/** The connections and the waiting requests of a host. */
+	private static class Host {
+
+		/** The host address. */
+		private HttpHost target;
+
+		/** Number of open (or opening) connections. */
+		private int connections;
+
+		/** Requests waiting for a connection. */
+		private LinkedList<Job> queue = new LinkedList<Job>();
+
+		/** Open connections with no request. */
+		private LinkedList<Slot> idle = new LinkedList<Slot>();
+
+	}
+
+	/** The request of an open connection. */
+	private static class Slot {
+
+		/** The host of the connection. */
+		private Host host;
+
+		/** The connection. */
+		private NHttpClientConnection conn;
+
+		/** The request in progress, or <code>null</code>. */
+		private Job job;
+
+	}
+
+	/** Known hosts, by <code>host:port</code>. */
+	private HashMap<String, Host> hosts;
+
+	/** Maximum number of connections to each host. */
+	private int hostLimit;
+
+	/** Connection timeout in ms. */
+	private int connectTimeout;
+
+	/** The I/O reactor. */
+	private DefaultConnectingIOReactor reactor;
+
+	/** Run the callbacks and the delayed tasks. */
+	private ScheduledThreadPoolExecutor executor;
+
+	/** Number of requests not completed yet. */
+	private AtomicInteger pending;
+
+	/** Logger used to trace activity. */
+	static Logger log = Logger.getLogger(EBigSendAsyncClient.class);
+
+	/** Build and start an <code>EBigSendAsyncClient</code>.
+	 * @param ioThreads number of I/O threads
+	 * @param callbackThreads number of threads running the callbacks
+	 * @param hostLimit maximum number of connections to each host
+	 * @param connectTimeout connection timeout in ms
+	 * @param soTimeout read timeout in ms, also closing the idle connections (0 for none) */
+	public EBigSendAsyncClient(int ioThreads, int callbackThreads, int hostLimit, int connectTimeout, int soTimeout)
+			throws IOException {
+		this.hosts = new HashMap<String, Host>();
+		this.hostLimit = hostLimit;
+		this.connectTimeout = connectTimeout;
+		this.pending = new AtomicInteger();
+
+		this.executor = new ScheduledThreadPoolExecutor(callbackThreads, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "AsyncUploadCallback-" + count.incrementAndGet());
+			}
+		});
+
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setSoTimeout(params, soTimeout);
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSocketBufferSize(params, BUFFER_SIZE);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setUserAgent(params, "LightAttachment");
+
+		BasicHttpProcessor processor = new BasicHttpProcessor();
+		processor.addInterceptor(new RequestContent());
+		processor.addInterceptor(new RequestTargetHost());
+		processor.addInterceptor(new RequestConnControl());
+		processor.addInterceptor(new RequestUserAgent());
+
+		AsyncNHttpClientHandler handler = new AsyncNHttpClientHandler(processor, new ExecutionHandler(),
+				new DefaultConnectionReuseStrategy(), params);
+		final DefaultClientIOEventDispatch dispatch = new DefaultClientIOEventDispatch(handler, params);
+
+		this.reactor = new DefaultConnectingIOReactor(ioThreads, new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "AsyncUploadIO-" + count.incrementAndGet());
+			}
+		}, params);
+		reactor.setExceptionHandler(new IOReactorExceptionHandler() {
+			public boolean handle(IOException e) {
+				log.warn(e.getMessage(), e);
+				return true;
+			}
+			public boolean handle(RuntimeException e) {
+				log.error(e.getMessage(), e);
+				return true;
+			}
+		});
+
+		Thread t = new Thread("AsyncUploadReactor") {
+			public void run() {
+				try {
+					reactor.execute(dispatch);
+				} catch (IOException e) {
+					log.error(e.getMessage(), e);
+					e.printStackTrace();
+				}
+				log.info("Asynchronous upload reactor stopped");
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Post a string field to an URL.
+	 * @param url the URL
+	 * @param name the field name
+	 * @param value the field value
+	 * @param callback receive the result */
+	public void post(String url, String name, String value, Callback callback) {
+		post(url, new MultipartEntity(name, value), callback);
+	}
+
+	/** Post a file to an URL. The file is streamed from disk.
+	 * @param url the URL
+	 * @param name the field name
+	 * @param file the file, whose name is sent as file name like <code>FilePart</code> does
+	 * @param callback receive the result */
+	public void post(String url, String name, File file, Callback callback) {
+		post(url, new MultipartEntity(name, file), callback);
+	}
+
+	/** Send a request on an idle connection to its host, on a new one if none is idle, or queue it.
+	 * @param url the URL
+	 * @param entity the request body
+	 * @param callback receive the result */
+	private void post(String url, MultipartEntity entity, Callback callback) {
+		Job job = new Job();
+		job.entity = entity;
+		job.callback = callback;
+		try {
+			URL u = new URL(url);
+			if (!u.getProtocol().equals("http")) throw new MalformedURLException("Unsupported protocol: " + url);
+			job.path = u.getFile().length() > 0 ? u.getFile() : "/";
+
+			String key = u.getHost() + ":" + u.getPort();
+			synchronized (this) {
+				Host host = hosts.get(key);
+				if (host == null) {
+					host = new Host();
+					host.target = new HttpHost(u.getHost(), u.getPort() > 0 ? u.getPort() : 80);
+					hosts.put(key, host);
+				}
+				job.host = host;
+			}
+		} catch (MalformedURLException e) {
+			pending.incrementAndGet();
+			failed(job, e);
+			return;
+		}
+
+		pending.incrementAndGet();
+		dispatch(job);
+	}
+
+	/** Hand a request to a connection of its host, or queue it.
+	 * @param job the request */
+	private void dispatch(Job job) {
+		Host host = job.host;
+		synchronized (this) {
+			if (!host.idle.isEmpty()) {
+				Slot slot = host.idle.removeFirst();
+				slot.job = job;
+				slot.conn.requestOutput();
+				return;
+			} else if (host.connections >= hostLimit) {
+				host.queue.add(job);
+				return;
+			}
+			host.connections++;
+		}
+
+		SessionRequest request = reactor.connect(new InetSocketAddress(host.target.getHostName(), host.target.getPort()),
+				null, job, new SessionCallback());
+		request.setConnectTimeout(connectTimeout);
+	}
+
+	/** Open a connection for the next waiting request of a host, if any and allowed.
+	 * @param host the host */
+	private void next(Host host) {
+		Job job;
+		synchronized (this) {
+			if (host.queue.isEmpty() || host.connections >= hostLimit) return;
+			job = host.queue.removeFirst();
+		}
+		dispatch(job);
+	}
+
+	/** Hand the response of a request to its callback.
+	 * @param job the request
+	 * @param status the HTTP status
+	 * @param body the response body */
+	private void completed(final Job job, final int status, final String body) {
+		pending.decrementAndGet();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					job.callback.completed(status, body);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.warn("Response of " + job.path + " dropped: client stopped");
+		}
+	}
+
+	/** Hand the failure of a request to its callback.
+	 * @param job the request
+	 * @param e the error */
+	private void failed(final Job job, final Exception e) {
+		pending.decrementAndGet();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					job.callback.failed(e);
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			log.warn("Failure of " + job.path + " dropped: client stopped");
+		}
+	}
+
+	/** Run a task on a callback thread after a delay.
+	 * @param task the task
+	 * @param delay the delay in ms */
+	public void schedule(Runnable task, long delay) {
+		executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/** Return the number of requests not completed yet.
+	 * @return the number of pending requests */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/** Stop the reactor and the callback threads. The pending requests are dropped. */
+	public void shutdown() throws IOException {
+		reactor.shutdown();
+		executor.shutdown();
+		log.info("Asynchronous upload client stopped with " + pending.get() + " pending request(s)");
+	}
+
+	/** Follow the connection attempts. */
+	private class SessionCallback implements SessionRequestCallback {
+
+		public void completed(SessionRequest request) {
+		}
+
+		public void failed(SessionRequest request) {
+			closed((Job) request.getAttachment(), request.getException() != null ? request.getException()
+					: new IOException("Connection failed"));
+		}
+
+		public void timeout(SessionRequest request) {
+			closed((Job) request.getAttachment(), new SocketTimeoutException("Connection timed out"));
+		}
+
+		public void cancelled(SessionRequest request) {
+			closed((Job) request.getAttachment(), new IOException("Connection cancelled"));
+		}
+
+		/** Fail the request of a connection which couldn't be open.
+		 * @param job the request
+		 * @param e the error */
+		private void closed(Job job, IOException e) {
+			synchronized (EBigSendAsyncClient.this) {
+				job.host.connections--;
+			}
+			EBigSendAsyncClient.this.failed(job, e);
+			next(job.host);
+		}
+
+	}
+
+	/** Bind the requests to the connections. Run by the I/O threads. */
+	private class ExecutionHandler implements NHttpRequestExecutionHandler {
+
+		public void initalizeContext(HttpContext context, Object attachment) {
+			Job job = (Job) attachment;
+			Slot slot = new Slot();
+			slot.host = job.host;
+			slot.conn = (NHttpClientConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+			slot.job = job;
+			context.setAttribute(SLOT, slot);
+			context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, job.host.target);
+		}
+
+		public HttpRequest submitRequest(HttpContext context) {
+			Slot slot = (Slot) context.getAttribute(SLOT);
+			Job job;
+			synchronized (EBigSendAsyncClient.this) {
+				if (slot.job == null) {
+					// The connection is free: take the next waiting request or wait for one
+					if (slot.host.queue.isEmpty()) {
+						if (!slot.host.idle.contains(slot)) slot.host.idle.add(slot);
+						return null;
+					}
+					slot.job = slot.host.queue.removeFirst();
+				}
+				job = slot.job;
+				if (job.submitted) return null;
+				job.submitted = true;
+			}
+
+			BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", job.path);
+			request.setEntity(job.entity);
+			return request;
+		}
+
+		public ConsumingNHttpEntity responseEntity(HttpResponse response, HttpContext context) throws IOException {
+			return new BufferingNHttpEntity(response.getEntity(), new HeapByteBufferAllocator());
+		}
+
+		public void handleResponse(HttpResponse response, HttpContext context) throws IOException {
+			Slot slot = (Slot) context.getAttribute(SLOT);
+			Job job;
+			synchronized (EBigSendAsyncClient.this) {
+				job = slot.job;
+				slot.job = null;
+			}
+			if (job == null) return;
+
+			String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : null;
+			completed(job, response.getStatusLine().getStatusCode(), body);
+		}
+
+		public void finalizeContext(HttpContext context) {
+			Slot slot = (Slot) context.getAttribute(SLOT);
+			if (slot == null) return;
+			Job job;
+			synchronized (EBigSendAsyncClient.this) {
+				slot.host.connections--;
+				slot.host.idle.remove(slot);
+				job = slot.job;
+				slot.job = null;
+			}
+			if (job != null) {
+				job.entity.finish();
+				if (!job.submitted) {
+					// The connection was closed before the request was sent: send it on another one
+					dispatch(job);
+				} else failed(job, new IOException("Connection closed before the response was received"));
+			}
+			next(slot.host);
+		}
+
+	}
+
+	/**
+	 * A <code>multipart/form-data</code> body of a single field, in the format of <code>commons-httpclient</code>
+	 * <code>StringPart</code> and <code>FilePart</code>. A file is transferred from disk to the socket with
+	 * <code>FileChannel.transferTo</code> when the encoder allows it.
+	 */
+	private static class MultipartEntity extends AbstractHttpEntity implements ProducingNHttpEntity {
+
+		/** Boundary characters. */
+		private static final char[] BOUNDARY_CHARS =
+			"-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+		/** Source of the boundaries. */
+		private static final Random random = new Random();
+
+		/** The part headers, and the value of a string field. */
+		private ByteBuffer head;
+
+		/** The file of a file field, or <code>null</code>. */
+		private File file;
+
+		/** The end of the body. */
+		private ByteBuffer tail;
+
+		/** The file channel, open once the head is written. */
+		private FileChannel channel;
+
+		/** Position of the next file byte to send. */
+		private long position;
+
+		/** Length of the file. */
+		private long length;
+
+		/** File bytes read but not sent yet, when the encoder can't transfer from the file. */
+		private ByteBuffer chunk;
+
+		/** Build the body of a string field.
+		 * @param name the field name
+		 * @param value the field value */
+		public MultipartEntity(String name, String value) {
+			String boundary = boundary();
+			setContentType("multipart/form-data; boundary=" + boundary);
+			this.head = ascii("--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n"
+					+ "Content-Type: text/plain; charset=US-ASCII\r\nContent-Transfer-Encoding: 8bit\r\n\r\n"
+					+ value + "\r\n");
+			this.tail = ascii("--" + boundary + "--\r\n");
+		}
+
+		/** Build the body of a file field.
+		 * @param name the field name
+		 * @param file the file, whose name is sent as file name */
+		public MultipartEntity(String name, File file) {
+			String boundary = boundary();
+			setContentType("multipart/form-data; boundary=" + boundary);
+			this.head = ascii("--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name
+					+ "\"; filename=\"" + file.getName() + "\"\r\n"
+					+ "Content-Type: application/octet-stream; charset=ISO-8859-1\r\n"
+					+ "Content-Transfer-Encoding: binary\r\n\r\n");
+			this.file = file;
+			this.length = file.length();
+			this.tail = ascii("\r\n--" + boundary + "--\r\n");
+		}
+
+		/** Return a new random boundary. */
+		private static String boundary() {
+			char[] b = new char[32];
+			synchronized (random) {
+				for (int i = 0; i < b.length; i++) b[i] = BOUNDARY_CHARS[random.nextInt(BOUNDARY_CHARS.length)];
+			}
+			return new String(b);
+		}
+
+		/** Return the US-ASCII bytes of a string, unmappable characters replaced with '?'. */
+		private static ByteBuffer ascii(String s) {
+			try {
+				return ByteBuffer.wrap(s.getBytes("US-ASCII"));
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+			if (head.hasRemaining()) {
+				encoder.write(head);
+				if (head.hasRemaining()) return;
+			}
+
+			while (file != null && position < length) {
+				if (channel == null) channel = new FileInputStream(file).getChannel();
+				if (encoder instanceof FileContentEncoder) {
+					long n = ((FileContentEncoder) encoder).transfer(channel, position, length - position);
+					if (n <= 0) return;
+					position += n;
+				} else {
+					if (chunk == null) {
+						chunk = ByteBuffer.allocate(BUFFER_SIZE);
+						chunk.flip();
+					}
+					if (!chunk.hasRemaining()) {
+						chunk.clear();
+						if (channel.read(chunk, position) < 0) throw new IOException("Unexpected end of " + file);
+						chunk.flip();
+					}
+					int n = encoder.write(chunk);
+					if (n <= 0) return;
+					position += n;
+				}
+			}
+
+			if (tail.hasRemaining()) {
+				encoder.write(tail);
+				if (tail.hasRemaining()) return;
+			}
+			encoder.complete();
+			finish();
+		}
+
+		public void finish() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					log.warn(e.getMessage(), e);
+				}
+				channel = null;
+			}
+		}
+
+		public long getContentLength() {
+			return head.capacity() + length + tail.capacity();
+		}
+
+		public boolean isRepeatable() {
+			return false;
+		}
+
+		public boolean isStreaming() {
+			return true;
+		}
+
+		/** Return the body as a stream: the head, the file if any, then the tail. */
+		public InputStream getContent() throws IOException {
+			Vector<InputStream> parts = new Vector<InputStream>();
+			parts.add(new ByteArrayInputStream(head.array()));
+			if (file != null) parts.add(new FileInputStream(file));
+			parts.add(new ByteArrayInputStream(tail.array()));
+			return new SequenceInputStream(parts.elements());
+		}
+
+		/** Write the body to a stream, the file being copied from disk. */
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(head.array());
+			if (file != null) {
+				FileInputStream in = new FileInputStream(file);
+				try {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int read;
+					while ((read = in.read(buffer)) >= 0) out.write(buffer, 0, read);
+				} finally {
+					in.close();
+				}
+			}
+			out.write(tail.array());
+			out.flush();
+		}
+
+	}
+
+}
@@ -0,0 +1,114 @@
+package com.lightattachment.mails;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+/**
+ * The pool of keep-alive connections to the e-BigSend hosts, shared by every upload.
+ * Each host gets at most <code>ebigsend.host-limit</code> connections and the pool at most
+ * <code>ebigsend.pool[@max-total]</code>. Connections are opened within <code>ebigsend.timeout</code> ms, reads time
+ * out after <code>ebigsend.pool[@so-timeout]</code> ms, and connections idle for
+ * <code>ebigsend.pool[@idle-timeout]</code> ms are closed.
+ * The number of leased, idle and pending connections is available to size the pool.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class EBigSendConnectionManager extends MultiThreadedHttpConnectionManager {
+
+	/** Default time after which an idle connection is closed, in ms. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	/** Number of requests waiting for a connection. */
+	private AtomicInteger pending;
+
+	/** Number of connections in use. */
+	private AtomicInteger leased;
+
+	/** Close the idle connections. */
+	private IdleConnectionTimeoutThread idleThread;
+
+	/** Build the <code>EBigSendConnectionManager</code> (needs <code>lightattachment.xml</code> config file). */
+	public EBigSendConnectionManager() {
+		super();
+		this.pending = new AtomicInteger();
+		this.leased = new AtomicInteger();
+
+		int hostLimit = LightAttachment.config.getInt("ebigsend.host-limit",
+				LightAttachment.config.getInt("message.output-limit"));
+		HttpConnectionManagerParams params = getParams();
+		params.setDefaultMaxConnectionsPerHost(hostLimit);
+		params.setMaxTotalConnections(LightAttachment.config.getInt("ebigsend.pool[@max-total]",
+				2 * LightAttachment.config.getInt("message.output-limit")));
+		params.setConnectionTimeout(LightAttachment.config.getInt("ebigsend.timeout"));
+		params.setSoTimeout(LightAttachment.config.getInt("ebigsend.pool[@so-timeout]", 0));
+		params.setStaleCheckingEnabled(true);
+
+		this.idleThread = new IdleConnectionTimeoutThread();
+		long idle = LightAttachment.config.getLong("ebigsend.pool[@idle-timeout]", DEFAULT_IDLE_TIMEOUT);
+		idleThread.setName("IdleConnectionTimeoutThread");
+		idleThread.setConnectionTimeout(idle);
+		idleThread.setTimeoutInterval(Math.max(1000, idle / 2));
+		idleThread.addConnectionManager(this);
+		idleThread.start();
+	}
+
+	@Override
+	public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+			throws ConnectionPoolTimeoutException {
+		pending.incrementAndGet();
+		try {
+			HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+			leased.incrementAndGet();
+			return connection;
+		} finally {
+			pending.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void releaseConnection(HttpConnection connection) {
+		super.releaseConnection(connection);
+		leased.decrementAndGet();
+	}
+
+	/** Return the number of connections in use.
+	 * @return the number of leased connections */
+	public int getLeased() {
+		return leased.get();
+	}
+
+	/** Return the number of open connections not in use.
+	 * @return the number of idle connections */
+	public int getIdle() {
+		return Math.max(0, getConnectionsInPool() - getLeased());
+	}
+
+	/** Return the number of requests waiting for a connection.
+	 * @return the number of pending requests */
+	public int getPending() {
+		return pending.get();
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		idleThread.shutdown();
+		super.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "e-BigSend connections: leased " + getLeased() + ", idle " + getIdle() + ", pending " + getPending()
+				+ ", max " + getParams().getDefaultMaxConnectionsPerHost() + " per host, "
+				+ getParams().getMaxTotalConnections() + " in total";
+	}
+
+}
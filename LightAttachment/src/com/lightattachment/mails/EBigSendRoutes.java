@@ -0,0 +1,101 @@
+package com.lightattachment.mails;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+
+/**
+ * The e-BigSend routing table: select the e-BigSend URLs of a recipient.
+ * The table is built from the <code>ebigsend.address</code> section of <code>lightattachment.xml</code>, its patterns
+ * are compiled once and it is never modified, so that it can be used by several threads without lock. A new table
+ * must be built when the configuration changes.
+ * The hosts selected for a recipient domain are cached when every <code>incoming-host</code> pattern only depends on
+ * the domain (<code>[^@]*@domain</code>), otherwise for each recipient.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class EBigSendRoutes {
+
+	/** Maximum number of cached recipients (or domains). The cache is emptied when it is reached. */
+	private static final int CACHE_SIZE = 10000;
+
+	/** Compiled <code>incoming-host</code> patterns. */
+	private Pattern[] patterns;
+
+	/** The <code>outcoming-host</code> URLs of each pattern. */
+	private List<List<String>> hosts;
+
+	/** The default e-BigSend URL. */
+	private String defaultHost;
+
+	/** <code>true</code> if every pattern only depends on the recipient domain. */
+	private boolean byDomain;
+
+	/** Selected URLs of the recipients (or domains) already routed. */
+	private ConcurrentHashMap<String, List<String>> cache;
+
+	/** Build the routing table of a configuration.
+	 * @param config the LightAttachment configuration */
+	@SuppressWarnings("unchecked")
+	public EBigSendRoutes(XMLConfiguration config) {
+		List<HierarchicalConfiguration> c = config.configurationsAt("ebigsend.address.alternate");
+
+		this.patterns = new Pattern[c.size()];
+		this.hosts = new ArrayList<List<String>>();
+		this.byDomain = true;
+		this.cache = new ConcurrentHashMap<String, List<String>>();
+
+		for (int i = 0; i < c.size(); i++) {
+			HierarchicalConfiguration h = c.get(i);
+			String pattern = h.getString("incoming-host");
+			patterns[i] = Pattern.compile(pattern);
+			if (!pattern.startsWith("[^@]*@") || pattern.indexOf('@', 6) >= 0) byDomain = false;
+
+			ArrayList<String> selected = new ArrayList<String>();
+			StringTokenizer ch = new StringTokenizer(h.getString("outcoming-host", "")," ");
+			while (ch.hasMoreTokens()) {
+				selected.add(ch.nextToken().replace("\n", ""));
+			}
+			hosts.add(Collections.unmodifiableList(selected));
+		}
+
+		this.defaultHost = config.getString("ebigsend.address.default");
+	}
+
+	/** Select the e-BigSend URLs of a recipient: the URLs of each matching alternate, then the default one.
+	 * @param to the target adress of the message (a single one)
+	 * @return a new list of the selected e-BigSend URL */
+	public ArrayList<String> select(String to) {
+		String key = to;
+		if (byDomain) {
+			int at = to.lastIndexOf('@');
+			if (at >= 0 && to.indexOf('@') == at) key = to.substring(at);
+		}
+
+		List<String> selected = cache.get(key);
+		if (selected == null) {
+			ArrayList<String> s = new ArrayList<String>();
+			for (int i = 0; i < patterns.length; i++) {
+				if (patterns[i].matcher(to).find()) s.addAll(hosts.get(i));
+			}
+			s.add(defaultHost);
+
+			selected = Collections.unmodifiableList(s);
+			if (cache.size() >= CACHE_SIZE) cache.clear();
+			cache.put(key, selected);
+		}
+
+		// The callers consume the list of hosts
+		return new ArrayList<String>(selected);
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.lightattachment.mails;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.httpclient.methods.multipart.PartSource;
+
+/**
+ * A <code>PartSource</code> sending a range of a file, used to upload an attachment by chunks.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class FileRangePartSource implements PartSource {
+
+	/** The name of the file sent. */
+	private String fileName;
+
+	/** The file. */
+	private File file;
+
+	/** Position of the first byte of the range. */
+	private long offset;
+
+	/** Length of the range. */
+	private long length;
+
+	/** Build a <code>FileRangePartSource</code>.
+	 * @param fileName the name of the file sent
+	 * @param file the file
+	 * @param offset position of the first byte of the range
+	 * @param length length of the range */
+	public FileRangePartSource(String fileName, File file, long offset, long length) {
+		this.fileName = fileName;
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public InputStream createInputStream() throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+		in.getChannel().position(offset);
+		return new FilterInputStream(in) {
+			private long left = length;
+
+			public int read() throws IOException {
+				if (left <= 0) return -1;
+				int b = super.read();
+				if (b >= 0) left--;
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (left <= 0) return -1;
+				int n = super.read(b, off, (int) Math.min(len, left));
+				if (n > 0) left -= n;
+				return n;
+			}
+
+			public long skip(long n) throws IOException {
+				long s = super.skip(Math.min(n, left));
+				left -= s;
+				return s;
+			}
+
+			public int available() throws IOException {
+				return (int) Math.min(super.available(), left);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,213 @@
+package com.lightattachment.mails;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Share the uploads between the e-BigSend hosts selected for a mail.
+ * The hosts of a mail are tried in turn: the balancer only chooses which one is tried first, the others keep their
+ * configured order for failover. The strategies are:
+ * <ul>
+ * <li><code>failover</code>: the first host is always tried first (no balancing);</li>
+ * <li><code>round-robin</code>: each host is tried first in turn;</li>
+ * <li><code>least-outstanding</code>: the host with the fewest uploads in progress is tried first;</li>
+ * <li><code>latency</code>: a host is drawn at random, weighted by the inverse of its average upload time.</li>
+ * </ul>
+ * The <code>AttachmentSaver</code> records the uploads of each host, from the time they are assigned to the host
+ * (queued uploads count as in progress) until they are saved or move to another host.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class HostBalancer {
+
+	/** The first host is always tried first. */
+	public static final String FAILOVER = "failover";
+
+	/** Each host is tried first in turn. */
+	public static final String ROUND_ROBIN = "round-robin";
+
+	/** The host with the fewest uploads in progress is tried first. */
+	public static final String LEAST_OUTSTANDING = "least-outstanding";
+
+	/** A host is drawn weighted by the inverse of its average upload time. */
+	public static final String LATENCY = "latency";
+
+	/** Default weight of the last upload time in the average. */
+	public static final double DEFAULT_DECAY = 0.2;
+
+	/** The strategy. */
+	private String strategy;
+
+	/** Weight of the last upload time in the average. */
+	private double decay;
+
+	/** Rotate the hosts for <code>round-robin</code>. */
+	private AtomicInteger next;
+
+	/** Statistics of each e-BigSend URL. */
+	private ConcurrentHashMap<String, Stats> stats;
+
+	/** Draw the hosts for <code>latency</code>. */
+	private Random random;
+
+	/** Statistics of an e-BigSend URL. */
+	private static class Stats {
+
+		/** Number of uploads in progress. */
+		private AtomicInteger inFlight = new AtomicInteger();
+
+		/** Average time of a successful upload in ms, or 0 if none is known. */
+		private volatile double latency;
+
+		/** Number of successful uploads. */
+		private volatile long count;
+
+	}
+
+	/** Build a <code>HostBalancer</code>.
+	 * @param strategy one of <code>failover</code>, <code>round-robin</code>, <code>least-outstanding</code> and
+	 * <code>latency</code>
+	 * @param decay weight of the last upload time in the average, between 0 and 1 */
+	public HostBalancer(String strategy, double decay) {
+		if (!FAILOVER.equals(strategy) && !ROUND_ROBIN.equals(strategy) && !LEAST_OUTSTANDING.equals(strategy)
+				&& !LATENCY.equals(strategy))
+			throw new IllegalArgumentException("Unknown balancing strategy: " + strategy);
+		this.strategy = strategy;
+		this.decay = decay;
+		this.next = new AtomicInteger();
+		this.stats = new ConcurrentHashMap<String, Stats>();
+		this.random = new Random();
+	}
+
+	/** Return the statistics of a host.
+	 * @param host the e-BigSend URL */
+	private Stats getStats(String host) {
+		Stats s = stats.get(host);
+		if (s == null) {
+			s = new Stats();
+			Stats previous = stats.putIfAbsent(host, s);
+			if (previous != null) s = previous;
+		}
+		return s;
+	}
+
+	/** Order the hosts of a mail: the chosen host first, then the others in their order.
+	 * @param hosts the selected e-BigSend URLs, in failover order
+	 * @param down the hosts to choose only if every host is down
+	 * @return a new list of the hosts */
+	public ArrayList<String> order(List<String> hosts, Set<String> down) {
+		ArrayList<String> ordered = new ArrayList<String>(hosts);
+		if (FAILOVER.equals(strategy)) return ordered;
+
+		ArrayList<String> candidates = new ArrayList<String>();
+		for (String h : hosts) {
+			if (!candidates.contains(h) && !down.contains(h)) candidates.add(h);
+		}
+		if (candidates.size() < 2) return ordered;
+
+		String chosen;
+		if (ROUND_ROBIN.equals(strategy)) {
+			chosen = candidates.get((next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size());
+		} else if (LEAST_OUTSTANDING.equals(strategy)) {
+			// Ties go round-robin, so that idle hosts share the load too
+			int start = (next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+			chosen = null;
+			int min = Integer.MAX_VALUE;
+			for (int i = 0; i < candidates.size(); i++) {
+				String h = candidates.get((start + i) % candidates.size());
+				int n = getStats(h).inFlight.get();
+				if (n < min) {
+					min = n;
+					chosen = h;
+				}
+			}
+		} else {
+			// Hosts not measured yet get the best known time, so that they are tried
+			double best = 0;
+			for (String h : candidates) {
+				double l = getStats(h).latency;
+				if (l > 0 && (best == 0 || l < best)) best = l;
+			}
+			double[] weights = new double[candidates.size()];
+			double total = 0;
+			for (int i = 0; i < candidates.size(); i++) {
+				double l = getStats(candidates.get(i)).latency;
+				if (l <= 0) l = best > 0 ? best : 1;
+				weights[i] = 1 / Math.max(l, 1);
+				total += weights[i];
+			}
+			double r = random.nextDouble() * total;
+			int i = 0;
+			while (i < weights.length - 1 && r >= weights[i]) r -= weights[i++];
+			chosen = candidates.get(i);
+		}
+
+		ordered.remove(chosen);
+		ordered.add(0, chosen);
+		return ordered;
+	}
+
+	/** Record the beginning of an upload on a host.
+	 * @param host the e-BigSend URL
+	 * @return the beginning date, to give to <code>end</code> */
+	public long start(String host) {
+		getStats(host).inFlight.incrementAndGet();
+		return System.currentTimeMillis();
+	}
+
+	/** Record the end of an upload on a host. Only the time of successful uploads is averaged, the failures are
+	 * handled by the host breaker.
+	 * @param host the e-BigSend URL
+	 * @param start the beginning date returned by <code>start</code>
+	 * @param success <code>true</code> if the upload succeeded */
+	public void end(String host, long start, boolean success) {
+		Stats s = getStats(host);
+		s.inFlight.decrementAndGet();
+		if (success) {
+			long elapsed = System.currentTimeMillis() - start;
+			synchronized (s) {
+				s.latency = s.count == 0 ? elapsed : (1 - decay) * s.latency + decay * elapsed;
+				s.count++;
+			}
+		}
+	}
+
+	/** Return the number of uploads in progress on a host.
+	 * @param host the e-BigSend URL */
+	public int getInFlight(String host) {
+		return getStats(host).inFlight.get();
+	}
+
+	/** Return the number of uploads in progress on every host. */
+	public int getInFlight() {
+		int n = 0;
+		for (Stats s : stats.values()) n += s.inFlight.get();
+		return n;
+	}
+
+	/** Return the average time of a successful upload on a host.
+	 * @param host the e-BigSend URL
+	 * @return the average time in ms, or 0 if none is known */
+	public double getLatency(String host) {
+		return getStats(host).latency;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer s = new StringBuffer("e-BigSend balancing (" + strategy + "):");
+		for (String h : stats.keySet()) {
+			Stats st = stats.get(h);
+			s.append(" " + h + " in-flight " + st.inFlight.get() + ", " + Math.round(st.latency) + " ms over "
+					+ st.count + " upload(s);");
+		}
+		return s.toString();
+	}
+
+}
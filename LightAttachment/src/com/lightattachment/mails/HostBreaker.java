@@ -0,0 +1,116 @@
+package com.lightattachment.mails;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The circuit breaker of an e-BigSend host.
+ * After <code>failures</code> consecutive failures the breaker opens: the host is skipped for <code>open</code> ms.
+ * Then a single request is let through to probe it (half-open): on success the breaker closes, on failure it opens
+ * again for twice as long, up to <code>maxOpen</code> ms.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class HostBreaker {
+
+	/** The breaker lets every request through. */
+	public static final int CLOSED = 0;
+
+	/** The breaker lets no request through. */
+	public static final int OPEN = 1;
+
+	/** The breaker lets a single probe through. */
+	public static final int HALF_OPEN = 2;
+
+	/** The e-BigSend URL. */
+	private String host;
+
+	/** Number of consecutive failures opening the breaker. */
+	private int failures;
+
+	/** First open duration in ms. */
+	private long open;
+
+	/** Maximum open duration in ms. */
+	private long maxOpen;
+
+	/** One of <code>CLOSED</code>, <code>OPEN</code> and <code>HALF_OPEN</code>. */
+	private int state;
+
+	/** Number of consecutive failures. */
+	private int failed;
+
+	/** Current open duration in ms. */
+	private long duration;
+
+	/** Date the breaker opened, or the probe was let through. */
+	private long since;
+
+	/** Logger used to trace activity. */
+	static Logger log = Logger.getLogger(HostBreaker.class);
+
+	/** Build a closed <code>HostBreaker</code>.
+	 * @param host the e-BigSend URL
+	 * @param failures number of consecutive failures opening the breaker
+	 * @param open first open duration in ms
+	 * @param maxOpen maximum open duration in ms */
+	public HostBreaker(String host, int failures, long open, long maxOpen) {
+		this.host = host;
+		this.failures = failures;
+		this.open = open;
+		this.maxOpen = maxOpen;
+		this.state = CLOSED;
+		this.duration = open;
+	}
+
+	/** Return <code>true</code> if a request may be sent to the host.
+	 * Once the open duration is elapsed, the first caller is let through as a probe. If the probe doesn't report
+	 * within the open duration, another one is let through.
+	 * @return <code>true</code> if the host may be used */
+	public synchronized boolean allow() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.currentTimeMillis() - since < duration) return false;
+			state = HALF_OPEN;
+			since = System.currentTimeMillis();
+			log.info("Probing e-BigSend host " + host);
+			return true;
+		default:
+			if (System.currentTimeMillis() - since < duration) return false;
+			since = System.currentTimeMillis();
+			log.info("Probing e-BigSend host " + host + " again");
+			return true;
+		}
+	}
+
+	/** Record a successful request: the breaker closes. */
+	public synchronized void success() {
+		if (state != CLOSED) log.info("e-BigSend host " + host + " is back");
+		state = CLOSED;
+		failed = 0;
+		duration = open;
+	}
+
+	/** Record a failed request: the breaker opens after <code>failures</code> consecutive ones, or if the probe
+	 * failed. */
+	public synchronized void failure() {
+		failed++;
+		if (state == HALF_OPEN) {
+			duration = Math.min(maxOpen, duration * 2);
+		} else if (state == CLOSED && failed >= failures) {
+			duration = open;
+		} else return;
+		state = OPEN;
+		since = System.currentTimeMillis();
+		log.warn("e-BigSend host " + host + " marked down for " + duration + " ms after " + failed + " failure(s)");
+	}
+
+	public synchronized int getState() {
+		return state;
+	}
+
+}
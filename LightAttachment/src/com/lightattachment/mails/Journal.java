@@ -0,0 +1,473 @@
+package com.lightattachment.mails;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.StringTokenizer;
+
+import org.apache.log4j.Logger;
+
+import com.lightattachment.stats.SendErrorReportThread;
+
+/**
+ * Write-ahead journal of the stages reached by the mails in the spool (<code>directory.temp</code>), so that the
+ * mails received but not injected back to Postfix yet are resumed after a crash.
+ * A record is written when a mail is:
+ * <ul>
+ * <li><code>RECEIVED</code>: stored in the spool, before Postfix is answered;</li>
+ * <li><code>PARSED</code>: its attachments are extracted, or it is set to be forwarded unchanged;</li>
+ * <li><code>SAVED</code>: a copy is modified with the links to its attachments;</li>
+ * <li><code>INJECTED</code>: a copy is sent back to Postfix and accepted (a mail refused by Postfix stays at its
+ * last stage, and is resumed on the next start);</li>
+ * <li><code>CLEANED</code>: it is removed from the spool.</li>
+ * </ul>
+ * A mail is identified by the spool file of its first received message. Records are written by a single thread
+ * and flushed to the disk with one <code>fsync</code> for all the records appended meanwhile (group commit): only the
+ * <code>RECEIVED</code> records are waited for. Once the journal is larger than <code>maxSize</code>, it is rewritten
+ * with the records of the mails still in the spool.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class Journal {
+
+	/** The mail is stored in the spool. */
+	public static final String RECEIVED = "RECEIVED";
+
+	/** The attachments of the mail are extracted. */
+	public static final String PARSED = "PARSED";
+
+	/** A copy of the mail is modified with the links to its attachments. */
+	public static final String SAVED = "SAVED";
+
+	/** A copy of the mail is sent back to Postfix. */
+	public static final String INJECTED = "INJECTED";
+
+	/** The mail is removed from the spool. */
+	public static final String CLEANED = "CLEANED";
+
+	/** Default size above which the journal is rewritten, in bytes. */
+	public static final long DEFAULT_MAX_SIZE = 16777216;
+
+	/** <code>true</code> if the records are written. */
+	private boolean enabled;
+
+	/** The journal file. */
+	private File file;
+
+	/** Size above which the journal is rewritten. */
+	private long maxSize;
+
+	/** The journal file channel, positioned at its end. */
+	private FileChannel channel;
+
+	/** Records appended but not written yet. */
+	private StringBuffer pending;
+
+	/** Number of records appended. */
+	private long appended;
+
+	/** Number of records written and flushed to the disk. */
+	private long durable;
+
+	/** The last write error, if any. */
+	private IOException error;
+
+	/** Records of the mails still in the spool, by mail. */
+	private LinkedHashMap<String, ArrayList<String>> live;
+
+	/** Write the records. */
+	private Thread writer;
+
+	/** Set to <code>false</code> to stop the writer. */
+	private boolean working;
+
+	/** Logger used to trace activity. */
+	static Logger log = Logger.getLogger(Journal.class);
+
+	/** A mail still in the spool, rebuilt from its records. */
+	public static class Entry {
+
+		/** The mail identifier. */
+		private String id;
+
+		/** Last stage reached. */
+		private String stage;
+
+		/** Message envelope <code>from</code>. */
+		private String from;
+
+		/** Message envelope <code>to</code>. */
+		private String to;
+
+		/** Spool files of the received messages. */
+		private ArrayList<String> originals;
+
+		/** Couples of <code>real file name</code> - <code>original file name</code>. */
+		private LinkedHashMap<String, String> parts;
+
+		/** Recipients already sent to Postfix. */
+		private HashSet<String> injected;
+
+		public Entry(String id) {
+			this.id = id;
+			this.originals = new ArrayList<String>();
+			this.parts = new LinkedHashMap<String, String>();
+			this.injected = new HashSet<String>();
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getStage() {
+			return stage;
+		}
+
+		public String getFrom() {
+			return from;
+		}
+
+		/** Return the recipients not sent to Postfix yet.
+		 * @return the recipients separated by a coma, or an empty string */
+		public String getTo() {
+			String remaining = "";
+			StringTokenizer token = new StringTokenizer(to, ",");
+			while (token.hasMoreTokens()) {
+				String r = token.nextToken();
+				if (!injected.contains(r)) remaining += (remaining.length() > 0 ? "," : "") + r;
+			}
+			return remaining;
+		}
+
+		public ArrayList<String> getOriginals() {
+			return originals;
+		}
+
+		public LinkedHashMap<String, String> getParts() {
+			return parts;
+		}
+
+	}
+
+	/** Build a <code>Journal</code>.
+	 * @param filename the journal file
+	 * @param maxSize size above which the journal is rewritten, in bytes
+	 * @param enabled <code>false</code> to write nothing */
+	public Journal(String filename, long maxSize, boolean enabled) {
+		this.file = new File(filename);
+		this.maxSize = maxSize;
+		this.enabled = enabled;
+		this.pending = new StringBuffer();
+		this.live = new LinkedHashMap<String, ArrayList<String>>();
+	}
+
+	/** Return the identifier of a mail: the spool file of its first received message.
+	 * @param set the mail
+	 * @return the identifier, or <code>null</code> if the mail has no file */
+	public static String id(MailSet set) {
+		return set.getOriginalMessages().size() > 0 ? set.getOriginalMessages().get(0) : null;
+	}
+
+	/** Read the journal, rewrite it with the records of the mails still in the spool and start writing.
+	 * @return the mails still in the spool, in the order they were received */
+	public synchronized ArrayList<Entry> open() throws IOException {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		if (!enabled) return entries;
+
+		if (file.exists()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "ISO-8859-1"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					try {
+						if (line.length() > 0) apply(line);
+					} catch (RuntimeException e) {
+						// The last record may be truncated by the crash
+						log.warn("Invalid journal record skipped: " + line);
+					}
+				}
+			} finally {
+				in.close();
+			}
+			for (String id : live.keySet()) entries.add(rebuild(id, live.get(id)));
+		}
+
+		if (file.getAbsoluteFile().getParentFile() != null) file.getAbsoluteFile().getParentFile().mkdirs();
+		rewrite();
+		log.info("Journal " + file + " opened with " + entries.size() + " mail(s) to resume");
+
+		this.working = true;
+		this.writer = new Thread("JournalWriter") {
+			public void run() {
+				write();
+			}
+		};
+		writer.start();
+		return entries;
+	}
+
+	/** Rebuild a mail from its records.
+	 * @param id the mail identifier
+	 * @param records its records */
+	private Entry rebuild(String id, ArrayList<String> records) {
+		Entry e = new Entry(id);
+		for (String record : records) {
+			String[] f = split(record);
+			if (f[0].equals(RECEIVED)) {
+				e.stage = RECEIVED;
+				e.from = f[2];
+				e.to = f[3];
+				e.originals.add(f[1]);
+			} else if (f[0].equals(PARSED)) {
+				e.stage = PARSED;
+				e.from = f[2];
+				e.to = f[3];
+				int n = Integer.parseInt(f[4]);
+				for (int i = 0; i < n; i++) e.originals.add(f[5 + i]);
+				for (int i = 5 + n; i + 1 < f.length; i += 2) e.parts.put(f[i], f[i + 1]);
+			} else if (f[0].equals(SAVED)) {
+				if (!e.stage.equals(INJECTED)) e.stage = SAVED;
+			} else if (f[0].equals(INJECTED)) {
+				e.stage = INJECTED;
+				StringTokenizer token = new StringTokenizer(f[2], ",");
+				while (token.hasMoreTokens()) e.injected.add(token.nextToken());
+			}
+		}
+		return e;
+	}
+
+	/** Record a record in the mails still in the spool.
+	 * @param record the record */
+	private void apply(String record) {
+		String[] f = split(record);
+		if (f.length < 2) return;
+		if (f[0].equals(RECEIVED)) {
+			ArrayList<String> records = new ArrayList<String>();
+			records.add(record);
+			live.put(f[1], records);
+		} else if (f[0].equals(PARSED)) {
+			// The messages of a partial mail become a single mail
+			int n = Integer.parseInt(f[4]);
+			for (int i = 0; i < n; i++) live.remove(f[5 + i]);
+			ArrayList<String> records = new ArrayList<String>();
+			records.add(record);
+			live.put(f[1], records);
+		} else if (f[0].equals(CLEANED)) {
+			live.remove(f[1]);
+		} else {
+			ArrayList<String> records = live.get(f[1]);
+			if (records != null) records.add(record);
+		}
+	}
+
+	/** Record that a message is stored in the spool, and wait until the record is on the disk.
+	 * @param filename the spool file of the message
+	 * @param from the message <code>from</code> envelope
+	 * @param to the message <code>to</code> envelope */
+	public void received(String filename, String from, String to) throws IOException, InterruptedException {
+		append(new String[] { RECEIVED, filename, from, to }, true);
+	}
+
+	/** Record that the attachments of a mail are extracted, or that it is forwarded unchanged if it has none.
+	 * @param set the mail */
+	public void parsed(MailSet set) throws IOException, InterruptedException {
+		if (!enabled || id(set) == null) return;
+		ArrayList<String> f = new ArrayList<String>();
+		f.add(PARSED);
+		f.add(id(set));
+		f.add(set.getFrom());
+		f.add(set.getTo());
+		f.add(String.valueOf(set.getOriginalMessages().size()));
+		f.addAll(set.getOriginalMessages());
+		for (String filename : set.getParts().keySet()) {
+			f.add(filename);
+			f.add(set.getParts().get(filename));
+		}
+		append(f.toArray(new String[f.size()]), false);
+	}
+
+	/** Record that a copy of a mail is modified with the links to its attachments.
+	 * @param set the copy */
+	public void saved(MailSet set) throws IOException, InterruptedException {
+		if (enabled && id(set) != null) append(new String[] { SAVED, id(set), set.getTo() }, false);
+	}
+
+	/** Record that a copy of a mail is sent back to Postfix.
+	 * @param set the copy */
+	public void injected(MailSet set) throws IOException, InterruptedException {
+		if (enabled && id(set) != null) append(new String[] { INJECTED, id(set), set.getTo() }, false);
+	}
+
+	/** Record that a mail is removed from the spool.
+	 * @param id the mail identifier */
+	public void cleaned(String id) throws IOException, InterruptedException {
+		if (enabled && id != null) append(new String[] { CLEANED, id }, false);
+	}
+
+	/** Append a record, and wait until it is on the disk if asked to.
+	 * @param fields the fields of the record
+	 * @param sync <code>true</code> to wait for the record to be on the disk */
+	private synchronized void append(String[] fields, boolean sync) throws IOException, InterruptedException {
+		if (!enabled) return;
+		if (error != null) throw error;
+		String record = join(fields);
+		apply(record);
+		pending.append(record).append('\n');
+		long seq = ++appended;
+		notifyAll();
+		if (sync) {
+			while (durable < seq && error == null) wait();
+			if (error != null) throw error;
+		}
+	}
+
+	/** Write the pending records until the journal is closed. */
+	private void write() {
+		while (true) {
+			String records;
+			long seq;
+			boolean compact;
+			synchronized (this) {
+				while (pending.length() == 0 && working) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						log.error(e.getMessage(), e);
+						e.printStackTrace();
+					}
+				}
+				if (pending.length() == 0) break;
+				records = pending.toString();
+				pending.setLength(0);
+				seq = appended;
+			}
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(records.getBytes("ISO-8859-1"));
+				while (buffer.hasRemaining()) channel.write(buffer);
+				channel.force(false);
+				compact = channel.size() > maxSize;
+				synchronized (this) {
+					durable = seq;
+					notifyAll();
+				}
+				if (compact) {
+					synchronized (this) {
+						pending.setLength(0);
+						seq = appended;
+						rewrite();
+						durable = seq;
+						notifyAll();
+					}
+				}
+			} catch (IOException e) {
+				log.error("Journal " + file + " couldn't be written: " + e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(null, "Journal couldn't be written.", e);
+				sert.start();
+				synchronized (this) {
+					error = e;
+					notifyAll();
+				}
+				break;
+			}
+		}
+	}
+
+	/** Replace the journal with the records of the mails still in the spool, and reopen it. */
+	private synchronized void rewrite() throws IOException {
+		StringBuffer records = new StringBuffer();
+		for (ArrayList<String> r : live.values()) {
+			for (String record : r) records.append(record).append('\n');
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		try {
+			out.setLength(0);
+			ByteBuffer buffer = ByteBuffer.wrap(records.toString().getBytes("ISO-8859-1"));
+			while (buffer.hasRemaining()) out.getChannel().write(buffer);
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		if (channel != null) channel.close();
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) throw new IOException("Couldn't replace journal " + file);
+		}
+
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.position(channel.size());
+		log.debug("Journal " + file + " rewritten with " + live.size() + " mail(s)");
+	}
+
+	/** Write the pending records and close the journal. */
+	public void close() throws IOException, InterruptedException {
+		if (!enabled || writer == null) return;
+		synchronized (this) {
+			working = false;
+			notifyAll();
+		}
+		writer.join();
+		synchronized (this) {
+			channel.close();
+		}
+		log.info("Journal " + file + " closed with " + live.size() + " mail(s) in the spool");
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Join the fields of a record, escaping tabulations, line ends and backslashes.
+	 * @param fields the fields
+	 * @return the record */
+	private static String join(String[] fields) {
+		StringBuffer record = new StringBuffer();
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) record.append('\t');
+			String field = fields[i] != null ? fields[i] : "";
+			for (int j = 0; j < field.length(); j++) {
+				char c = field.charAt(j);
+				if (c == '\\') record.append("\\\\");
+				else if (c == '\t') record.append("\\t");
+				else if (c == '\n') record.append("\\n");
+				else if (c == '\r') record.append("\\r");
+				else record.append(c);
+			}
+		}
+		return record.toString();
+	}
+
+	/** Split a record into its fields.
+	 * @param record the record
+	 * @return the fields */
+	private static String[] split(String record) {
+		ArrayList<String> fields = new ArrayList<String>();
+		StringBuffer field = new StringBuffer();
+		for (int i = 0; i < record.length(); i++) {
+			char c = record.charAt(i);
+			if (c == '\t') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else if (c == '\\' && i + 1 < record.length()) {
+				char n = record.charAt(++i);
+				field.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+			} else field.append(c);
+		}
+		fields.add(field.toString());
+		return fields.toArray(new String[fields.size()]);
+	}
+
+}
@@ -3,6 +3,8 @@ package com.lightattachment.mails;
 import org.apache.commons.configuration.XMLConfiguration;
 import org.apache.log4j.Logger;
 
+import com.lightattachment.smtp.streamed.NioSMTPPostfixInputConnector;
+import com.lightattachment.smtp.streamed.PostfixInputConnector;
 import com.lightattachment.smtp.streamed.StreamedMailParser;
 import com.lightattachment.smtp.streamed.StreamedSMTPPostfixInputConnector;
 
@@ -30,9 +32,13 @@ public class LightAttachment {
 			
 			StreamedMailParser parser = new StreamedMailParser(manager);
 			parser.start();
+			manager.recover(parser);
 			
 			//StreamedSMTPPostfixInputConnector input = StreamedSMTPPostfixInputConnector.start(parser);
-			StreamedSMTPPostfixInputConnector input = new StreamedSMTPPostfixInputConnector(parser);
+			PostfixInputConnector input;
+			if (config.getString("postfix.in-address[@mode]", "thread").equalsIgnoreCase("nio")) 
+				input = new NioSMTPPostfixInputConnector(parser);
+			else input = new StreamedSMTPPostfixInputConnector(parser);
 			input.start();
 			
 			ShutdownHook sh = new ShutdownHook(manager,parser,input);
@@ -0,0 +1,153 @@
+package com.lightattachment.mails;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cache of the links to the attachments already saved on e-BigSend, keyed by attachment CRC and e-BigSend URL.
+ * The least recently used links are evicted once <code>size</code> links are cached, and links older than
+ * <code>maxAge</code> are never returned. If a file is given, the cache is loaded from it at startup and saved to
+ * it at shutdown, so that it survives restarts.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class LinkCache {
+
+	/** Maximum number of cached links. */
+	private int size;
+
+	/** Maximum age of a cached link in ms. */
+	private long maxAge;
+
+	/** The file the cache is persisted to, or <code>null</code>. */
+	private File file;
+
+	/** The cached links, in access order. */
+	private LinkedHashMap<String, Entry> links;
+
+	/** Logger used to trace activity. */
+	static Logger log = Logger.getLogger(LinkCache.class);
+
+	/** A cached link. */
+	private static class Entry {
+
+		/** The link to the attachment. */
+		private String link;
+
+		/** Date the link was got from e-BigSend. */
+		private long date;
+
+		public Entry(String link, long date) {
+			this.link = link;
+			this.date = date;
+		}
+
+	}
+
+	/** Build a <code>LinkCache</code>.
+	 * @param size maximum number of cached links
+	 * @param maxAge maximum age of a cached link in ms
+	 * @param filename the file the cache is persisted to, or <code>null</code> */
+	@SuppressWarnings("serial")
+	public LinkCache(int size, long maxAge, String filename) {
+		this.size = size;
+		this.maxAge = maxAge;
+		this.file = filename != null ? new File(filename) : null;
+		this.links = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > LinkCache.this.size;
+			}
+		};
+	}
+
+	/** Return the key of an attachment.
+	 * @param crc the CRC of the attachment
+	 * @param host the e-BigSend URL */
+	private String key(String crc, String host) {
+		return crc + "\t" + host;
+	}
+
+	/** Return the link to an attachment saved on a host.
+	 * @param crc the CRC of the attachment
+	 * @param host the e-BigSend URL
+	 * @return the link to the attachment, or <code>null</code> if it is not cached or too old */
+	public synchronized String get(String crc, String host) {
+		String key = key(crc, host);
+		Entry e = links.get(key);
+		if (e == null) return null;
+		if (System.currentTimeMillis() - e.date > maxAge) {
+			links.remove(key);
+			return null;
+		}
+		return e.link;
+	}
+
+	/** Cache the link to an attachment saved on a host.
+	 * @param crc the CRC of the attachment
+	 * @param host the e-BigSend URL
+	 * @param link the link to the attachment */
+	public synchronized void put(String crc, String host, String link) {
+		links.put(key(crc, host), new Entry(link, System.currentTimeMillis()));
+	}
+
+	/** Load the cache from its file, if it exists. Links too old are skipped. */
+	public synchronized void load() throws IOException {
+		if (file == null || !file.exists()) return;
+		long now = System.currentTimeMillis();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "ISO-8859-1"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				// date, CRC, host, link
+				String[] f = line.split("\t", 4);
+				if (f.length < 4) continue;
+				try {
+					long date = Long.parseLong(f[0]);
+					if (now - date <= maxAge) links.put(key(f[1], f[2]), new Entry(f[3], date));
+				} catch (NumberFormatException e) {
+					log.warn("Invalid link cache entry: " + line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		log.info(links.size() + " link(s) loaded from " + file);
+	}
+
+	/** Save the cache to its file, least recently used links first. */
+	public synchronized void save() throws IOException {
+		if (file == null) return;
+		if (file.getAbsoluteFile().getParentFile() != null) file.getAbsoluteFile().getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "ISO-8859-1"));
+		try {
+			for (Map.Entry<String, Entry> e : links.entrySet()) {
+				String link = e.getValue().link;
+				if (link.indexOf('\n') >= 0 || link.indexOf('\r') >= 0) continue;
+				out.write(e.getValue().date + "\t" + e.getKey() + "\t" + link);
+				out.newLine();
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) throw new IOException("Couldn't write link cache " + file);
+		}
+		log.info(links.size() + " link(s) saved to " + file);
+	}
+
+}
@@ -4,15 +4,26 @@ import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
 import com.lightattachment.smtp.SMTPPostfixOutputConnector;
+import com.lightattachment.smtp.streamed.StreamedMailParser;
+import com.lightattachment.smtp.streamed.StreamedSmtpMessage;
 import com.lightattachment.stats.SendErrorReportThread;
-import com.lightattachment.stats.StoppableThread;
 
 /**
  * Distribute the messages to the right LightAttachment's component.
@@ -28,16 +39,7 @@ import com.lightattachment.stats.StoppableThread;
 public class MailManager extends Thread {
 
 	/** The messages queue filled by a <code>StreamedMailParser</code> instance. */
-	private ArrayList<MailSet> toSaveQueue;	
-
-	/** Processed messages to send back to Postfix. */
-	private ArrayList<MailSet> toInjectBackQueue;
-	
-	/** Not processed messages to send back to Postfix. */
-	private ArrayList<MailSet> toInjectBackFromFileQueue;
-	
-	/** Messages to remove from the disk. */
-	private ArrayList<MailSet> toCleanQueue;
+	private PipelineQueue<MailSet> toSaveQueue;	
 	
 	/** Messages hold in the <code>toSaveQueue</code> are pushed to this instance of <code>AttachmentSaver</code>. */
 	private AttachmentSaver attachmentSaver;
@@ -45,14 +47,32 @@ public class MailManager extends Thread {
 	/** <code>SMTPPostfixOutputConnector</code> pool. */
 	private ArrayList<SMTPPostfixOutputConnector> outputPool;
 	
-	/** <code>InjectBackThread</code> pool. */
-	private ArrayList<InjectBackThread> injectPool;
+	/** Connections to Postfix not used by any unit of work, in <code>virtual</code> mode. */
+	private LinkedBlockingQueue<SMTPPostfixOutputConnector> idleOutputs;
+	
+	/** Inject back each <code>MailSet</code> with an <code>InjectBackHandler</code>. 
+	 * Processed messages and not processed messages share its queue. */
+	private WorkerPool<MailSet> injectPool;
+	
+	/** Clean each sent <code>MailSet</code> with an <code>InjectBackHandler</code>.
+	 * Its queue is not bounded: it is filled by the threads sending the messages, which must never wait for the
+	 * inject back workers, themselves waiting for the sending threads. */
+	private WorkerPool<MailSet> cleanPool;
+	
+	/** Push the <code>MailSet</code>s deferred by Postfix to the inject back queue again, once their delay is over. */
+	private ScheduledThreadPoolExecutor retries;
 	
-	/** Count <code>InjectBackThread</code> running instance. */
-	public static int injectRunning = 0;
+	/** Number of <code>MailSet</code>s waiting for their delay to be sent again. */
+	private AtomicInteger retrying;
 	
 	/** Set to <code>false</code> to shutdown the <code>MailManager</code>. */
-	private boolean working;
+	private volatile boolean working;
+	
+	/** Journal of the stages reached by the mails in the spool. */
+	private Journal journal;
+	
+	/** Mails found in the journal at startup, resumed by <code>recover</code>. */
+	private ArrayList<Journal.Entry> recovered;
 	
 	/** Logger used to trace activity. */
 	static Logger log = Logger.getLogger(MailManager.class);
@@ -61,160 +81,174 @@ public class MailManager extends Thread {
 	 * Onced initialized, it launch an instance of <code>AttachmentSaver</code>. */
 	public MailManager() {
 		super();
-		this.toSaveQueue = new ArrayList<MailSet>();
-		this.toInjectBackQueue = new ArrayList<MailSet>();
-		this.toInjectBackFromFileQueue = new ArrayList<MailSet>();
-		this.toCleanQueue = new ArrayList<MailSet>();
+		this.journal = new Journal(LightAttachment.config.getString("directory.journal[@file]", "mails.journal"),
+				LightAttachment.config.getLong("directory.journal[@max-size]", Journal.DEFAULT_MAX_SIZE),
+				LightAttachment.config.getBoolean("directory.journal", false));
+		try {
+			this.recovered = journal.open();
+		} catch (IOException e) {
+			log.error(e.getMessage(),e);
+			e.printStackTrace();
+			SendErrorReportThread sert = new SendErrorReportThread(null,
+					"Journal couldn't be opened: the mails in the spool are not resumed.",e);
+			sert.start();
+			this.journal = new Journal(LightAttachment.config.getString("directory.journal[@file]", "mails.journal"), 0, false);
+			this.recovered = new ArrayList<Journal.Entry>();
+		}
+		this.toSaveQueue = new PipelineQueue<MailSet>("MailManager");
 		this.outputPool = new ArrayList<SMTPPostfixOutputConnector>();
-		this.injectPool = new ArrayList<InjectBackThread>();
+		this.idleOutputs = new LinkedBlockingQueue<SMTPPostfixOutputConnector>();
+		this.injectPool = new WorkerPool<MailSet>("InjectBackThread", LightAttachment.config.getInt("message.output-limit"), 
+				new InjectBackHandler());
+		this.cleanPool = new WorkerPool<MailSet>("CleanThread", LightAttachment.config.getInt("message.output-limit"), 
+				Integer.MAX_VALUE, new InjectBackHandler());
+		this.retries = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "InjectBackRetry");
+			}
+		});
+		this.retrying = new AtomicInteger();
 		this.attachmentSaver = new AttachmentSaver(this);
 		this.attachmentSaver.start();
 		this.working = true;
+		warmUp();
+	}
+	
+	/** Open the <code>postfix.out-address[@warm]</code> connections to Postfix, so that the first messages
+	 * don't wait for a connection. */
+	private void warmUp() {
+		int warm = Math.min(LightAttachment.config.getInt("postfix.out-address[@warm]", 0), 
+				LightAttachment.config.getInt("message.output-limit"));
+		for (int i = 0; i < warm; i++) {
+			try {
+				SMTPPostfixOutputConnector output = new SMTPPostfixOutputConnector(LightAttachment.config.getString("postfix.out-address[@host]"),
+						LightAttachment.config.getInt("postfix.out-address[@port]"));
+				if (WorkerPool.isVirtual()) idleOutputs.add(output);
+				else output.start();
+				outputPool.add(output);
+			} catch (IOException e) {
+				log.error(e.getMessage(),e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(null,
+						"Error while initiating connection to Postfix.",e);
+				sert.start();
+				break;
+			}
+		}
 	}
 	
 	/** Safely shutdown the instance. */
 	public synchronized void shutdown() throws IOException, InterruptedException, MessagingException {
 		for (SMTPPostfixOutputConnector o : outputPool) o.shutdown();
-		for (InjectBackThread i : injectPool) i.shutdown();
+		retries.shutdownNow();
+		if (retrying.get() > 0) log.warn(retrying.get() + " mail(s) deferred by Postfix kept in the spool until the next start");
+		injectPool.shutdown();
+		cleanPool.shutdown();
 		working = false;
 		attachmentSaver.shutdown();
+		journal.close();
+		PipelineQueue.report();
 		log.info("MailManager stopped");		
 	}
 	
-	/** Push a new <code>MailSet</code> to save. 
-	 * @param mail the <code>MailSet</code> to save */
-	public synchronized void push(MailSet mail) {
-		if (mail != null) {
-			toSaveQueue.add(mail);
+	/** Resume the mails found in the journal at startup, at the last stage they completed:
+	 * <ul>
+	 * <li>received mails are parsed again;</li>
+	 * <li>parsed mails are saved again (the attachments already saved are only looked up on e-BigSend), or forwarded
+	 * if they were to be forwarded;</li>
+	 * <li>mails sent to some recipients are only sent to the others;</li>
+	 * <li>mails sent to every recipient are removed from the spool.</li>
+	 * </ul>
+	 * Must be called before any mail is received.
+	 * @param parser the parser of the received mails */
+	public void recover(StreamedMailParser parser) throws IOException, MessagingException, InterruptedException {
+		for (Journal.Entry e : recovered) {
+			boolean exist = true;
+			for (String f : e.getOriginals()) if (!new File(f).exists()) exist = false;
+			
+			if (e.getTo().length() == 0) {
+				log.info("Mail " + e.getId() + " was sent before the restart and is removed from the spool");
+				MailSet set = new MailSet();
+				set.getOriginalMessages().addAll(e.getOriginals());
+				set.setParts(e.getParts());
+				delete(set);
+				journal.cleaned(e.getId());
+			} else if (!exist) {
+				log.error("Mail " + e.getId() + " from " + e.getFrom() + " to " + e.getTo() + " is missing from the spool and couldn't be resumed");
+				SendErrorReportThread sert = new SendErrorReportThread(null,
+						"Mail " + e.getId() + " from " + e.getFrom() + " to " + e.getTo() + " is missing from the spool and couldn't be resumed.",null);
+				sert.start();
+				journal.cleaned(e.getId());
+			} else if (e.getStage().equals(Journal.RECEIVED)) {
+				log.info("Mail " + e.getId() + " resumed after its reception");
+				StreamedSmtpMessage message = new StreamedSmtpMessage(e.getId());
+				message.setFrom(e.getFrom());
+				message.setTo(e.getTo());
+				parser.push(message);
+			} else {
+				MailSet set = new MailSet();
+				set.setFrom(e.getFrom());
+				set.setTo(e.getTo());
+				set.getOriginalMessages().addAll(e.getOriginals());
+				set.setParts(e.getParts());
+				
+				String mailFilename = null;
+				for (String filename : e.getParts().keySet()) if (filename.endsWith("-message")) mailFilename = filename;
+				if (mailFilename == null || !new File(mailFilename).exists()) {
+					log.info("Mail " + e.getId() + " resumed after its parsing and will be forwarded");
+					pushToInjectFromFile(set);
+				} else {
+					log.info("Mail " + e.getId() + " resumed after its parsing");
+					SharedFileInputStream source = new SharedFileInputStream(mailFilename);
+					MimeMessage mime = new MimeMessage(Session.getDefaultInstance(new Properties()), source);
+					set.setMessage(mime);
+					set.setMessageSource(source);
+					set.setMessageID(mime.getMessageID());
+					push(set);
+				}
+			}
 		}
+		if (recovered.size() > 0) log.info(recovered.size() + " mail(s) resumed from the journal");
+		recovered.clear();
 	}
 	
-	/** Return the first value of the save queue without removing it.
-	 * @return the first value of the save queue */
-	@SuppressWarnings("unused")
-	private synchronized MailSet peek() {
-		if (toSaveQueue.size() > 0)
-			return toSaveQueue.get(0);
-		else 
-			return null;
-	}
-	
-	/** Return the first value of the save queue and remove it.
-	 * If a <code>StreamedMailParser.STOP</code> is popped, the manager is shutdowned.
-	 * @return the first value of the save queue */
-	private synchronized MailSet pop() throws IOException, InterruptedException, MessagingException { 
-		if (toSaveQueue.size() > 0) {			
-			MailSet ms = toSaveQueue.get(0);
-			toSaveQueue.remove(0);
-			
-			if (ms != null) return ms;
-			else return null;
-		} else return null;
+	/** Push a new <code>MailSet</code> to save, waiting for space if the queue is full. 
+	 * @param mail the <code>MailSet</code> to save */
+	public void push(MailSet mail) throws InterruptedException {
+		if (mail != null) {
+			toSaveQueue.put(mail);
+		}
 	}
 	
 	/** Push a <code>MailSet</code> to the inject back queue. 
 	 * @param set the <code>MailSet</code> to inject back to Postfix. */
-	public void pushToInject(MailSet set) throws MessagingException {	
+	public void pushToInject(MailSet set) throws InterruptedException {	
 		if (set != null) {			
-			toInjectBackQueue.add(set);			
+			set.setFromFile(false);
+			set.setClean(false);
+			injectPool.push(set);
 		}
 	}
 	
 	/** Push a <code>MailSet</code> to the inject back queue. 
 	 * The messages pushed to the queue with this method will be forwarded as received.
 	 * @param set the <code>MailSet</code> to inject back to Postfix. */
-	public void pushToInjectFromFile(MailSet set) throws MessagingException {		
-		if (set != null) {			
-			toInjectBackFromFileQueue.add(set);			
-		}
-	}
-	
-	public void pushToClean(MailSet set) throws MessagingException {		
-		if (set != null) {			
-			toCleanQueue.add(set);			
-		}
-	}
-	
-	/** Return the first value of the inject back queue without removing it.
-	 * @return the first value of the inject back queue */
-	@SuppressWarnings("unused")
-	private synchronized MailSet peekToInject() {		
-		if (toInjectBackQueue.size() > 0)
-			return toInjectBackQueue.get(0);
-		else
-			return null;
-	}
-	
-	/** Return the first value of the inject back queue and remove it.
-	 * @return the first value of the inject back queue. */
-	private synchronized MailSet popToInject() throws MessagingException { 
-		if (toInjectBackQueue.size() > 0) {			
-			MailSet ms = toInjectBackQueue.get(0);
-			toInjectBackQueue.remove(0);
-			return ms;
-		} else {
-			return null;
-		}
-	}	
-	
-	/** Return the first value of the inject back from file queue and remove it.
-	 * @return the first value of the inject back from file queue. */
-	private synchronized MailSet popToInjectFromFile() throws MessagingException { 
-		if (toInjectBackFromFileQueue.size() > 0) {			
-			MailSet ms = toInjectBackFromFileQueue.get(0);
-			toInjectBackFromFileQueue.remove(0);
-			return ms;
-		} else {
-			return null;
-		}
-	}
-	
-	private synchronized MailSet popToClean() throws MessagingException { 
-		if (toCleanQueue.size() > 0) {
-			MailSet ms = toCleanQueue.get(0);
-			toCleanQueue.remove(0);
-			return ms;
-		} else {
-			return null;
-		}
-	}
-	
-	/** Use an InjectBackThread which will inject back the specified <code>MailSet</code>.
-	 * @param set the <code>MailSet</code> to inject back. */
-	private synchronized void injectBack(MailSet set) throws IOException, MessagingException {		
+	public void pushToInjectFromFile(MailSet set) throws InterruptedException {		
 		if (set != null) {			
-			//InjectBackThread ibt = new InjectBackThread(false,false,set);
-			//ibt.start();
-			InjectBackThread ibt = selectInject();
-			set.setFromFile(false);
-			set.setClean(false);
-			ibt.push(set);
-		}
-	}
-	
-	/** Use an InjectBackThread which will inject back the specified <code>MailSet</code> as received.
-	 * @param set the <code>MailSet</code> to inject back. */
-	private synchronized void injectBackFromFile(MailSet set) throws IOException, MessagingException {		
-		if (set != null) {							
-			//InjectBackThread ibt = new InjectBackThread(false,true,set);
-			//ibt.start();
-			InjectBackThread ibt = selectInject();
 			set.setFromFile(true);
 			set.setClean(false);
-			ibt.push(set);
+			injectPool.push(set);
 		}
 	}
 	
-	/** Use an InjectBackThread which will clean the specified <code>MailSet</code> from the disk.
+	/** Push a <code>MailSet</code> to the clean queue, to clean it from the disk once sent. 
+	 * The queue is not bounded, so that it never waits.
 	 * @param set the <code>MailSet</code> to clean. */
-	private synchronized void injectBackToClean(MailSet set) throws IOException, MessagingException {		
-		if (set != null) {							
-			//InjectBackThread ibt = new InjectBackThread(true,false,set);
-			//ibt.start();
-			InjectBackThread ibt = selectInject();
+	public void pushToClean(MailSet set) throws InterruptedException {		
+		if (set != null) {			
 			set.setClean(true);
 			set.setFromFile(false);
-			ibt.push(set);
+			cleanPool.push(set);
 		}
 	}
 	
@@ -250,33 +284,107 @@ public class MailManager extends Thread {
 		return output;
 	}
 	
-	/** Select a <code>InjectBackThread</code> in <code>injectPool</code>.
-	 * If the pool is empty, creates a new thread and return it.
-	 * Else if one the thread is free, return it.
-	 * Else if limit not reached, creates a new thread and return it.
-	 * Else select the thread with the smaller queue and return it.
-	 * @return the selected <code>InjectBackThread</code> */
-	public synchronized InjectBackThread selectInject() {
-		if (injectPool.size() == 0) {
-			InjectBackThread ibt = new InjectBackThread();
-			ibt.start();
-			injectPool.add(ibt);
-			return ibt;
-		} else {
-			InjectBackThread ibt = null;
-			for (InjectBackThread i : injectPool) {
-				if (i.size() == 0) ibt = i;
-				else if (ibt == null) ibt = i;
-				else if (i.size() < ibt.size()) ibt = i;
+	/** Send a <code>MailSet</code> to Postfix. Register a <code>MailSet.CompletionListener</code> to know when it is sent.
+	 * In <code>virtual</code> mode, the calling thread sends the message with an idle connection, or a new one if
+	 * there is none. Else the message is pushed to a <code>SMTPPostfixOutputConnector</code> selected in <code>outputPool</code>.
+	 * @param set the <code>MailSet</code> to send */
+	private void output(MailSet set) throws SocketException, IOException, InterruptedException {
+		if (WorkerPool.isVirtual()) {
+			SMTPPostfixOutputConnector output = idleOutputs.poll();
+			if (output == null) {
+				output = new SMTPPostfixOutputConnector(LightAttachment.config.getString("postfix.out-address[@host]"),
+						LightAttachment.config.getInt("postfix.out-address[@port]"));
+				synchronized (this) {
+					outputPool.add(output);
+				}
 			}
-			
-			if (ibt.size() > 0 && injectPool.size() < LightAttachment.config.getInt("message.output-limit")) {
-				ibt = new InjectBackThread();
-				ibt.start();
-				injectPool.add(ibt);
+			try {
+				output.deliver(set);
+			} finally {
+				idleOutputs.add(output);
 			}
-			
-			return ibt;
+		} else {
+			SMTPPostfixOutputConnector spoc = selectOutput();
+			spoc.push(set);
+		}
+	}
+	
+	/** Push a <code>MailSet</code> deferred by Postfix to the inject back queue again once a delay is over.
+	 * It is sent with the listeners registered for its first attempt.
+	 * @param set the <code>MailSet</code> to send again
+	 * @param wait the delay in milliseconds */
+	private void retry(final MailSet set, long wait) {
+		retrying.incrementAndGet();
+		try {
+			retries.schedule(new Runnable() {
+				public void run() {
+					try {
+						injectPool.push(set);
+					} catch (InterruptedException e) {
+						log.error(e.getMessage(), e);
+						e.printStackTrace();
+						SendErrorReportThread sert = new SendErrorReportThread(set, "Error while injecting back to Postfix.", e);
+						sert.start();
+					} finally {
+						retrying.decrementAndGet();
+					}
+				}
+			}, wait, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutdown: the journal resumes it on the next start
+			retrying.decrementAndGet();
+			log.warn("Mail "+set.hashCode()+" deferred by Postfix kept in the spool until the next start");
+		}
+	}
+	
+	/** Return the number of mails waiting to be saved or being saved, and of attachments being uploaded.
+	 * @return the number of mails and attachments */
+	public int getSaveDepth() {
+		return toSaveQueue.size() + attachmentSaver.getDepth();
+	}
+
+	/** Return the number of mails waiting to be sent back to Postfix or being sent, including the mails deferred by
+	 * Postfix waiting for their delay.
+	 * @return the number of mails */
+	public synchronized int getInjectDepth() {
+		int depth = injectPool.getOutstanding() + retrying.get();
+		for (SMTPPostfixOutputConnector o : outputPool) depth += o.size();
+		return depth;
+	}
+
+	public Journal getJournal() {
+		return journal;
+	}
+	
+	/** Record a journal stage of a <code>MailSet</code>, reporting the errors.
+	 * It doesn't wait for the record to be on the disk, so that it may be called by a completion listener.
+	 * @param set the <code>MailSet</code>
+	 * @param stage <code>Journal.INJECTED</code> or <code>Journal.CLEANED</code> */
+	private void journal(MailSet set, String stage) {
+		try {
+			if (stage.equals(Journal.INJECTED)) journal.injected(set);
+			else journal.cleaned(Journal.id(set));
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			log.error(e.getMessage(), e);
+			e.printStackTrace();
+		}
+	}
+	
+	/** Remove the files of a <code>MailSet</code> from the disk.
+	 * @param set the <code>MailSet</code> */
+	private static void delete(MailSet set) {
+		for (String key : set.getParts().keySet()) {
+			long size = new File(set.getParts().get(key)).length();
+			long size2 = new File(key).length();
+			if (SpoolSpaceManager.get().delete(set.getParts().get(key))) log.info("Temporary file "+set.getParts().get(key)+" of "+size+" bytes deleted");
+			if (SpoolSpaceManager.get().delete(key)) log.info("Temporary file "+key+" of "+size2+" bytes deleted");
+		}
+		for (String orig : set.getOriginalMessages()) {
+			long size = new File(orig).length();
+			if (SpoolSpaceManager.get().delete(orig)) log.info("Temporary file "+orig+" of "+size+" bytes deleted");
 		}
 	}
 	
@@ -292,25 +400,10 @@ public class MailManager extends Thread {
 			
 			try {				
 				
-				injectBackFromFile(this.popToInjectFromFile());
-				injectBack(this.popToInject());
-				injectBackToClean(this.popToClean());
-				attachmentSaver.push(this.pop());
+				ArrayList<MailSet> sets = new ArrayList<MailSet>();
+				toSaveQueue.drainTo(sets, toSaveQueue.getCapacity(), 100, TimeUnit.MILLISECONDS);
+				for (MailSet set : sets) attachmentSaver.push(set);
 				
-				sleep(100);
-				
-			} catch (IOException e) {
-				log.error(e.getMessage(),e);
-				e.printStackTrace();
-				SendErrorReportThread sert = new SendErrorReportThread(null,
-						"MailManager failed.",e);
-				sert.start();
-			} catch (MessagingException e) {
-				log.error(e.getMessage(),e);
-				e.printStackTrace();
-				SendErrorReportThread sert = new SendErrorReportThread(null,
-						"MailManager failed.",e);
-				sert.start();
 			} catch (InterruptedException e) {
 				log.error(e.getMessage(),e);
 				e.printStackTrace();
@@ -323,94 +416,40 @@ public class MailManager extends Thread {
 	}		
 	
 	/** Used to inject back <code>MailSet</code>. */
-	private class InjectBackThread extends StoppableThread {
-		
-		/** The <code>MailSet</code>s to inject back. */
-		private ArrayList<MailSet> queue;
+	private class InjectBackHandler implements WorkerPool.Handler<MailSet> {
 		
-		/** Build a <code>InjectBackThread</code>. */
-		public InjectBackThread() {
-			super();
-			this.queue = new ArrayList<MailSet>();
-			injectRunning++;
-			System.err.println("InjectBackThread++ count: "+injectRunning);
-		}
-
-		/** Shutdown the instance. */
-		public void shutdown() {
-			setDone(true);
-			injectRunning--;
-			System.err.println("InjectBackThread-- count: "+injectRunning);
-		}
-		
-		/** Return the queue size.
-		 * @return the queue size */
-		public int size() {
-			return queue.size();
-		}
-		
-		/** Add a <code>MailSet</code> to the queue.
-		 * @param set the <code>MailSet</code> to add */
-		public void push(MailSet set) {
-			if (set != null) queue.add(set);
-		}
-		
-		/** Return the first <code>MailSet</code> of the queue without removing it.
-		 * @return the first <code>MailSet</code> of the queue */
-		public MailSet peek() {
-			if (queue.size() > 0) return queue.get(0);
-			else return null;
-		}
-		
-		@Override
-		public void run() {
-			super.run();
-
-			while (!isDone()) {
-				MailSet set = peek();
-				if (set != null) {
-					try {
+		public void handle(MailSet set) {
+			try {
 
-						if (set.isClean()) injectBackToClean(set);
-						else if (set.isFromFile()) injectBackFromFile(set);
-						else injectBack(set);
+				if (set.isClean()) injectBackToClean(set);
+				else if (set.getRefusal() != 0) output(set);
+				else if (set.isFromFile()) injectBackFromFile(set);
+				else injectBack(set);
 
-						queue.remove(set);
-					} catch (IOException e) {
-						log.error(e.getMessage(), e);
-						e.printStackTrace();
-						SendErrorReportThread sert = new SendErrorReportThread(set, "Error while injecting back to Postfix.", e);
-						sert.start();
-					} catch (MessagingException e) {
-						log.error(e.getMessage(), e);
-						e.printStackTrace();
-						SendErrorReportThread sert = new SendErrorReportThread(set, "Error while injecting back to Postfix.", e);
-						sert.start();
-					} catch (InterruptedException e) {
-						log.error(e.getMessage(), e);
-						e.printStackTrace();
-						SendErrorReportThread sert = new SendErrorReportThread(set, "Error while injecting back to Postfix.", e);
-						sert.start();
-					}
-				} else {
-					try {
-						sleep(100);
-					} catch (InterruptedException e) {
-						log.error(e.getMessage(), e);
-						e.printStackTrace();
-						SendErrorReportThread sert = new SendErrorReportThread(set, "Error while injecting back to Postfix.", e);
-						sert.start();
-					}
-				}
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(set, "Error while injecting back to Postfix.", e);
+				sert.start();
+			} catch (MessagingException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(set, "Error while injecting back to Postfix.", e);
+				sert.start();
+			} catch (InterruptedException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(set, "Error while injecting back to Postfix.", e);
+				sert.start();
 			}
 		}
 		
-		/** Inject back a <code>MailSet</code> by using a <code>SMTPPostfixOutputConnector</code> and pushing to it the <code>MailSet</code>.
+		/** Inject back a <code>MailSet</code> by sending it to Postfix.
 		 * @param set the <code>MailSet</code> to inject back. 
 		 * @throws InterruptedException */
-		private synchronized void injectBack(MailSet set) throws IOException, MessagingException, InterruptedException {					
+		private void injectBack(MailSet set) throws IOException, MessagingException, InterruptedException {					
 			if (set != null) {
-				long begin = System.currentTimeMillis();
+				final long begin = System.currentTimeMillis();
 				long min = new File(set.getOriginalMessages().get(0)).length();
 				for (String f : set.getOriginalMessages()) {
 					File fl = new File(f);
@@ -422,54 +461,114 @@ public class MailManager extends Thread {
 					log.warn("This could leads to performance issues, please restart LightAttachment as soon as possible.");
 				}
 				
-				SMTPPostfixOutputConnector spoc = selectOutput();
 				set.setFromFile(false);
-				spoc.push(set);
-
-				while (!set.isSent()) sleep(100);
-				//setDone(true);
-				long end = System.currentTimeMillis();
-				log.info("Mail "+set.hashCode()+" injected back to Postfix in "+(end-begin)+" ms");
+				set.setSent(false);
+				set.addCompletionListener(new MailSet.CompletionListener() {
+					public void completed(MailSet set) {
+						long end = System.currentTimeMillis();
+						log.info("Mail "+set.hashCode()+" injected back to Postfix in "+(end-begin)+" ms");
+						journal(set, Journal.INJECTED);
+					}
+				});
+				handleRefusals(set);
+				output(set);
 			}
 		}
 		
-		/** Inject back a <code>MailSet</code> by using a <code>SMTPPostfixOutputConnector</code> and pushing 
-		 * to it the <code>MailSet</code>.
+		/** Inject back a <code>MailSet</code> as received.
 		 * @param set the <code>MailSet</code> to inject back. 
 		 * @throws InterruptedException */
-		private synchronized void injectBackFromFile(MailSet set) throws IOException, MessagingException, InterruptedException {					
+		private void injectBackFromFile(MailSet set) throws IOException, MessagingException, InterruptedException {					
 			if (set != null) {				
-				long begin = System.currentTimeMillis();	
+				final long begin = System.currentTimeMillis();	
 				
-				SMTPPostfixOutputConnector spoc = selectOutput();
 				set.setFromFile(true);
-				spoc.push(set);
-				
-				while (!set.isSent()) sleep(100);
-				//setDone(true);
-				long end = System.currentTimeMillis();
-				log.info("Mail "+set.hashCode()+" injected back to Postfix unchanged in "+(end-begin)+" ms");
+				set.setSent(false);
+				set.addCompletionListener(new MailSet.CompletionListener() {
+					public void completed(MailSet set) {
+						long end = System.currentTimeMillis();
+						log.info("Mail "+set.hashCode()+" injected back to Postfix unchanged in "+(end-begin)+" ms");
+						journal(set, Journal.INJECTED);
+						// A mail forwarded without being saved has no other file to clean
+						if (set.getParts().size() == 0) journal(set, Journal.CLEANED);
+					}
+				});
+				handleRefusals(set);
+				output(set);
 			}
 		}
 		
-		/** Clean a <code>MailSet</code> from the disk.
-		 * @param set the <code>MailSet</code> to clean.
-		 * @throws InterruptedException */
-		private synchronized void injectBackToClean(MailSet set) throws InterruptedException {			
+		/** Handle the refusals of a <code>MailSet</code> by Postfix:
+		 * <ul>
+		 * <li>a temporary refusal (4xx) is sent again after <code>postfix.out-address[@retry-wait]</code> milliseconds,
+		 * up to <code>postfix.out-address[@retry]</code> times, then the mail is kept in the spool until the next start;</li>
+		 * <li>a permanent refusal (5xx) is reported and the mail is given up: it is marked as sent, so that it is
+		 * journaled as injected and cleaned from the spool instead of being refused again on every start.</li>
+		 * </ul>
+		 * @param set the <code>MailSet</code> to send */
+		private void handleRefusals(MailSet set) {
+			set.addRefusalListener(new MailSet.RefusalListener() {
+				private int attempts = 0;
+				public void refused(MailSet set, int code) {
+					if (code >= 500) {
+						log.error("Mail "+set.hashCode()+" rejected by Postfix with "+code+", removed from the spool");
+						SendErrorReportThread sert = new SendErrorReportThread(set,
+								"Mail rejected by Postfix with "+code+": it has been removed from the spool.", null);
+						sert.start();
+						// A mail forwarded without being saved has no other clean, like once Postfix took it over
+						if (set.isFromFile() && set.getParts().size() == 0) delete(set);
+						set.setSent(true);
+					} else if (++attempts <= LightAttachment.config.getInt("postfix.out-address[@retry]", 5)) {
+						long wait = LightAttachment.config.getLong("postfix.out-address[@retry-wait]", 60000);
+						log.warn("Mail "+set.hashCode()+" deferred by Postfix with "+code+", sent again in "+wait+" ms (attempt #"+attempts+")");
+						retry(set, wait);
+					} else {
+						log.error("Mail "+set.hashCode()+" deferred by Postfix with "+code+", kept in the spool until the next start");
+						SendErrorReportThread sert = new SendErrorReportThread(set,
+								"Mail deferred by Postfix with "+code+": it is kept in the spool until the next start.", null);
+						sert.start();
+					}
+				}
+			});
+		}
+		
+		/** Clean a <code>MailSet</code> from the disk once it is sent.
+		 * If it is not sent yet, it is pushed again to the clean queue once sent, so that the thread sending it
+		 * doesn't delete the files.
+		 * @param set the <code>MailSet</code> to clean. */
+		private void injectBackToClean(MailSet set) {			
 			if (set != null) {
-				long begin = System.currentTimeMillis();
-				while (!set.isSent()) sleep(100);
-				for (String key : set.getParts().keySet()) {
-					long size = new File(set.getParts().get(key)).length();
-					long size2 = new File(key).length();
-					if (new File(set.getParts().get(key)).delete()) log.info("Temporary file "+set.getParts().get(key)+" of "+size+" bytes deleted");
-					if (new File(key).delete()) log.info("Temporary file "+key+" of "+size2+" bytes deleted");
+				if (set.isSent()) {
+					clean(set, System.currentTimeMillis());
+				} else {
+					set.addCompletionListener(new MailSet.CompletionListener() {
+						public void completed(MailSet set) {
+							try {
+								pushToClean(set);
+							} catch (InterruptedException e) {
+								log.error(e.getMessage(), e);
+								e.printStackTrace();
+								SendErrorReportThread sert = new SendErrorReportThread(set, "Error while cleaning message.", e);
+								sert.start();
+							}
+						}
+					});
 				}
-				for (String orig : set.getOriginalMessages()) {
-					long size = new File(orig).length();
-					if (new File(orig).delete()) log.info("Temporary file "+orig+" of "+size+" bytes deleted");
+			}
+		}
+		
+		/** Remove a sent <code>MailSet</code> from the disk.
+		 * @param set the <code>MailSet</code> to clean.
+		 * @param begin the time the clean was requested */
+		private void clean(MailSet set, long begin) {
+			if (set != null) {
+				try {
+					set.close();
+				} catch (IOException e) {
+					log.error(e.getMessage(), e);
 				}
-				set.setSent(true);
+				delete(set);
+				journal(set, Journal.CLEANED);
 				
 				//setDone(true);
 				long end = System.currentTimeMillis();
@@ -1,5 +1,7 @@
 package com.lightattachment.mails;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 
@@ -18,6 +20,30 @@ import javax.mail.internet.MimeMessage;
 
 public class MailSet {
 	
+	/** Notified once a <code>MailSet</code> has been sent back to Postfix.
+	 * Listeners are run synchronously by the thread marking the <code>MailSet</code> sent (a connection to Postfix),
+	 * or by the thread registering them if it is already sent. They must not block: any work that may wait (for a
+	 * queue, the disk, the network) must be pushed to a non-blocking queue and done by another thread. */
+	public interface CompletionListener {
+		
+		/** Called once the <code>MailSet</code> has been sent, by the thread which sent it. Must not block.
+		 * @param set the sent <code>MailSet</code> */
+		public void completed(MailSet set);
+		
+	}
+	
+	/** Notified each time Postfix refuses a <code>MailSet</code>.
+	 * Listeners are run synchronously by the thread sending the <code>MailSet</code> (a connection to Postfix), and
+	 * must not block like the <code>CompletionListener</code>s. */
+	public interface RefusalListener {
+		
+		/** Called once Postfix has refused the <code>MailSet</code>, by the thread which sent it. Must not block.
+		 * @param set the refused <code>MailSet</code>
+		 * @param code the reply code of the refusal */
+		public void refused(MailSet set, int code);
+		
+	}
+	
 	/** The original message ID.
 	 * Set to <code>StreamedMailParser.STOP</code> to stop LightAttachment components. */
 	private String messageID;
@@ -25,6 +51,9 @@ public class MailSet {
 	/** The final message without attachment. */
 	private MimeMessage message;
 	
+	/** The stream <code>message</code> is read from, if any. */
+	private InputStream messageSource;
+	
 	/** Message envelope <code>from</code>. */
 	private String from;
 	
@@ -34,6 +63,15 @@ public class MailSet {
 	/** When set to true, the MailSet is pushedToClean (deleted).*/ 
 	private boolean sent;
 	
+	/** Listeners to notify when the <code>MailSet</code> is sent. */
+	private ArrayList<CompletionListener> listeners;
+	
+	/** Reply code of the last refusal of the <code>MailSet</code> by Postfix, or 0. */
+	private int refusal;
+	
+	/** Listeners to notify when the <code>MailSet</code> is refused. */
+	private ArrayList<RefusalListener> refusalListeners;
+	
 	/** <code>true</code> if must be injected back from files. */
 	private boolean fromFile;
 	
@@ -44,6 +82,10 @@ public class MailSet {
 	 * Couples of <code>real file name</code> - <code>original file name</code>. */
 	private LinkedHashMap<String,String> parts;
 
+	/** MD5 digests of the attachment files computed while they were extracted.
+	 * Couples of <code>real file name</code> - <code>digest</code>. */
+	private LinkedHashMap<String,byte[]> digests;
+
 	/** Contains original messages file names.
 	 * Used if the message is too small, too large or failed to be saved. */
 	private ArrayList<String> originalMessages;
@@ -51,7 +93,10 @@ public class MailSet {
 	/** Build a <code>MailSet</code> from scratch. */
 	public MailSet() {
 		this.parts = new LinkedHashMap<String, String>();
+		this.digests = new LinkedHashMap<String, byte[]>();
 		this.originalMessages = new ArrayList<String>();
+		this.listeners = new ArrayList<CompletionListener>();
+		this.refusalListeners = new ArrayList<RefusalListener>();
 		messageID = null;
 		message = null;
 		from = null;
@@ -68,7 +113,10 @@ public class MailSet {
 	 * @param partial <code>true</code> if the message has been sent in several <code>message/partial</code> mails. */
 	public MailSet(String id, String from, String to, boolean partial) {
 		this.parts = new LinkedHashMap<String, String>();
+		this.digests = new LinkedHashMap<String, byte[]>();
 		this.originalMessages = new ArrayList<String>();
+		this.listeners = new ArrayList<CompletionListener>();
+		this.refusalListeners = new ArrayList<RefusalListener>();
 		this.messageID = id;
 		this.message = null;
 		this.from = from;
@@ -83,7 +131,10 @@ public class MailSet {
 	 * @param to the message <code>to</code> envelope. */
 	public MailSet(String id, MimeMessage message, String from, String to) {
 		this.parts = new LinkedHashMap<String, String>();
+		this.digests = new LinkedHashMap<String, byte[]>();
 		this.originalMessages = new ArrayList<String>();
+		this.listeners = new ArrayList<CompletionListener>();
+		this.refusalListeners = new ArrayList<RefusalListener>();
 		this.messageID = id;
 		this.message = message;
 		this.from = from;
@@ -98,6 +149,20 @@ public class MailSet {
 		parts.put(filename, name);
 	}
 
+	/** Set the MD5 digest of an attachment.
+	 * @param filename the real file name.
+	 * @param digest the MD5 digest of the file. */
+	public void setDigest(String filename, byte[] digest) {
+		digests.put(filename, digest);
+	}
+
+	/** Return the MD5 digest of an attachment.
+	 * @param filename the real file name.
+	 * @return the MD5 digest of the file, or <code>null</code> if it wasn't computed during extraction */
+	public byte[] getDigest(String filename) {
+		return digests.get(filename);
+	}
+
 	/** Return a copy of the current instance.
 	 * @return a copy of the current instance */
 	@SuppressWarnings("unchecked")
@@ -107,6 +172,7 @@ public class MailSet {
 		clone.setFrom(new String(from));
 		clone.setTo(new String(to));
 		clone.setParts((LinkedHashMap<String,String>)parts.clone());
+		clone.digests = (LinkedHashMap<String,byte[]>)digests.clone();
 		try {
 			clone.setMessage(new MimeMessage(message));
 		} catch (MessagingException e) {
@@ -140,6 +206,18 @@ public class MailSet {
 		this.message = message;
 	}
 	
+	public void setMessageSource(InputStream messageSource) {
+		this.messageSource = messageSource;
+	}
+	
+	/** Close the stream <code>message</code> is read from, once the message is not needed anymore. */
+	public void close() throws IOException {
+		if (messageSource != null) {
+			messageSource.close();
+			messageSource = null;
+		}
+	}
+	
 	public int getAttachmentNumber() {
 		return parts.size();
 	}
@@ -168,12 +246,58 @@ public class MailSet {
 		originalMessages = originals;
 	}
 
-	public boolean isSent() {
+	public synchronized boolean isSent() {
 		return sent;
 	}
 
+	/** Set the sent state of the <code>MailSet</code>.
+	 * When it becomes sent, the registered listeners are notified by the calling thread and forgotten.
+	 * @param sent <code>true</code> if the <code>MailSet</code> has been sent */
 	public void setSent(boolean sent) {
-		this.sent = sent;
+		ArrayList<CompletionListener> notified = null;
+		synchronized (this) {
+			if (sent && !this.sent && listeners.size() > 0) {
+				notified = listeners;
+				listeners = new ArrayList<CompletionListener>();
+			}
+			this.sent = sent;
+		}
+		if (notified != null) for (CompletionListener l : notified) l.completed(this);
+	}
+	
+	/** Register a listener notified once the <code>MailSet</code> is sent.
+	 * If it is already sent, the listener is notified immediately by the calling thread.
+	 * @param listener the listener to notify */
+	public void addCompletionListener(CompletionListener listener) {
+		boolean notify;
+		synchronized (this) {
+			notify = sent;
+			if (!notify) listeners.add(listener);
+		}
+		if (notify) listener.completed(this);
+	}
+
+	public synchronized int getRefusal() {
+		return refusal;
+	}
+
+	/** Set the reply code of the last refusal of the <code>MailSet</code> by Postfix.
+	 * When it is refused, the registered listeners are notified by the calling thread. They are kept for the next
+	 * attempts.
+	 * @param refusal the reply code of the refusal, or 0 once Postfix has accepted the <code>MailSet</code> */
+	public void setRefusal(int refusal) {
+		ArrayList<RefusalListener> notified = null;
+		synchronized (this) {
+			this.refusal = refusal;
+			if (refusal != 0) notified = new ArrayList<RefusalListener>(refusalListeners);
+		}
+		if (notified != null) for (RefusalListener l : notified) l.refused(this, refusal);
+	}
+	
+	/** Register a listener notified each time the <code>MailSet</code> is refused by Postfix.
+	 * @param listener the listener to notify */
+	public synchronized void addRefusalListener(RefusalListener listener) {
+		refusalListeners.add(listener);
 	}
 
 	public boolean isFromFile() {
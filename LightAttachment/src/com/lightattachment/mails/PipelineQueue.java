@@ -0,0 +1,181 @@
+package com.lightattachment.mails;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded blocking queue handing the units of work from a LightAttachment stage to the next one.
+ * Consumers block on <code>take</code>, <code>poll</code> or <code>drainTo</code> instead of polling the queue, and
+ * producers block on <code>put</code> once the queue is full. The capacity is given by <code>message.queue-capacity</code>.
+ * Each queue keeps its current and peak depth, and registers itself so that every queue of the pipeline
+ * can be reported with <code>report</code>. A queue whose stage stops before LightAttachment must be
+ * <code>close</code>d to be forgotten.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ * @param <E> the unit of work type
+ */
+
+public class PipelineQueue<E> {
+
+	/** Default capacity of a queue. */
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	/** Every queue created, in creation order. */
+	private static List<PipelineQueue<?>> queues = new ArrayList<PipelineQueue<?>>();
+
+	/** The name of the queue, used in the logs. */
+	private String name;
+
+	/** The queued units. */
+	private LinkedBlockingQueue<E> queue;
+
+	/** Maximum number of queued units. */
+	private int capacity;
+
+	/** Maximum depth reached. */
+	private volatile int peak;
+
+	/** Number of units pushed since the queue creation. */
+	private volatile long pushed;
+
+	/** Logger used to trace activity. */
+	static Logger log = Logger.getLogger(PipelineQueue.class);
+
+	/** Build a <code>PipelineQueue</code> of capacity <code>message.queue-capacity</code>.
+	 * @param name the name of the queue */
+	public PipelineQueue(String name) {
+		this(name, LightAttachment.config.getInt("message.queue-capacity", DEFAULT_CAPACITY));
+	}
+
+	/** Build a <code>PipelineQueue</code>.
+	 * @param name the name of the queue
+	 * @param capacity maximum number of queued units */
+	public PipelineQueue(String name, int capacity) {
+		this.name = name;
+		this.capacity = capacity;
+		this.queue = new LinkedBlockingQueue<E>(capacity);
+		this.peak = 0;
+		this.pushed = 0;
+		synchronized (queues) {
+			queues.add(this);
+		}
+	}
+
+	/** Push a unit, waiting for space if the queue is full.
+	 * @param unit the unit to push */
+	public void put(E unit) throws InterruptedException {
+		if (!queue.offer(unit)) {
+			log.warn("Queue "+name+" is full ("+capacity+" units), waiting for space");
+			queue.put(unit);
+		}
+		pushed(queue.size());
+	}
+
+	/** Push a unit if the queue is not full.
+	 * @param unit the unit to push
+	 * @return <code>false</code> if the queue is full */
+	public boolean offer(E unit) {
+		if (queue.offer(unit)) {
+			pushed(queue.size());
+			return true;
+		} else return false;
+	}
+
+	/** Account a pushed unit.
+	 * @param depth the depth of the queue after the push */
+	private synchronized void pushed(int depth) {
+		pushed++;
+		if (depth > peak) peak = depth;
+	}
+
+	/** Return the first unit and remove it, waiting until one is available.
+	 * @return the first unit */
+	public E take() throws InterruptedException {
+		return queue.take();
+	}
+
+	/** Return the first unit and remove it, waiting at most the specified time.
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of <code>timeout</code>
+	 * @return the first unit, or <code>null</code> if none arrived in time */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return queue.poll(timeout, unit);
+	}
+
+	/** Move the available units to a collection, without waiting.
+	 * @param c the collection receiving the units
+	 * @param max the maximum number of units to move
+	 * @return the number of units moved */
+	public int drainTo(Collection<? super E> c, int max) {
+		return queue.drainTo(c, max);
+	}
+
+	/** Move the available units to a collection, waiting at most the specified time for the first one.
+	 * @param c the collection receiving the units
+	 * @param max the maximum number of units to move
+	 * @param timeout the maximum time to wait for the first unit
+	 * @param unit the unit of <code>timeout</code>
+	 * @return the number of units moved */
+	public int drainTo(Collection<? super E> c, int max, long timeout, TimeUnit unit) throws InterruptedException {
+		E first = queue.poll(timeout, unit);
+		if (first == null) return 0;
+		c.add(first);
+		return 1 + queue.drainTo(c, max - 1);
+	}
+
+	/** Return the number of queued units.
+	 * @return the number of queued units */
+	public int size() {
+		return queue.size();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getPeak() {
+		return peak;
+	}
+
+	public long getPushed() {
+		return pushed;
+	}
+
+	@Override
+	public String toString() {
+		return name+": depth "+size()+"/"+capacity+", peak "+peak+", "+pushed+" pushed";
+	}
+
+	/** Unregister the queue once its stage is stopped, and log its depth a last time. */
+	public void close() {
+		synchronized (queues) {
+			if (!queues.remove(this)) return;
+		}
+		log.info("Queue "+this+" closed");
+	}
+
+	/** Return every queue of the pipeline.
+	 * @return every queue, in creation order */
+	public static List<PipelineQueue<?>> getQueues() {
+		synchronized (queues) {
+			return new ArrayList<PipelineQueue<?>>(queues);
+		}
+	}
+
+	/** Log the depth of every queue of the pipeline. */
+	public static void report() {
+		for (PipelineQueue<?> q : getQueues()) log.info("Queue "+q);
+	}
+
+}
@@ -8,8 +8,8 @@ import javax.mail.MessagingException;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
+import com.lightattachment.smtp.streamed.PostfixInputConnector;
 import com.lightattachment.smtp.streamed.StreamedMailParser;
-import com.lightattachment.smtp.streamed.StreamedSMTPPostfixInputConnector;
 import com.lightattachment.stats.StoppableThread;
 
 /** Shutdown hook called before the JVM terminates.
@@ -28,8 +28,8 @@ public class ShutdownHook extends Thread {
 	/** The current <code>StreamedMailParser</code>. */
 	private StreamedMailParser parser;
 	
-	/** The current <code>StreamedSMTPPostfixInputConnector</code>. */
-	private StreamedSMTPPostfixInputConnector input;
+	/** The current <code>PostfixInputConnector</code>. */
+	private PostfixInputConnector input;
 	
 	/** Logger used to trace activity. */
 	static Logger log = Logger.getLogger(ShutdownHook.class);
@@ -37,8 +37,8 @@ public class ShutdownHook extends Thread {
 	/** Build a <code>ShutdownHook</code>.
 	 * @param manager the <code>MailManager</code> to stop.
 	 * @param parser the <code>StreamedMailParser</code> to stop.
-	 * @param input the <code>StreamedSMTPPostfixInputConnector</code> to stop. */
-	public ShutdownHook(MailManager manager, StreamedMailParser parser, StreamedSMTPPostfixInputConnector input) {
+	 * @param input the <code>PostfixInputConnector</code> to stop. */
+	public ShutdownHook(MailManager manager, StreamedMailParser parser, PostfixInputConnector input) {
 		super();
 		this.manager = manager;
 		this.parser = parser;
@@ -50,11 +50,14 @@ public class ShutdownHook extends Thread {
 		super.run();	
 		try {
 			System.out.println("LightAttachment is shutting down...");
-			File delete = new File(LightAttachment.config.getString("directory.temp"));
-			for (String s : delete.list()) {
-				File f = new File(LightAttachment.config.getString("directory.temp")+s);
-				if (f.delete()) System.err.println(s+" is deleted on shutdown");
-				else System.err.println(s+" failed to be deleted on shutdown");
+			// The mails in the spool are resumed from the journal on restart
+			if (!LightAttachment.config.getBoolean("directory.journal", false)) {
+				File delete = new File(LightAttachment.config.getString("directory.temp"));
+				for (String s : delete.list()) {
+					File f = new File(LightAttachment.config.getString("directory.temp")+s);
+					if (f.delete()) System.err.println(s+" is deleted on shutdown");
+					else System.err.println(s+" failed to be deleted on shutdown");
+				}
 			}
 			
 			manager.shutdown();
@@ -0,0 +1,150 @@
+package com.lightattachment.mails;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Account for the space used in the spool (<code>directory.temp</code>), so that it is never overcommitted.
+ * The space the spool may use is measured once, when the instance is built: the usable space of its file system,
+ * plus the files already in the spool, minus the <code>directory.free-space</code> percentage to keep free.
+ * Then every file of the spool is charged its bytes:
+ * <ul>
+ * <li>a message being received reserves its space before writing it, and the reservation fails once the spool is
+ * full;</li>
+ * <li>the files written by the later stages (parsed message, attachments) are charged their size once written,
+ * since the mail was already accepted;</li>
+ * <li>the bytes charged to a file are released when it is deleted.</li>
+ * </ul>
+ * Each operation is a single atomic update, so that the spool is checked for every write instead of polling the file
+ * system.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class SpoolSpaceManager {
+
+	/** The instance shared by every stage. */
+	private static SpoolSpaceManager instance;
+
+	/** The space the spool may use, in bytes. */
+	private long capacity;
+
+	/** The bytes reserved or used in the spool. */
+	private AtomicLong used;
+
+	/** The bytes charged to each file of the spool. */
+	private ConcurrentHashMap<String, AtomicLong> files;
+
+	/** Logger used to trace activity. */
+	static Logger log = Logger.getLogger(SpoolSpaceManager.class);
+
+	/** Build a <code>SpoolSpaceManager</code> (needs <code>lightattachment.xml</code> config file). The files already in
+	 * the spool are charged their size. */
+	private SpoolSpaceManager() {
+		this.used = new AtomicLong();
+		this.files = new ConcurrentHashMap<String, AtomicLong>();
+
+		String temp = LightAttachment.config.getString("directory.temp");
+		File dir = new File(temp);
+		String[] list = dir.list();
+		if (list != null) {
+			for (String s : list) {
+				File f = new File(temp + s);
+				if (f.isFile()) {
+					files.put(temp + s, new AtomicLong(f.length()));
+					used.addAndGet(f.length());
+				}
+			}
+		}
+
+		long keep = (long) (dir.getTotalSpace() * (LightAttachment.config.getInt("directory.free-space") / 100.0));
+		this.capacity = Math.max(0, dir.getUsableSpace() + used.get() - keep);
+		log.info("Spool " + temp + " may use " + capacity + " bytes, " + used.get() + " bytes already used");
+	}
+
+	/** Return the instance shared by every stage, built on the first call.
+	 * @return the <code>SpoolSpaceManager</code> */
+	public static synchronized SpoolSpaceManager get() {
+		if (instance == null) instance = new SpoolSpaceManager();
+		return instance;
+	}
+
+	/** Return the bytes charged to a file, adding it if needed.
+	 * @param file the file name */
+	private AtomicLong account(String file) {
+		AtomicLong a = files.get(file);
+		if (a == null) {
+			a = new AtomicLong();
+			AtomicLong previous = files.putIfAbsent(file, a);
+			if (previous != null) a = previous;
+		}
+		return a;
+	}
+
+	/** Reserve space for a file, if the spool has enough left.
+	 * @param file the file name
+	 * @param bytes the number of bytes to reserve
+	 * @return <code>true</code> if the space is reserved, <code>false</code> if the spool is full */
+	public boolean reserve(String file, long bytes) {
+		long u;
+		do {
+			u = used.get();
+			if (u + bytes > capacity) return false;
+		} while (!used.compareAndSet(u, u + bytes));
+		account(file).addAndGet(bytes);
+		return true;
+	}
+
+	/** Charge a file its size once written, releasing the rest of its reservation if any. The spool is not checked:
+	 * the file belongs to a mail already accepted.
+	 * @param file the file name */
+	public void settle(String file) {
+		long length = new File(file).length();
+		long previous = account(file).getAndSet(length);
+		used.addAndGet(length - previous);
+	}
+
+	/** Release the bytes charged to a file.
+	 * @param file the file name */
+	public void release(String file) {
+		AtomicLong a = files.remove(file);
+		if (a != null) used.addAndGet(-a.get());
+	}
+
+	/** Delete a file of the spool and release its bytes.
+	 * @param file the file name
+	 * @return <code>true</code> if the file is deleted */
+	public boolean delete(String file) {
+		File f = new File(file);
+		boolean deleted = f.delete();
+		if (deleted || !f.exists()) release(file);
+		return deleted;
+	}
+
+	/** Return the bytes reserved or used in the spool.
+	 * @return the number of bytes */
+	public long getUsed() {
+		return used.get();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/** Return the bytes the spool may still use.
+	 * @return the number of bytes */
+	public long getFree() {
+		return Math.max(0, capacity - used.get());
+	}
+
+	@Override
+	public String toString() {
+		return "Spool: " + used.get() + " of " + capacity + " bytes used by " + files.size() + " file(s)";
+	}
+
+}
@@ -0,0 +1,280 @@
+package com.lightattachment.mails;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.lightattachment.stats.StoppableThread;
+
+/**
+ * Run the units of work of a LightAttachment stage (a SMTP session, a bulk to parse, a message to save...).
+ * Units are pushed to a <code>PipelineQueue</code> and executed according to <code>message.execution</code>:
+ * <ul>
+ * <li><code>pool</code> (default): up to <code>limit</code> <code>StoppableThread</code> workers are created on demand
+ * and take the units from the queue.</li>
+ * <li><code>virtual</code>: each unit is run by its own virtual thread (a new thread if the JVM doesn't provide
+ * virtual threads), at most <code>limit</code> units running at the same time.</li>
+ * </ul>
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ * @param <E> the unit of work type
+ */
+
+public class WorkerPool<E> {
+
+	/** Execute a unit of work. Implementations report their own errors. */
+	public interface Handler<E> {
+
+		/** Execute a unit of work.
+		 * @param unit the unit of work */
+		public void handle(E unit);
+
+	}
+
+	/** The name of the pool, used in the logs and to name the threads. */
+	private String name;
+
+	/** Execute the units of work. */
+	private Handler<E> handler;
+
+	/** Units of work waiting for a worker. */
+	private PipelineQueue<E> queue;
+
+	/** Maximum number of units running at the same time. */
+	private int limit;
+
+	/** <code>true</code> if each unit is run by its own virtual thread. */
+	private boolean virtual;
+
+	/** Enforce <code>limit</code> in <code>virtual</code> mode. */
+	private Semaphore permits;
+
+	/** Run the units in <code>virtual</code> mode. */
+	private Dispatcher dispatcher;
+
+	/** Workers of the <code>pool</code> mode. */
+	private ArrayList<Worker> workers;
+
+	/** Count running <code>pool</code> workers. */
+	private int running;
+
+	/** Units of work queued or running. */
+	private int outstanding;
+
+	/** Set to <code>false</code> to shutdown. */
+	private volatile boolean working;
+
+	/** Create the threads running the units in <code>virtual</code> mode. */
+	private static ThreadFactory taskFactory;
+
+	/** Logger used to trace activity. */
+	static Logger log = Logger.getLogger(WorkerPool.class);
+
+	/** Build a <code>WorkerPool</code>.
+	 * @param name the name of the pool
+	 * @param limit maximum number of units running at the same time
+	 * @param handler execute the units of work */
+	public WorkerPool(String name, int limit, Handler<E> handler) {
+		this(name, limit, LightAttachment.config.getInt("message.queue-capacity", PipelineQueue.DEFAULT_CAPACITY), handler);
+	}
+
+	/** Build a <code>WorkerPool</code> whose queue holds up to <code>capacity</code> units.
+	 * @param name the name of the pool
+	 * @param limit maximum number of units running at the same time
+	 * @param capacity maximum number of units waiting for a worker
+	 * @param handler execute the units of work */
+	public WorkerPool(String name, int limit, int capacity, Handler<E> handler) {
+		this.name = name;
+		this.limit = limit;
+		this.handler = handler;
+		this.queue = new PipelineQueue<E>(name, capacity);
+		this.workers = new ArrayList<Worker>();
+		this.running = 0;
+		this.outstanding = 0;
+		this.working = true;
+		this.virtual = isVirtual();
+		if (virtual) {
+			this.permits = new Semaphore(limit, true);
+			this.dispatcher = new Dispatcher();
+			this.dispatcher.start();
+		}
+	}
+
+	/** Return <code>true</code> if the units of work must be run by virtual threads.
+	 * @return <code>true</code> if <code>message.execution</code> is <code>virtual</code> */
+	public static boolean isVirtual() {
+		return LightAttachment.config.getString("message.execution", "pool").equalsIgnoreCase("virtual");
+	}
+
+	/** Push a unit of work.
+	 * In <code>pool</code> mode, a worker is created if every worker is busy and the limit is not reached.
+	 * Wait for space if the queue is full.
+	 * @param unit the unit of work */
+	public void push(E unit) throws InterruptedException {
+		if (unit != null && working) {
+			pushed();
+			queue.put(unit);
+		}
+	}
+
+	/** Push a unit of work if the queue has space, without waiting.
+	 * @param unit the unit of work
+	 * @return <code>false</code> if the queue is full or the pool is shutdown */
+	public boolean offer(E unit) {
+		if (unit == null || !working) return false;
+		pushed();
+		if (queue.offer(unit)) return true;
+		synchronized (this) {
+			outstanding--;
+		}
+		return false;
+	}
+
+	/** Account a pushed unit. In <code>pool</code> mode, a worker is created if every worker is busy and the limit
+	 * is not reached. */
+	private synchronized void pushed() {
+		outstanding++;
+		if (!virtual && outstanding > workers.size() && workers.size() < limit) {
+			Worker w = new Worker();
+			workers.add(w);
+			running++;
+			log.debug(name+"++ count: "+running);
+			w.start();
+		}
+	}
+
+	/** Run a unit of work and account its completion.
+	 * @param unit the unit of work */
+	private void execute(E unit) {
+		try {
+			handler.handle(unit);
+		} catch (RuntimeException e) {
+			log.error(e.getMessage(), e);
+			e.printStackTrace();
+		} finally {
+			synchronized (this) {
+				outstanding--;
+			}
+		}
+	}
+
+	/** Return the number of units waiting for a worker.
+	 * @return the number of units waiting for a worker */
+	public int size() {
+		return queue.size();
+	}
+
+	/** Return the number of units queued or running.
+	 * @return the number of units queued or running */
+	public synchronized int getOutstanding() {
+		return outstanding;
+	}
+
+	/** Safely shutdown the instance. Running units are not interrupted. */
+	public synchronized void shutdown() {
+		working = false;
+		for (Worker w : workers) w.shutdown();
+		if (dispatcher != null) dispatcher.setDone(true);
+	}
+
+	/** Return the factory creating the threads of the <code>virtual</code> mode.
+	 * Virtual threads are looked up by reflection so that LightAttachment still runs on JVMs without them.
+	 * @return the factory */
+	private static synchronized ThreadFactory getTaskFactory() {
+		if (taskFactory == null) {
+			try {
+				Method ofVirtual = Thread.class.getMethod("ofVirtual");
+				Object builder = ofVirtual.invoke(null);
+				Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+				taskFactory = (ThreadFactory) factory.invoke(builder);
+				log.info("Units of work are run by virtual threads");
+			} catch (Exception e) {
+				log.warn("Virtual threads are not available on this JVM, a new thread is used for each unit of work");
+				taskFactory = new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						return new Thread(r);
+					}
+				};
+			}
+		}
+		return taskFactory;
+	}
+
+	/** Worker of the <code>pool</code> mode. */
+	private class Worker extends StoppableThread {
+
+		/** Build a <code>Worker</code>. */
+		public Worker() {
+			super();
+			setName(name+"-"+hashCode());
+		}
+
+		/** Shutdown the instance. */
+		public void shutdown() {
+			setDone(true);
+			running--;
+			log.debug(name+"-- count: "+running);
+		}
+
+		@Override
+		public void run() {
+			super.run();
+			while (!isDone()) {
+				try {
+					E unit = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (unit != null) execute(unit);
+				} catch (InterruptedException e) {
+					log.error(e.getMessage(), e);
+					e.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+	/** Start a thread for each unit of the <code>virtual</code> mode, once a permit is available. */
+	private class Dispatcher extends StoppableThread {
+
+		/** Build a <code>Dispatcher</code>. */
+		public Dispatcher() {
+			super();
+			setName(name+"-dispatcher");
+		}
+
+		@Override
+		public void run() {
+			super.run();
+			ThreadFactory factory = getTaskFactory();
+			while (!isDone()) {
+				try {
+					final E unit = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (unit != null) {
+						permits.acquire();
+						Thread t = factory.newThread(new Runnable() {
+							public void run() {
+								try {
+									execute(unit);
+								} finally {
+									permits.release();
+								}
+							}
+						});
+						t.setName(name);
+						t.start();
+					}
+				} catch (InterruptedException e) {
+					log.error(e.getMessage(), e);
+					e.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+}
@@ -1,23 +1,25 @@
 package com.lightattachment.smtp;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
 
-import org.apache.commons.net.smtp.SMTPClient;
 import org.apache.commons.net.smtp.SMTPConnectionClosedException;
 import org.apache.commons.net.smtp.SMTPReply;
 import org.apache.log4j.Logger;
 
+import com.lightattachment.mails.LightAttachment;
 import com.lightattachment.mails.MailSet;
-import com.lightattachment.mails.StringOutputStream;
+import com.lightattachment.mails.PipelineQueue;
+import com.lightattachment.mails.SpoolSpaceManager;
 import com.lightattachment.stats.SendErrorReportThread;
 import com.lightattachment.stats.StoppableThread;
 
@@ -32,7 +34,11 @@ import com.lightattachment.stats.StoppableThread;
 
 public class SMTPPostfixOutputConnector extends StoppableThread {
 		
-	private ArrayList<MailSet> queue;
+	/** The <code>MailSet</code>s to send. */
+	private PipelineQueue<MailSet> queue;
+	
+	/** The <code>MailSet</code> being sent, if any. */
+	private volatile MailSet current;
 	
 	/** Set to <code>false</code> to shutdown the <code>MailManager</code>. */
 	private boolean working;
@@ -43,17 +49,29 @@ public class SMTPPostfixOutputConnector extends StoppableThread {
 	/** The port of the Postfix <code>smtpd</code> instance. */
 	private int port;
 	
-	private SMTPClient client;
+	private StreamedSMTPClient client;
 	
 	/** Logger used to trace activity. */
 	static Logger log = Logger.getLogger(SMTPPostfixOutputConnector.class);
 	
+	/** Size of the buffer used to copy the unchanged mails. */
+	private static final int BUFFER_SIZE = 65536;
+	
 	/** Thread creation date. */
 	private long created;
 	
 	/** Thread connection date. */
 	private long connected;
 	
+	/** Date of the last command sent to Postfix. */
+	private long used;
+	
+	/** An idle connection is checked with <code>NOOP</code> after this number of milliseconds. */
+	private long noopAfter;
+	
+	/** Reply code of the command refused by Postfix while sending the current <code>MailSet</code>, or 0. */
+	private int refusal;
+	
 	/** Count running instance. */
 	public static int running = 0;
 	
@@ -69,13 +87,15 @@ public class SMTPPostfixOutputConnector extends StoppableThread {
 		this.working = true;
 		this.SMTPAddress = SMTPAddress;
 		this.port = port;
-		this.queue = new ArrayList<MailSet>();
+		this.queue = new PipelineQueue<MailSet>("SMTPPostfixOutputConnector-"+this.hashCode());
+		this.noopAfter = LightAttachment.config.getLong("postfix.out-address[@noop-after]", 30000);
 		running++;
 		System.err.println("SMTPPostfixOutputConnector++ count: "+running);
 		int reply;
-		client = new SMTPClient();
+		client = new StreamedSMTPClient();
 		client.connect(SMTPAddress,port);
 		this.connected = System.currentTimeMillis();
+		this.used = connected;
 		log.info("SMTPPostfixOutputConnector("+this.hashCode()+") connected to "+client.getReplyString().replace("\r\n", "").replace("220 ", "")
 				+" in "+(connected-created)+" ms");
 
@@ -89,7 +109,7 @@ public class SMTPPostfixOutputConnector extends StoppableThread {
 			sert.start();
 			shutdown();
 		} else {
-			if (client.login()) {
+			if (client.ehlo(LightAttachment.config.getString("hostname"))) {
 				log.info("SMTPPostfixOutputConnector("+this.hashCode()+") logged in");
 			}  else {
 				client.disconnect();
@@ -107,6 +127,7 @@ public class SMTPPostfixOutputConnector extends StoppableThread {
 		int reply;
 		client.connect(SMTPAddress,port);
 		this.connected = System.currentTimeMillis();
+		this.used = connected;
 		log.info("SMTPPostfixOutputConnector("+this.hashCode()+") reconnected to "+client.getReplyString().replace("\r\n", "").replace("220 ", "")
 				+" in "+(connected-created)+" ms");
 
@@ -120,7 +141,7 @@ public class SMTPPostfixOutputConnector extends StoppableThread {
 			sert.start();
 			shutdown();
 		} else {
-			if (client.login()) {
+			if (client.ehlo(LightAttachment.config.getString("hostname"))) {
 				log.info("SMTPPostfixOutputConnector("+this.hashCode()+") logged in");
 			}  else {
 				client.disconnect();
@@ -133,61 +154,80 @@ public class SMTPPostfixOutputConnector extends StoppableThread {
 		}
 	}
 	
-	/** Add a <code>MailSet</code> to the queue. 
-	 * @param the <code>MailSet</code> to add */
-	public void push(MailSet set) {
-		if (set != null) queue.add(set);
+	/** Check a connection idle for more than <code>noopAfter</code> milliseconds with <code>NOOP</code>,
+	 * and open it again if Postfix closed it. */
+	private void check() throws SocketException, IOException {
+		if (client.isConnected() && System.currentTimeMillis() - used >= noopAfter) {
+			boolean alive;
+			try {
+				alive = client.sendNoOp();
+			} catch (IOException e) {
+				alive = false;
+			}
+			if (!alive) {
+				log.warn("SMTPPostfixOutputConnector("+this.hashCode()+") idle connection lost");
+				try {
+					client.disconnect();
+				} catch (IOException e) {}
+				reconnect();
+			}
+			used = System.currentTimeMillis();
+		}
 	}
 	
-	/** Return the first <code>MailSet</code> of the queue.
-	 * @return the first <code>MailSet</code> of the queue */
-	public MailSet peek() {
-		if (queue.size() > 0) {
-			return queue.get(0);
-		} else return null;
+	/** Send the envelope of a <code>MailSet</code>. The transaction is reset if it is refused.
+	 * @param set the <code>MailSet</code> to send
+	 * @return <code>true</code> if the sender and every recipient were accepted */
+	private boolean envelope(MailSet set) throws IOException {
+		ArrayList<String> rcpts = new ArrayList<String>();
+		StringTokenizer st = new StringTokenizer(set.getTo(),",");
+		while (st.hasMoreTokens()) {
+			rcpts.add(st.nextToken());
+		}
+		
+		boolean tok = client.sendEnvelope(set.getFrom(), rcpts);
+		if (!tok) {
+			refusal = client.getRefusal();
+			client.reset();
+		}
+		return tok;
 	}
 	
-	/** Return the queue size.
+	/** Record the reply code of a command refused by Postfix.
+	 * @param set the <code>MailSet</code> refused
+	 * @param command the command refused */
+	private void refused(MailSet set, String command) {
+		refusal = client.getReplyCode();
+		log.error("("+this.hashCode()+") "+command+" of MailSet "+set.hashCode()+" refused by Postfix SMTP Server: "
+				+client.getReplyString().trim());
+	}
+	
+	/** Add a <code>MailSet</code> to the queue, waiting for space if it is full. 
+	 * @param the <code>MailSet</code> to add */
+	public void push(MailSet set) throws InterruptedException {
+		if (set != null) queue.put(set);
+	}
+	
+	/** Return the number of <code>MailSet</code>s queued or being sent.
 	 * @return the queue size */
 	public int size() {
-		return queue.size();
+		return queue.size() + (current != null ? 1 : 0);
 	}
 	
 	public void run() {
 		super.run();
 		try {
 			while (working) {					
-				MailSet set = peek();	
+				MailSet set = queue.poll(100, TimeUnit.MILLISECONDS);	
 				
 				if (set != null) {
+					current = set;
 					try {
-						if (set.isSent()) set.setSent(false);
-						
-						if (!client.isConnected()) reconnect();
-						if (set.isFromFile()) {
-							for (String filename : set.getOriginalMessages()) send(set, filename);
-						} else {
-							try {
-								StringBuffer buffer = new StringBuffer();
-								set.getMessage().writeTo(new StringOutputStream(buffer));
-								send(set, buffer);
-							} catch (MessagingException e) {
-								log.error(e.getMessage(), e);
-								SendErrorReportThread sert = new SendErrorReportThread(set,
-										"Error while injecting back to Postfix: " + e.getMessage(), e);
-								sert.start();
-								//shutdown();
-							}
-						}
-						
-						set.setSent(true);
-						log.info("MailSet "+set.hashCode()+" set sented");
-						queue.remove(set);
-					} catch (SMTPConnectionClosedException c) {
-						reconnect();
-					}				
-				}
-				sleep(100);
+						deliver(set);
+					} finally {
+						current = null;
+					}
+				} else check();
 			}
 		} catch (IOException e) {
 			log.error(e.getMessage(),e);
@@ -205,37 +245,90 @@ public class SMTPPostfixOutputConnector extends StoppableThread {
 		this.setDone(true);
 	}
 
+	/** Send a <code>MailSet</code> to Postfix within the calling thread and mark it as sent.
+	 * The connection is opened again if Postfix closed it. A <code>MailSet</code> refused by Postfix is not marked as
+	 * sent: the reply code of the refusal is set on it, so that its <code>RefusalListener</code>s decide whether it is
+	 * sent again or given up. A <code>MailSet</code> which couldn't be written stays in the spool and the journal keeps
+	 * it at the last stage it completed, so that it is resumed on the next start.
+	 * @param set the <code>MailSet</code> to send
+	 * @return <code>true</code> if Postfix accepted the <code>MailSet</code> */
+	public boolean deliver(MailSet set) throws SocketException, IOException {
+		boolean delivered = false;
+		boolean accepted = false;
+		while (!delivered) {
+			try {
+				if (set.isSent()) set.setSent(false);
+				refusal = 0;
+				
+				check();
+				if (!client.isConnected()) reconnect();
+				accepted = true;
+				if (set.isFromFile()) {
+					for (String filename : set.getOriginalMessages()) {
+						if (!send(set, filename)) {
+							accepted = false;
+							break;
+						}
+					}
+				} else {
+					try {
+						accepted = send(set, set.getMessage());
+					} catch (MessagingException e) {
+						log.error(e.getMessage(), e);
+						SendErrorReportThread sert = new SendErrorReportThread(set,
+								"Error while injecting back to Postfix: " + e.getMessage(), e);
+						sert.start();
+						accepted = false;
+						//shutdown();
+					}
+				}
+				
+				used = System.currentTimeMillis();
+				if (accepted) {
+					set.setRefusal(0);
+					set.setSent(true);
+					log.info("MailSet "+set.hashCode()+" set sented");
+				} else if (refusal != 0) {
+					log.warn("MailSet "+set.hashCode()+" refused by Postfix with "+refusal);
+					set.setRefusal(refusal);
+				} else log.warn("MailSet "+set.hashCode()+" couldn't be sent to Postfix, kept in the spool until the next start");
+				delivered = true;
+			} catch (SMTPConnectionClosedException c) {
+				reconnect();
+			}
+		}
+		return accepted;
+	}
+
 	/** Send to Postfix the modified mail.
+	 * The message is written straight to the connection: it is never held in memory.
 	 * @param set the <code>MailSet</code> processed
-	 * @param data the message to send */
-	public void send(MailSet set, StringBuffer data) throws IOException {
+	 * @param message the message to send
+	 * @return <code>true</code> if Postfix accepted the message */
+	public boolean send(MailSet set, MimeMessage message) throws IOException, MessagingException {
 		if (!set.isSent()) {
-				boolean tok = client.setSender(set.getFrom());
-				//System.err.println("TO: "+to);
-				StringTokenizer st = new StringTokenizer(set.getTo(),",");
-				while (st.hasMoreTokens()) {
-					String rcpt = st.nextToken();
-					//System.err.println("RCPT "+rcpt);
-					if (!client.addRecipient(rcpt)) tok = false;
-				}
+				boolean tok = envelope(set);
 
 				if (tok) {
 					log.info("("+this.hashCode()+") Envelope sent");
-					Writer w = client.sendMessageData();
-					if (w != null) {
+					OutputStream data = client.sendMessageDataStream();
+					if (data != null) {
 						
-							w.write(data.toString().replace("\n","\r\n"));
+						try {
+							message.writeTo(data);
+						} catch (MessagingException e) {
+							// The data is not terminated: drop the connection so that Postfix discards it
+							client.disconnect();
+							throw e;
+						}
 						
-						w.close();
+						data.close();
 						log.info("("+this.hashCode()+") Message sent");
 						log.info("Modified mail "+set.hashCode()+" sent back to Postfix");
 						if (!client.completePendingCommand()) {
-							log.error("("+this.hashCode()+") Error while sending back message to Postfix SMTP Server");
-							SendErrorReportThread sert = new SendErrorReportThread(set,
-									"Error while injecting back to Postfix: error during data sending ("+this.hashCode()+")",null);
-							sert.start();
+							refused(set, "Message");
 							client.disconnect();
-						}/* else if (!client.logout()) {
+						} else return true;/* else if (!client.logout()) {
 							log.error("("+this.hashCode()+") Error while logging out from Postfix SMTP Server");
 							SendErrorReportThread sert = new SendErrorReportThread(set,
 									"Error while injecting back to Postfix: Error while logging out from Postfix SMTP Server ("+this.hashCode()+")",null);
@@ -245,63 +338,58 @@ public class SMTPPostfixOutputConnector extends StoppableThread {
 						client.disconnect();
 						log.info("SMTPPostfixOutputConnector("+this.hashCode()+") logged out");*/
 					} else {
-						log.error("("+this.hashCode()+") DATA command failed with Postfix SMTP Server");
-						SendErrorReportThread sert = new SendErrorReportThread(set,
-								"Error while injecting back to Postfix: DATA command failed with Postfix SMTP Server ("+this.hashCode()+")",null);
-						sert.start();
+						refused(set, "DATA command");
+						client.reset();
 					}
 				} else {
-					log.error("("+this.hashCode()+") MAIL or RCPT command failed with Postfix SMTP Server");
-					SendErrorReportThread sert = new SendErrorReportThread(set,
-							"Error while injecting back to Postfix: MAIL or RCPT command failed with Postfix SMTP Server ("+this.hashCode()+")",null);
-					sert.start();
+					log.error("("+this.hashCode()+") MAIL or RCPT command of MailSet "+set.hashCode()
+							+" refused by Postfix SMTP Server with "+refusal);
 				}
 		} else {
 			System.err.println("** DOUBLE SENT **");
 		}
+		return false;
 	}
 	
 	/** Send to Postfix the unchanged mail (= from files).
+	 * The file is copied as bytes: line ends and leading dots are handled by the data stream.
 	 * @param set the <code>MailSet</code> processed
-	 * @param file the file to send */
-	public void send(MailSet set, String file) throws SocketException, IOException {
+	 * @param file the file to send
+	 * @return <code>true</code> if Postfix accepted the message */
+	public boolean send(MailSet set, String file) throws SocketException, IOException {
 				
 		if (!set.isSent()) {
-				boolean tok = client.setSender(set.getFrom());
-				//System.err.println("TO: "+to);
-				StringTokenizer st = new StringTokenizer(set.getTo(),",");
-				while (st.hasMoreTokens()) {
-					String rcpt = st.nextToken();
-					//System.err.println("RCPT "+rcpt);
-					if (!client.addRecipient(rcpt)) tok = false;
-				}
+				boolean tok = envelope(set);
 
 				if (tok) {
 					log.info("("+this.hashCode()+") Envelope sent");
-					Writer w = client.sendMessageData();
-					if (w != null) {
-						
-							BufferedReader br = new BufferedReader(new FileReader(file));
-							
-							String l = null;
-							while ((l = br.readLine()) != null) {
-								w.write(new String(l+"\n"));
-							}
-							
-							br.close();
-							long size = new File(file).length();
-							if (new File(file).delete()) log.info("Temporary file "+file+" of "+size+" bytes deleted");
-							else log.warn("Fail to delete temporary file "+file);
+					OutputStream data = client.sendMessageDataStream();
+					if (data != null) {
 						
-						w.close();
+						FileInputStream in = new FileInputStream(file);
+						try {
+							byte[] buffer = new byte[BUFFER_SIZE];
+							int read;
+							while ((read = in.read(buffer)) >= 0) data.write(buffer, 0, read);
+						} catch (IOException e) {
+							// The data is not terminated: drop the connection so that Postfix discards it
+							client.disconnect();
+							throw e;
+						} finally {
+							in.close();
+						}
+						data.close();
 						log.info("("+this.hashCode()+") Message sent");
 						log.info("Modified mail "+set.hashCode()+" sent back to Postfix");
 						if (!client.completePendingCommand()) {
-							log.error("("+this.hashCode()+") Error while sending back message to Postfix SMTP Server");
-							SendErrorReportThread sert = new SendErrorReportThread(set,
-									"Error while injecting back to Postfix: error during data sending ("+this.hashCode()+")",null);
-							sert.start();
+							refused(set, "Message");
 							client.disconnect();
+						} else {
+							// Only once Postfix has taken the message over
+							long size = new File(file).length();
+							if (SpoolSpaceManager.get().delete(file)) log.info("Temporary file "+file+" of "+size+" bytes deleted");
+							else log.warn("Fail to delete temporary file "+file);
+							return true;
 						} /*else if (!client.logout()) {
 							log.error("("+this.hashCode()+") Error while logging out from Postfix SMTP Server");
 							SendErrorReportThread sert = new SendErrorReportThread(set,
@@ -312,21 +400,17 @@ public class SMTPPostfixOutputConnector extends StoppableThread {
 						client.disconnect();
 						log.info("SMTPPostfixOutputConnector("+this.hashCode()+") logged out");*/
 					} else {
-						log.error("("+this.hashCode()+") DATA command failed with Postfix SMTP Server");
-						SendErrorReportThread sert = new SendErrorReportThread(set,
-								"Error while injecting back to Postfix: DATA command failed with Postfix SMTP Server ("+this.hashCode()+")",null);
-						sert.start();
+						refused(set, "DATA command");
+						client.reset();
 					}
 				} else {
-					log.error("("+this.hashCode()+") MAIL or RCPT command failed with Postfix SMTP Server");
-					SendErrorReportThread sert = new SendErrorReportThread(set,
-							"Error while injecting back to Postfix: MAIL or RCPT command failed with Postfix SMTP Server ("+this.hashCode()+")",null);
-					sert.start();
+					log.error("("+this.hashCode()+") MAIL or RCPT command of MailSet "+set.hashCode()
+							+" refused by Postfix SMTP Server with "+refusal);
 				}
 		} else {
 			System.err.println("** DOUBLE SENT **");
 		}
-
+		return false;
 	}
 	
 	/** Safely shutdown the instance. */
@@ -341,6 +425,7 @@ public class SMTPPostfixOutputConnector extends StoppableThread {
 			working = false;
 		} catch (SMTPConnectionClosedException c) {}	*/
 		setDone(true);
+		queue.close();
 		log.info("SMTPPostfixOutputConnector("+this.hashCode()+") stopped after "+(getEnd()-getBegin())+" ms");
 	}
 
@@ -25,6 +25,10 @@ public class SmtpActionType {
   private static final byte UNREC_BYTE =    (byte) 8;
   /** Internal representation of the blank line action: separates headers and body text. */
   private static final byte BLANK_LINE_BYTE =    (byte) 9;
+  /** Internal representation of the BDAT action. */
+  private static final byte BDAT_BYTE =     (byte) 10;
+  /** Internal representation of the BDAT LAST action. */
+  private static final byte BDAT_LAST_BYTE = (byte) 11;
 
   /** Internal representation of the stateless RSET action. */
   private static final byte RSET_BYTE = (byte) -1;
@@ -55,6 +59,10 @@ public class SmtpActionType {
   public static final SmtpActionType QUIT = new SmtpActionType(QUIT_BYTE);
   /** Header/body separator action. */
   public static final SmtpActionType BLANK_LINE = new SmtpActionType(BLANK_LINE_BYTE);
+  /** BDAT action: a chunk of the message follows. */
+  public static final SmtpActionType BDAT = new SmtpActionType(BDAT_BYTE);
+  /** BDAT LAST action: the last chunk of the message follows. */
+  public static final SmtpActionType BDAT_LAST = new SmtpActionType(BDAT_LAST_BYTE);
 
   /** Stateless RSET action. */
   public static final SmtpActionType RSET = new SmtpActionType(RSET_BYTE);
@@ -117,6 +125,10 @@ public class SmtpActionType {
         return "Unrecognized command / data";
       case BLANK_LINE_BYTE:
         return "Blank line";
+      case BDAT_BYTE:
+        return "BDAT";
+      case BDAT_LAST_BYTE:
+        return "BDAT LAST";
       default:
         return "Unknown";
     }
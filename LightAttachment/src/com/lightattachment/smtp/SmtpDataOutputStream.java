@@ -0,0 +1,104 @@
+package com.lightattachment.smtp;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Write the content of a SMTP <code>DATA</code> command.
+ * Line ends are normalized to CRLF, lines beginning with a dot are stuffed, and <code>close</code> terminates
+ * the data with <code>CRLF.CRLF</code> without closing the connection.
+ * Bytes are written by runs through a buffer, so that the message is never held in memory.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class SmtpDataOutputStream extends FilterOutputStream {
+
+	/** Size of the buffer of the connection. */
+	private static final int BUFFER_SIZE = 65536;
+
+	/** Last byte written: anything but CR or LF. */
+	private static final int NOTHING = 0;
+
+	/** Last byte written: CR. */
+	private static final int CR = 1;
+
+	/** Last byte written: LF (or nothing written yet). */
+	private static final int NL = 2;
+
+	/** One of <code>NOTHING</code>, <code>CR</code> and <code>NL</code>. */
+	private int state;
+
+	/** <code>true</code> once the data is terminated. */
+	private boolean closed;
+
+	/** Build a <code>SmtpDataOutputStream</code>.
+	 * @param out the output stream of the SMTP connection, once the <code>DATA</code> command is accepted */
+	public SmtpDataOutputStream(OutputStream out) {
+		super(new BufferedOutputStream(out, BUFFER_SIZE));
+		this.state = NL;
+		this.closed = false;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		switch (b) {
+		case '\r':
+			out.write('\r');
+			state = CR;
+			break;
+		case '\n':
+			if (state != CR) out.write('\r');
+			out.write('\n');
+			state = NL;
+			break;
+		case '.':
+			// A dot beginning a line is stuffed
+			if (state == NL) out.write('.');
+			out.write(b);
+			state = NOTHING;
+			break;
+		default:
+			out.write(b);
+			state = NOTHING;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		// Bytes from run to the current byte are written as they are
+		int run = off;
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			byte c = b[i];
+			if (c == '\r' || c == '\n' || (c == '.' && state == NL)) {
+				out.write(b, run, i - run);
+				write(c);
+				run = i + 1;
+			} else state = NOTHING;
+		}
+		out.write(b, run, end - run);
+	}
+
+	/** Terminate the data with <code>CRLF.CRLF</code> and flush it. The connection is not closed. */
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			if (state == CR) out.write('\n');
+			else if (state != NL) {
+				out.write('\r');
+				out.write('\n');
+			}
+			out.write('.');
+			out.write('\r');
+			out.write('\n');
+			out.flush();
+			closed = true;
+		}
+	}
+
+}
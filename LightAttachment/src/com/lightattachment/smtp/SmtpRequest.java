@@ -1,5 +1,11 @@
 package com.lightattachment.smtp;
 
+import java.util.StringTokenizer;
+
+import org.apache.log4j.Logger;
+
+import com.lightattachment.mails.LightAttachment;
+
 /**
  * Contains an SMTP client request. Handles state transitions using the following state transition table.
  * <PRE>
@@ -23,6 +29,11 @@ package com.lightattachment.smtp;
  * help       | 211/CONNECT | 211/GREET | 211/MAIL  | 211/RCPT     | 211/DATA_HDR  | 211/DATA_BODY | 211/QUIT
  * noop       | 250/CONNECT | 250/GREET | 250/MAIL  | 250/RCPT     | 250|DATA_HDR  | 250/DATA_BODY | 250/QUIT
  * </PRE>
+ * The SIZE extension (RFC 1870) is advertised in the EHLO response: a <code>MAIL FROM</code> declaring a size above
+ * <code>message-size.max-size</code> is answered 552 and the state is unchanged.
+ * The CHUNKING extension (RFC 3030) is advertised too: <code>BDAT</code> is accepted in the RCPT and BDAT states and
+ * moves to BDAT, <code>BDAT LAST</code> moves to QUIT like the end of <code>DATA</code>. The response is sent once the
+ * bytes of the chunk are received (CHUNK state of the session).
  */
 public class SmtpRequest {
 	/** SMTP action received from client. */
@@ -38,7 +49,17 @@ public class SmtpRequest {
 	
 	private String to;
 	
+	/** The size declared by the <code>SIZE</code> parameter of <code>MAIL FROM</code>, or the size of a
+	 * <code>BDAT</code> chunk, or -1 if none. */
+	private long size;
+	
+	/** <code>true</code> if the client greeted with <code>EHLO</code> and may use the extensions. */
+	private boolean extended;
+	
 	private static int rejectCount = 0;
+	
+	/** Logger used to trace activity. */
+	static Logger log = Logger.getLogger(SmtpRequest.class);
 
 	/**
 	 * Create a new SMTP client request.
@@ -50,13 +71,44 @@ public class SmtpRequest {
 		this.action = actionType;
 		this.state = state;
 		this.params = params;
+		this.size = -1;
 		if (actionType.equals(SmtpActionType.MAIL)) {
-			from = params;
+			parseMail(params);
+		} else if (actionType.equals(SmtpActionType.BDAT) || actionType.equals(SmtpActionType.BDAT_LAST)) {
+			StringTokenizer tokenizer = new StringTokenizer(params, " ");
+			try {
+				if (tokenizer.hasMoreTokens()) size = Long.parseLong(tokenizer.nextToken());
+			} catch (NumberFormatException e) {
+				size = -1;
+			}
 		} else if (actionType.equals(SmtpActionType.RCPT)) {
 			to = params;
 		}
 	}
 
+	/**
+	 * Split the parameters of <code>MAIL FROM</code> between the reverse path and the ESMTP parameters.
+	 * @param params remainder of command line once command is removed
+	 */
+	private void parseMail(String params) {
+		String p = params.trim();
+		int end = p.startsWith("<") ? p.indexOf('>') + 1 : p.indexOf(' ');
+		if (end <= 0) end = p.length();
+		from = p.substring(0, end);
+		
+		StringTokenizer tokenizer = new StringTokenizer(p.substring(end), " ");
+		while (tokenizer.hasMoreTokens()) {
+			String t = tokenizer.nextToken();
+			if (t.toUpperCase().startsWith("SIZE=")) {
+				try {
+					size = Long.parseLong(t.substring(5));
+				} catch (NumberFormatException e) {
+					size = -1;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Execute the SMTP request returning a response. This method models the state transition table for the SMTP server.
 	 * @return reponse to the request
@@ -91,14 +143,22 @@ public class SmtpRequest {
 				}
 			} else if (SmtpActionType.EHLO == action) {
 				if (SmtpState.GREET == state) {
-					response = new SmtpResponse(250, "OK", SmtpState.MAIL);
+					if (extended) {
+						response = new SmtpResponse(250, "LightAttachment\nSIZE "
+								+ LightAttachment.config.getLong("message.message-size.max-size") + "\nCHUNKING", SmtpState.MAIL);
+					} else {
+						response = new SmtpResponse(250, "OK", SmtpState.MAIL);
+					}
 				} else {
 					rejectCount++;
 					System.err.println("REJECTED: not GREET> "+rejectCount);
 					response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
 				}
 			} else if (SmtpActionType.MAIL == action) {
-				if (SmtpState.MAIL == state || SmtpState.QUIT == state) {
+				if ((SmtpState.MAIL == state || SmtpState.QUIT == state)
+						&& size > LightAttachment.config.getLong("message.message-size.max-size")) {
+					response = new SmtpResponse(552, "Message size exceeds fixed maximum message size", this.state);
+				} else if (SmtpState.MAIL == state || SmtpState.QUIT == state) {
 					response = new SmtpResponse(250, "OK", SmtpState.RCPT);
 				} else {
 					rejectCount++;
@@ -121,6 +181,17 @@ public class SmtpRequest {
 					System.err.println("REJECTED: not RCPT> "+rejectCount);
 					response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
 				}
+			} else if (SmtpActionType.BDAT == action || SmtpActionType.BDAT_LAST == action) {
+				if (size < 0) {
+					response = new SmtpResponse(501, "Syntax error in parameters or arguments", this.state);
+				} else if (SmtpState.RCPT == state || SmtpState.BDAT == state) {
+					if (SmtpActionType.BDAT_LAST == action) response = new SmtpResponse(250, "OK", SmtpState.QUIT);
+					else response = new SmtpResponse(250, size + " octets received", SmtpState.BDAT);
+				} else {
+					rejectCount++;
+					log.warn("Rejected " + action + " out of the RCPT and BDAT states (" + rejectCount + " rejected)");
+					response = new SmtpResponse(503, "Bad sequence of commands: " + action, this.state);
+				}
 			} else if (SmtpActionType.UNRECOG == action) {
 				if (SmtpState.DATA_HDR == state || SmtpState.DATA_BODY == state) {
 					response = new SmtpResponse(-1, "", this.state);
@@ -206,6 +277,10 @@ public class SmtpRequest {
 				params = s.substring(8);
 			} else if (su.startsWith("DATA")) {
 				action = SmtpActionType.DATA;
+			} else if (su.equals("BDAT") || su.startsWith("BDAT ")) {
+				// Without a size, the chunk is refused with 501
+				action = su.trim().endsWith(" LAST") ? SmtpActionType.BDAT_LAST : SmtpActionType.BDAT;
+				params = s.substring(4).trim();
 			} else if (su.startsWith("QUIT")) {
 				action = SmtpActionType.QUIT;
 			} else if (su.startsWith("RSET")) {
@@ -224,6 +299,7 @@ public class SmtpRequest {
 		}
 
 		SmtpRequest req = new SmtpRequest(action, params, state);
+		req.extended = action == SmtpActionType.EHLO && s.toUpperCase().startsWith("EHLO ");
 		return req;
 	}
 
@@ -254,5 +330,13 @@ public class SmtpRequest {
 	public SmtpActionType getAction() {
 		return action;
 	}
+
+	/**
+	 * Get the size declared by the <code>SIZE</code> parameter of <code>MAIL FROM</code>.
+	 * @return the declared size in bytes, or -1 if none
+	 */
+	public long getSize() {
+		return size;
+	}
 	
 }
@@ -21,6 +21,10 @@ public class SmtpState {
   private static final byte DATA_BODY_BYTE    = (byte) 6;
   /** Internal representation of the QUIT state. */
   private static final byte QUIT_BYTE         = (byte) 7;
+  /** Internal representation of the BDAT state. */
+  private static final byte BDAT_BYTE         = (byte) 8;
+  /** Internal representation of the CHUNK state. */
+  private static final byte CHUNK_BYTE        = (byte) 9;
 
   /** CONNECT state: waiting for a client connection. */
   public static final SmtpState CONNECT   = new SmtpState(CONNECT_BYTE);
@@ -36,6 +40,10 @@ public class SmtpState {
   public static final SmtpState DATA_BODY = new SmtpState(DATA_BODY_BYTE);
   /** End of client transmission. */
   public static final SmtpState QUIT      = new SmtpState(QUIT_BYTE);
+  /** BDAT state: waiting for the next BDAT command. */
+  public static final SmtpState BDAT      = new SmtpState(BDAT_BYTE);
+  /** Receiving the bytes of a BDAT chunk. */
+  public static final SmtpState CHUNK     = new SmtpState(CHUNK_BYTE);
 
   /**
    * Create a new SmtpState object. Private to ensure that only valid states can be created.
@@ -65,6 +73,10 @@ public class SmtpState {
         return "DATA_BODY";
       case QUIT_BYTE:
         return "QUIT";
+      case BDAT_BYTE:
+        return "BDAT";
+      case CHUNK_BYTE:
+        return "CHUNK";
       default:
         return "Unknown";
     }
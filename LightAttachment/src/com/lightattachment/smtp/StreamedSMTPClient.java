@@ -0,0 +1,94 @@
+package com.lightattachment.smtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.commons.net.smtp.SMTPClient;
+import org.apache.commons.net.smtp.SMTPReply;
+
+/**
+ * A <code>SMTPClient</code> able to send the message data as bytes.
+ * <code>SMTPClient.sendMessageData</code> only provides a <code>Writer</code>, which forces the message
+ * to be decoded to characters.
+ * If the server supports the <code>PIPELINING</code> extension (RFC 2920), the envelope of a message is sent at once.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class StreamedSMTPClient extends SMTPClient {
+
+	/** <code>true</code> if the server supports <code>PIPELINING</code>. */
+	private boolean pipelining = false;
+
+	/** Reply code of the first command of the last envelope refused by the server, or 0. */
+	private int refusal = 0;
+
+	/** Greet the server with <code>EHLO</code>, or <code>HELO</code> if it doesn't support ESMTP.
+	 * @param hostname the name of the client
+	 * @return <code>true</code> if the server accepted the greeting */
+	public boolean ehlo(String hostname) throws IOException {
+		pipelining = false;
+		if (SMTPReply.isPositiveCompletion(sendCommand("EHLO", hostname))) {
+			for (String line : getReplyStrings()) {
+				if (line.length() > 4 && line.substring(4).trim().toUpperCase().startsWith("PIPELINING")) pipelining = true;
+			}
+			return true;
+		} else return login(hostname);
+	}
+
+	/** Send the envelope of a message.
+	 * With <code>PIPELINING</code>, the <code>MAIL</code> and <code>RCPT</code> commands are written at once and
+	 * their replies read afterwards, else each command waits for its reply.
+	 * @param from the sender
+	 * @param to the recipients
+	 * @return <code>true</code> if the sender and every recipient were accepted */
+	public boolean sendEnvelope(String from, List<String> to) throws IOException {
+		refusal = 0;
+		if (pipelining) {
+			StringBuffer commands = new StringBuffer();
+			commands.append("MAIL FROM:<" + from + ">\r\n");
+			for (String rcpt : to) commands.append("RCPT TO:<" + rcpt + ">\r\n");
+			_output_.write(commands.toString().getBytes("ISO-8859-1"));
+			_output_.flush();
+			
+			for (int i = 0; i <= to.size(); i++) {
+				if (!SMTPReply.isPositiveCompletion(getReply())) refused();
+			}
+		} else {
+			if (!setSender(from)) refused();
+			for (String rcpt : to) {
+				if (!addRecipient(rcpt)) refused();
+			}
+		}
+		return refusal == 0;
+	}
+
+	/** Record the reply code of a refused envelope command, unless an earlier one was refused: the replies to the
+	 * recipients of a refused sender don't tell why the envelope was refused. */
+	private void refused() {
+		if (refusal == 0) refusal = getReplyCode();
+	}
+
+	public boolean isPipelining() {
+		return pipelining;
+	}
+
+	/** Return the reply code of the first command of the last envelope refused by the server.
+	 * @return the reply code, or 0 if the envelope was accepted */
+	public int getRefusal() {
+		return refusal;
+	}
+
+	/** Send the <code>DATA</code> command and return a stream to write the message on.
+	 * Like <code>sendMessageData</code>, the stream must be closed and <code>completePendingCommand</code> called
+	 * to finish the transaction.
+	 * @return the stream to write the message on, or <code>null</code> if the <code>DATA</code> command failed */
+	public OutputStream sendMessageDataStream() throws IOException {
+		if (!SMTPReply.isPositiveIntermediate(data())) return null;
+		return new SmtpDataOutputStream(_output_);
+	}
+
+}
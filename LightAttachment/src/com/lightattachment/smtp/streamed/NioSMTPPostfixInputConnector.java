@@ -0,0 +1,441 @@
+package com.lightattachment.smtp.streamed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import com.lightattachment.mails.LightAttachment;
+import com.lightattachment.mails.WorkerPool;
+import com.lightattachment.stats.SendErrorReportThread;
+import com.lightattachment.stats.StoppableThread;
+
+/**
+ * The non-blocking SMTP Server listening for Postfix <code>smtp</code> connections.
+ * Connections are accepted by this thread and spread over a fixed number of <code>EventLoop</code>s, each one
+ * multiplexing its connections with a <code>Selector</code>. Enabled by setting <code>postfix.in-address[@mode]</code>
+ * to <code>nio</code>, the number of event loops is given by <code>postfix.in-address[@selectors]</code>.
+ * The event loops only read and write the connections: the SMTP dialog of a connection, which writes the messages to
+ * the spool and waits for the journal, is run by a <code>WorkerPool</code> (up to <code>message.output-limit</code>
+ * workers). The connection isn't selected while its session runs. If the pool queue is full, the connection is parked
+ * by its loop and handed to the pool again later.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class NioSMTPPostfixInputConnector extends Thread implements PostfixInputConnector {
+
+	/** Indicates whether this server is stopped or not. */
+	private volatile boolean stopped = true;
+
+	/** Handle to the server channel this server listens to. */
+	private ServerSocketChannel serverChannel;
+
+	/** Message received are pushed to the <code>StreamedMailParser</code>. */
+	private StreamedMailParser streamedParser;
+
+	/** Run the SMTP dialogs of the connections. */
+	private WorkerPool<Connection> sessionPool;
+
+	/** The event loops handling the accepted connections. */
+	private EventLoop[] loops;
+
+	/** Index of the event loop which will receive the next connection. */
+	private int next;
+
+	/** Port the server listens on. */
+	private int port;
+
+	/** Maximum time an event loop blocks on its selector. */
+	private int timeout = 500;
+
+	/** Size of the buffer used to read the connections. */
+	private static final int BUFFER_SIZE = 16384;
+
+	/** Maximum time an event loop blocks on its selector while connections are parked. */
+	private static final int PARKED_TIMEOUT = 10;
+
+	/** Logger used to trace activity. */
+	static Logger log = Logger.getLogger(NioSMTPPostfixInputConnector.class);
+
+	/** Build a <code>NioSMTPPostfixInputConnector</code>.
+	 * @param parser the parser. */
+	public NioSMTPPostfixInputConnector(StreamedMailParser parser) throws IOException {
+		this.port = LightAttachment.config.getInt("postfix.in-address[@port]");
+		this.timeout = LightAttachment.config.getInt("postfix.in-address[@timeout]");
+		this.streamedParser = parser;
+
+		int selectors = LightAttachment.config.getInt("postfix.in-address[@selectors]", Runtime.getRuntime().availableProcessors());
+		this.loops = new EventLoop[Math.max(1, selectors)];
+		this.next = 0;
+		this.sessionPool = new WorkerPool<Connection>("NioSessionThread", LightAttachment.config.getInt("message.output-limit"),
+				new WorkerPool.Handler<Connection>() {
+					public void handle(Connection connection) {
+						connection.run();
+					}
+				});
+	}
+
+	/** Main loop of the SMTP server.
+	 * Accept connections and hand each one to an <code>EventLoop</code>. */
+	public void run() {
+		stopped = false;
+		try {
+			try {
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.socket().setReuseAddress(true);
+				serverChannel.socket().bind(new InetSocketAddress(port));
+				for (int i = 0; i < loops.length; i++) {
+					loops[i] = new EventLoop();
+					loops[i].start();
+				}
+				log.info("LightAttachment service listening on port " + port +" (v. 2.1, "+loops.length+" event loops)");
+			} finally {
+				synchronized (this) {
+					// Notify when server socket has been created
+					notifyAll();
+				}
+			}
+
+			log.info("LightAttachment service started");
+			// Server: loop until stopped
+			while (!isStopped()) {
+				SocketChannel channel = null;
+				try {
+					channel = serverChannel.accept();
+					log.info("SMTPPostfixInputConnector accepted connection from ("+channel.socket().hashCode()+")"
+							+ channel.socket().getInetAddress());
+					channel.configureBlocking(false);
+					loops[next].register(channel);
+					next = (next + 1) % loops.length;
+				} catch (AsynchronousCloseException e) {
+					break; // The server channel has been closed by shutdown()
+				} catch (IOException e) {
+					log.error(e.getMessage(),e);
+					if (channel != null) {
+						channel.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.error(e.getMessage(),e);
+			e.printStackTrace();
+			SendErrorReportThread sert = new SendErrorReportThread(null,
+					"NioSMTPPostfixInputConnector has been stopped.",e);
+			sert.start();
+		} finally {
+			if (serverChannel != null) {
+				try {
+					serverChannel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+					log.error(e.getMessage(),e);
+					SendErrorReportThread sert = new SendErrorReportThread(null,
+							"NioSMTPPostfixInputConnector has been stopped: server socket couldn't be initialized",e);
+					sert.start();
+				}
+			}
+		}
+	}
+
+	/** Check if the server has been placed in a stopped state. Allows another thread to
+	 * stop the server safely.
+	 * @return true if the server has been sent a stop signal, false otherwise. */
+	public synchronized boolean isStopped() {
+		return stopped;
+	}
+
+	/** Stops the server and closes every connection.
+	 * @throws IOException */
+	public synchronized void shutdown() throws IOException {
+		// Mark us closed
+		stopped = true;
+		for (EventLoop l : loops) if (l != null) l.shutdown();
+		sessionPool.shutdown();
+		try {
+			// Kick the server accept loop
+			if (serverChannel != null) serverChannel.close();
+			log.info("LightAttachment service stopped");
+		} catch (IOException e) {
+			log.error(e.getMessage(),e);
+		}
+	}
+
+	/** The state of a single connection handled by an <code>EventLoop</code>. */
+	private class Connection {
+
+		/** The connection channel. */
+		private SocketChannel channel;
+
+		/** The event loop of the connection. */
+		private EventLoop loop;
+
+		/** The connection key. */
+		private SelectionKey key;
+
+		/** The SMTP dialog. */
+		private StreamedSmtpSession session;
+
+		/** Responses produced by the session, not yet moved to <code>pending</code>. */
+		private ByteArrayOutputStream responses;
+
+		/** Responses waiting for the channel to be writable. */
+		private LinkedList<ByteBuffer> pending;
+
+		/** Bytes read from the channel, to be handled by the session. <code>null</code> before the client is greeted. */
+		private byte[] input;
+
+		/** Error raised by the session, reported by the event loop. */
+		private IOException failure;
+
+		/** Build a <code>Connection</code>.
+		 * @param channel the connection channel.
+		 * @param loop the event loop of the connection. */
+		public Connection(SocketChannel channel, EventLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+			this.session = new StreamedSmtpSession(streamedParser, channel.socket().hashCode());
+			this.responses = new ByteArrayOutputStream(256);
+			this.pending = new LinkedList<ByteBuffer>();
+		}
+
+		/** Greet the client, or handle the bytes read from the channel, then hand the connection back to its loop.
+		 * Run by a worker of the <code>sessionPool</code>. */
+		public void run() {
+			try {
+				if (input == null) session.open(responses);
+				else session.receive(input, 0, input.length, responses);
+			} catch (IOException e) {
+				failure = e;
+			}
+			input = null;
+			loop.resume(this);
+		}
+
+		/** Queue the responses produced by the session and write as much of them as possible.
+		 * @return <code>true</code> if everything has been written. */
+		public boolean flush() throws IOException {
+			if (responses.size() > 0) {
+				pending.add(ByteBuffer.wrap(responses.toByteArray()));
+				responses.reset();
+			}
+			while (!pending.isEmpty()) {
+				ByteBuffer b = pending.getFirst();
+				channel.write(b);
+				if (b.hasRemaining()) return false;
+				pending.removeFirst();
+			}
+			return true;
+		}
+
+		/** Close the connection. */
+		public void close() {
+			session.close();
+			try {
+				channel.close();
+				log.info("SMTPPostfixInputConnector close connection with (" + session.getId() + ")"
+						+ channel.socket().getInetAddress());
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+
+	}
+
+	/** Multiplex a set of connections within a single thread. */
+	private class EventLoop extends StoppableThread {
+
+		/** The selector of the connections. */
+		private Selector selector;
+
+		/** Accepted channels waiting to be registered to the selector. */
+		private ConcurrentLinkedQueue<SocketChannel> registrations;
+
+		/** Connections whose session has run, waiting to be selected again. */
+		private ConcurrentLinkedQueue<Connection> resumed;
+
+		/** Connections waiting for space in the <code>sessionPool</code> queue. */
+		private LinkedList<Connection> parked;
+
+		/** Buffer used to read the connections. */
+		private ByteBuffer buffer;
+
+		/** Build an <code>EventLoop</code>. */
+		public EventLoop() throws IOException {
+			super();
+			this.selector = Selector.open();
+			this.registrations = new ConcurrentLinkedQueue<SocketChannel>();
+			this.resumed = new ConcurrentLinkedQueue<Connection>();
+			this.parked = new LinkedList<Connection>();
+			this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+
+		/** Hand an accepted channel to this loop.
+		 * @param channel the accepted channel, in non-blocking mode. */
+		public void register(SocketChannel channel) {
+			registrations.add(channel);
+			selector.wakeup();
+		}
+
+		/** Hand back a connection whose session has run.
+		 * @param connection the connection. */
+		public void resume(Connection connection) {
+			resumed.add(connection);
+			selector.wakeup();
+		}
+
+		/** Safely shutdown the instance. */
+		public void shutdown() {
+			setDone(true);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			super.run();
+
+			try {
+				while (!isDone()) {
+					selector.select(parked.isEmpty() ? timeout : PARKED_TIMEOUT);
+
+					SocketChannel channel = null;
+					while ((channel = registrations.poll()) != null) accept(channel);
+
+					Connection connection = null;
+					while ((connection = resumed.poll()) != null) complete(connection);
+					while (!parked.isEmpty() && sessionPool.offer(parked.getFirst())) parked.removeFirst();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						handle(key);
+					}
+				}
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+				SendErrorReportThread sert = new SendErrorReportThread(null,
+						"NioSMTPPostfixInputConnector event loop has been stopped.", e);
+				sert.start();
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					if (key.attachment() != null) ((Connection) key.attachment()).close();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					log.error(e.getMessage(), e);
+				}
+				setDone(true);
+			}
+		}
+
+		/** Register a new channel and have the client greeted.
+		 * @param channel the accepted channel. */
+		private void accept(SocketChannel channel) {
+			Connection connection = new Connection(channel, this);
+			try {
+				connection.key = channel.register(selector, 0, connection);
+				dispatch(connection);
+			} catch (IOException e) {
+				error(connection, e);
+			}
+		}
+
+		/** Hand a connection to the <code>sessionPool</code>, or park it if the pool queue is full. The connection isn't
+		 * selected until its session has run.
+		 * @param connection the connection. */
+		private void dispatch(Connection connection) {
+			if (!parked.isEmpty() || !sessionPool.offer(connection)) parked.add(connection);
+		}
+
+		/** Report the error of a session or select the next operation of its connection, once the session has run.
+		 * @param connection the connection. */
+		private void complete(Connection connection) {
+			SelectionKey key = connection.key;
+			try {
+				if (connection.failure != null) {
+					key.cancel();
+					error(connection, connection.failure);
+				} else if (key.isValid()) {
+					update(key, connection);
+				}
+			} catch (IOException e) {
+				key.cancel();
+				error(connection, e);
+			}
+		}
+
+		/** Handle a selected key.
+		 * @param key the selected key. */
+		private void handle(SelectionKey key) {
+			Connection connection = (Connection) key.attachment();
+			try {
+				if (key.isValid() && key.isReadable()) {
+					buffer.clear();
+					int read = connection.channel.read(buffer);
+					if (read == -1) {
+						key.cancel();
+						connection.close();
+						return;
+					} else if (read > 0) {
+						connection.input = Arrays.copyOf(buffer.array(), read);
+						key.interestOps(0);
+						dispatch(connection);
+						return;
+					}
+				}
+				if (key.isValid()) update(key, connection);
+			} catch (IOException e) {
+				key.cancel();
+				error(connection, e);
+			}
+		}
+
+		/** Write the pending responses and select the next operation of a connection.
+		 * The connection is not read while its responses are not written, and is closed once the session is over.
+		 * @param key the connection key.
+		 * @param connection the connection. */
+		private void update(SelectionKey key, Connection connection) throws IOException {
+			if (connection.flush()) {
+				if (connection.session.isOpen()) {
+					key.interestOps(SelectionKey.OP_READ);
+				} else {
+					key.cancel();
+					connection.close();
+				}
+			} else {
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+
+		/** Report an error and close the connection.
+		 * @param connection the connection in error.
+		 * @param e the error. */
+		private void error(Connection connection, IOException e) {
+			log.error(e.getMessage(), e);
+			e.printStackTrace();
+			SendErrorReportThread sert = new SendErrorReportThread(null,
+					"NioSMTPPostfixInputConnector get error(s) while speaking to (" + connection.session.getId() + ")"
+							+ connection.channel.socket().getInetAddress(), e);
+			sert.start();
+			connection.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,22 @@
+package com.lightattachment.smtp.streamed;
+
+import java.io.IOException;
+
+/**
+ * A listener accepting the Postfix <code>smtp</code> connections.
+ * The implementation is selected by the <code>postfix.in-address[@mode]</code> attribute of <code>lightattachment.xml</code>.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public interface PostfixInputConnector {
+
+	/** Start listening. */
+	public void start();
+
+	/** Stop listening and close the running connections. */
+	public void shutdown() throws IOException;
+
+}
@@ -1,8 +1,10 @@
 package com.lightattachment.smtp.streamed;
 
-import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
@@ -11,6 +13,7 @@ import java.util.regex.Pattern;
 import org.apache.log4j.Logger;
 
 import com.lightattachment.mails.LightAttachment;
+import com.lightattachment.mails.SpoolSpaceManager;
 import com.lightattachment.smtp.SmtpResponse;
 import com.lightattachment.smtp.SmtpState;
 import com.lightattachment.stats.SendErrorReportThread;
@@ -29,8 +32,11 @@ public class StreamedSmtpMessage implements Comparable<StreamedSmtpMessage> {
 	/** The name of the file where the message is written. */
 	private String filename;
 	
-	/** Used to easily write on the message file. */
-	private PrintWriter pw;	
+	/** The channel of the message file. */
+	private FileChannel channel;
+	
+	/** Hold the bytes of the message until they are written to <code>channel</code>. */
+	private ByteBuffer buffer;
 	
 	/** <code>true</code> if the message is partial. */
 	private boolean partial;
@@ -59,16 +65,8 @@ public class StreamedSmtpMessage implements Comparable<StreamedSmtpMessage> {
 	/** The maximum allowed message size in bytes. */
 	private static long max;
 	
-	/** The total space of the current file system. */
-	private long totalSpace;
-	
-	/** A line count used to periodically check the disk free space. 
-	 * This control is CPU consuming and can't be tested for each line received. */
-	private long lineCount;
-	
-	/** The percentage of free disk space to maintain.
-	 * If exceeded, messages are bounced. */
-	private int pfree;
+	/** The bytes reserved in the spool for the message. */
+	private long reserved;
 	
 	/** <code>true</code> if the message can't be saved. */
 	private boolean full;
@@ -76,6 +74,9 @@ public class StreamedSmtpMessage implements Comparable<StreamedSmtpMessage> {
 	/** <code>true</code> if the message must be forwarded. */
 	private boolean forward;
 	
+	/** <code>true</code> if the message file is flushed to the disk once received, for the journal. */
+	private boolean sync;
+	
 	/** Used during the first information collection. */
 	private boolean waitCompletePartialHeader;
 	
@@ -85,8 +86,11 @@ public class StreamedSmtpMessage implements Comparable<StreamedSmtpMessage> {
 	/** Receiving ending date. */
 	private long end;
 	
-	/** The current file system. */
-	private static final File dir = new File(".");
+	/** Size of the buffer of the message file. */
+	private static final int BUFFER_SIZE = 65536;
+	
+	/** Number of bytes reserved in the spool at once. */
+	private static final long RESERVE_STEP = 8 * 1024 * 1024;
 	
 	/** Logger used to trace activity. */
 	static Logger log = Logger.getLogger(StreamedMailParser.class);
@@ -134,9 +138,8 @@ public class StreamedSmtpMessage implements Comparable<StreamedSmtpMessage> {
 		size = 0;
 		full = false;
 		max = LightAttachment.config.getLong("message.message-size.max-size");
-		totalSpace = dir.getTotalSpace();
-		pfree = LightAttachment.config.getInt("directory.free-space");
-		lineCount = 0;
+		reserved = 0;
+		sync = LightAttachment.config.getBoolean("directory.journal", false);
 		waitCompletePartialHeader = false;
 		forward = false;
 	}
@@ -145,92 +148,156 @@ public class StreamedSmtpMessage implements Comparable<StreamedSmtpMessage> {
 	 * Constantly checking for too large messages and storage exceeding. 
 	 * @param response the <code>SmtpResponse</code> of the SMTP client.
 	 * @param params the line to store. */
-	public void store(SmtpResponse response, String params) throws FileNotFoundException {
+	public void store(SmtpResponse response, String params) throws IOException {
 		if (params != null && ((params.length() == 0 && messageID != null) || params.length() != 0)) {
-			if (pw == null) {
-				pw = new PrintWriter(new File(filename));
-				begin = System.currentTimeMillis();
-			}
+			open();
+
+			if (SmtpState.DATA_HDR.equals(response.getNextState())) {
 
-			lineCount++;
-			
-			size = new File(filename).length();
-
-			if (lineCount <= 100000 || ((double) dir.getFreeSpace() / (double) totalSpace) * 100 >= pfree) {
-				if (lineCount > 100000) lineCount = 0;
-				if (size <= max) {
-
-					if (SmtpState.DATA_HDR.equals(response.getNextState())) {
-	
-						if (messageID == null) {
-							Matcher matcher = messageIDPattern.matcher(params);
-							if (matcher.find()) {
-								messageID = matcher.group(1);
-							}
-						}
-
-						Matcher contentMatcher = contentTypePattern.matcher(params);
-						Matcher numberMatcher = partialNumberPattern.matcher(params);
-						Matcher totalMatcher = partialTotalPattern.matcher(params);
-						Matcher idMatcher = partialIDPattern.matcher(params);
-						if (!waitCompletePartialHeader) {
-							if (contentMatcher.find() && contentMatcher.group(1).equals("message/partial")) {
-								partial = true;
-								if (numberMatcher.find()) number = Integer.parseInt(numberMatcher.group(1));
-								else waitCompletePartialHeader = true;
-								
-								if (totalMatcher.find()) total = Integer.parseInt(totalMatcher.group(1));
-								else waitCompletePartialHeader = true;
-								
-								if (idMatcher.find()) contentID = idMatcher.group(1);
-								else waitCompletePartialHeader = true;
-							}
-						} else {
-							if (numberMatcher.find()) number = Integer.parseInt(numberMatcher.group(1));
-							
-							if (totalMatcher.find()) total = Integer.parseInt(totalMatcher.group(1));
-							
-							if (idMatcher.find()) contentID = idMatcher.group(1);
-							
-							waitCompletePartialHeader = number <= -1 || contentID == null || total > -1;
-						}			
-
-						pw.print(params);
-						pw.flush();
-					} else if (SmtpState.DATA_BODY == response.getNextState()) {
-						pw.print(params);
-						pw.flush();
+				if (messageID == null) {
+					Matcher matcher = messageIDPattern.matcher(params);
+					if (matcher.find()) {
+						messageID = matcher.group(1);
 					}
+				}
 
+				Matcher contentMatcher = contentTypePattern.matcher(params);
+				Matcher numberMatcher = partialNumberPattern.matcher(params);
+				Matcher totalMatcher = partialTotalPattern.matcher(params);
+				Matcher idMatcher = partialIDPattern.matcher(params);
+				if (!waitCompletePartialHeader) {
+					if (contentMatcher.find() && contentMatcher.group(1).equals("message/partial")) {
+						partial = true;
+						if (numberMatcher.find()) number = Integer.parseInt(numberMatcher.group(1));
+						else waitCompletePartialHeader = true;
+						
+						if (totalMatcher.find()) total = Integer.parseInt(totalMatcher.group(1));
+						else waitCompletePartialHeader = true;
+						
+						if (idMatcher.find()) contentID = idMatcher.group(1);
+						else waitCompletePartialHeader = true;
+					}
 				} else {
-
-					log.error("Message of size above " + LightAttachment.config.getLong("message.message-size.max-size")
-							+ " bytes not allowed");
-					SendErrorReportThread sert = new SendErrorReportThread(null,
-							"Message of size above " + LightAttachment.config.getLong("message.message-size.max-size")
-							+ " bytes not allowed",null);
-					sert.start();
-					full = true;
-					new File(filename).delete();
-
+					if (numberMatcher.find()) number = Integer.parseInt(numberMatcher.group(1));
+					
+					if (totalMatcher.find()) total = Integer.parseInt(totalMatcher.group(1));
+					
+					if (idMatcher.find()) contentID = idMatcher.group(1);
+					
+					waitCompletePartialHeader = number <= -1 || contentID == null || total > -1;
+				}			
+
+				byte[] b = params.getBytes("ISO-8859-1");
+				write(b, 0, b.length);
+			} else if (SmtpState.DATA_BODY == response.getNextState()) {
+				byte[] b = params.getBytes("ISO-8859-1");
+				write(b, 0, b.length);
+			}
+		}
+	}
+	
+	/** Open the message file if it is not opened yet. */
+	private void open() throws FileNotFoundException {
+		if (channel == null && !full) {
+			channel = new FileOutputStream(filename).getChannel();
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			begin = System.currentTimeMillis();
+		}
+	}
+	
+	/** Write bytes to the message. They are written to the message file in chunks of <code>BUFFER_SIZE</code> bytes.
+	 * Constantly checking for too large messages and storage exceeding.
+	 * @param b the bytes to write.
+	 * @param off the offset of the first byte.
+	 * @param len the number of bytes. */
+	public void write(byte[] b, int off, int len) throws IOException {
+		open();
+		if (!full) {
+			size += len;
+			if (size > reserved && !reserve(Math.max(RESERVE_STEP, size - reserved))) {
+
+				log.error("Less than "+LightAttachment.config.getLong("directory.free-space")+"% of free space would be left: stop receiving");
+				SendErrorReportThread sert = new SendErrorReportThread(null,
+						"Less than "+LightAttachment.config.getLong("directory.free-space")+"% of free space would be left: stop receiving",null);
+				sert.start();
+				discard();
+
+			} else if (size <= max) {
+				while (len > 0) {
+					int n = Math.min(len, buffer.remaining());
+					buffer.put(b, off, n);
+					off += n;
+					len -= n;
+					if (!buffer.hasRemaining()) flush();
 				}
-
 			} else {
 
-				log.error("Only "+LightAttachment.config.getLong("directory.free-space")+"% of free space available: stop receiving");
+				log.error("Message of size above " + LightAttachment.config.getLong("message.message-size.max-size")
+						+ " bytes not allowed");
 				SendErrorReportThread sert = new SendErrorReportThread(null,
-						"Only "+LightAttachment.config.getLong("directory.free-space")+"% of free space available: stop receiving",null);
+						"Message of size above " + LightAttachment.config.getLong("message.message-size.max-size")
+						+ " bytes not allowed",null);
 				sert.start();
-				full = true;
-				new File(filename).delete();
+				discard();
 
 			}
 		}
 	}
 	
+	/** Write a single byte to the message.
+	 * @param b the byte to write. */
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+	
+	/** Write the buffered bytes to the message file. */
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+	
+	/** Reserve space in the spool for the message.
+	 * @param bytes the number of bytes to reserve
+	 * @return <code>true</code> if the space is reserved, <code>false</code> if the spool is full */
+	public boolean reserve(long bytes) {
+		if (!SpoolSpaceManager.get().reserve(filename, bytes)) return false;
+		reserved += bytes;
+		return true;
+	}
+	
+	/** Return the bytes reserved in the spool for the message.
+	 * @return the number of bytes */
+	public long getReserved() {
+		return reserved;
+	}
+	
+	/** Stop receiving the message and delete its file. */
+	private void discard() throws IOException {
+		full = true;
+		channel.close();
+		channel = null;
+		buffer = null;
+		SpoolSpaceManager.get().delete(filename);
+	}
+	
+	/** End the message reception and close its file. */
 	public void end() {
 		end = System.currentTimeMillis();
-		if (pw != null) pw.close();
+		if (channel != null) {
+			try {
+				flush();
+				if (channel != null && sync) channel.force(false);
+				if (channel != null) channel.close();
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+				e.printStackTrace();
+			}
+			channel = null;
+			buffer = null;
+			// Only the bytes received stay charged
+			SpoolSpaceManager.get().settle(filename);
+		}
 	}
 	
 	public boolean isPartial() {
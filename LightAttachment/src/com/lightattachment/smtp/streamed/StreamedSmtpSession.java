@@ -0,0 +1,495 @@
+package com.lightattachment.smtp.streamed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.lightattachment.mails.LightAttachment;
+import com.lightattachment.mails.SpoolSpaceManager;
+import com.lightattachment.smtp.SmtpActionType;
+import com.lightattachment.smtp.SmtpRequest;
+import com.lightattachment.smtp.SmtpResponse;
+import com.lightattachment.smtp.SmtpState;
+
+/**
+ * The SMTP dialog of a single Postfix connection.
+ * Bytes read from the connection are pushed to the session, which splits them into lines, drives the
+ * <code>SmtpRequest</code> / <code>SmtpState</code> state machine and writes the responses to the given stream.
+ * Once the header of a message is received, its body is scanned byte by byte: lines are unstuffed and written
+ * to the message in large chunks until <code>CRLF.CRLF</code> is received.
+ * A message sent with <code>BDAT</code> (CHUNKING) is read by byte count: the header lines are stored like the ones
+ * of <code>DATA</code>, then the bytes of the body are written to the message as they are received, CRLF as LF, so
+ * that a message is stored the same way whatever command sent it.
+ * A session does no I/O on its own, so it can be used by a blocking or a non-blocking listener.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class StreamedSmtpSession {
+
+	/** Message received are pushed to the <code>StreamedMailParser</code>. */
+	private StreamedMailParser streamedParser;
+
+	/** Identify the connection in the logs. */
+	private int id;
+
+	/** Current state of the SMTP state machine. */
+	private SmtpState smtpState;
+
+	/** The message being received. */
+	private StreamedSmtpMessage msg;
+
+	/** The <code>from</code> envelope of the message being received. */
+	private String from;
+
+	/** The <code>to</code> envelope of the message being received. */
+	private String to;
+
+	/** Set to <code>false</code> when the client must be disconnected. */
+	private boolean goon;
+
+	/** Bytes of the line being received. */
+	private ByteArrayOutputStream line;
+	
+	/** Bytes of the header line being received in a BDAT chunk. */
+	private ByteArrayOutputStream header;
+	
+	/** <code>true</code> while the header of a message sent with BDAT is received. */
+	private boolean inHeader;
+	
+	/** <code>true</code> once a BDAT chunk of the message being received is accepted. */
+	private boolean chunked;
+	
+	/** Number of bytes of the current BDAT chunk not received yet. */
+	private long chunk;
+	
+	/** <code>true</code> if the last body byte of a BDAT chunk is a CR, not written yet. */
+	private boolean chunkCR;
+	
+	/** The response to send once the current BDAT chunk is received. */
+	private SmtpResponse pending;
+	
+	/** State of the body scanning, one of <code>BOL</code>, <code>TEXT</code>, <code>CR</code>, <code>DOT</code>
+	 * and <code>DOT_CR</code>. */
+	private int body;
+	
+	/** Body scanning state: at the beginning of a line. */
+	private static final int BOL = 0;
+	
+	/** Body scanning state: in a line. */
+	private static final int TEXT = 1;
+	
+	/** Body scanning state: after a CR, not written yet. */
+	private static final int CR = 2;
+	
+	/** Body scanning state: after a dot at the beginning of a line, not written yet. */
+	private static final int DOT = 3;
+	
+	/** Body scanning state: after a dot and a CR at the beginning of a line, not written yet. */
+	private static final int DOT_CR = 4;
+
+	/** Logger used to trace activity. */
+	static Logger log = Logger.getLogger(StreamedSmtpSession.class);
+
+	/** Build a <code>StreamedSmtpSession</code>.
+	 * @param parser the parser to push the received messages to.
+	 * @param id identify the connection in the logs. */
+	public StreamedSmtpSession(StreamedMailParser parser, int id) {
+		this.streamedParser = parser;
+		this.id = id;
+		this.smtpState = SmtpState.CONNECT;
+		this.from = "";
+		this.to = "";
+		this.goon = true;
+		this.line = new ByteArrayOutputStream(256);
+		this.header = new ByteArrayOutputStream(256);
+		this.body = BOL;
+	}
+
+	/** Start the dialog by sending the greeting.
+	 * @param out the stream to write the responses to. */
+	public void open(OutputStream out) throws IOException {
+		SmtpRequest smtpRequest = new SmtpRequest(SmtpActionType.CONNECT, "", smtpState);
+		SmtpResponse smtpResponse = smtpRequest.execute();
+		sendResponse(out, smtpResponse);
+		smtpState = smtpResponse.getNextState();
+
+		msg = new StreamedSmtpMessage(LightAttachment.config.getString("directory.temp") + System.nanoTime());
+	}
+
+	/** Handle bytes received from the client.
+	 * Each complete line is executed, the remaining bytes are kept until the end of the line is received.
+	 * The bytes of a message body are handed to <code>receiveBody</code>, the bytes of a BDAT chunk to
+	 * <code>receiveChunk</code>.
+	 * @param b the received bytes.
+	 * @param off the offset of the first byte.
+	 * @param len the number of bytes.
+	 * @param out the stream to write the responses to. */
+	public void receive(byte[] b, int off, int len, OutputStream out) throws IOException {
+		int start = off;
+		int end = off + len;
+		int i = off;
+		while (i < end && isOpen()) {
+			if (smtpState == SmtpState.DATA_BODY) {
+				i = receiveBody(b, i, end, out);
+				start = i;
+			} else if (smtpState == SmtpState.CHUNK) {
+				i = receiveChunk(b, i, end, out);
+				start = i;
+			} else {
+				if (b[i] == '\n') {
+					line.write(b, start, i - start);
+					start = i + 1;
+
+					byte[] l = line.toByteArray();
+					int first = 0;
+					int length = l.length;
+					if (length > 0 && l[length - 1] == '\r') length--;
+					if (smtpState == SmtpState.DATA_HDR && length > 1 && l[0] == '.') first++;
+					line.reset();
+
+					sendResponse(out, process(new String(l, first, length - first, "ISO-8859-1")));
+					if (smtpState == SmtpState.CHUNK && chunk == 0) endChunk(out);
+				}
+				i++;
+			}
+		}
+		if (start < end && isOpen() && smtpState != SmtpState.DATA_BODY && smtpState != SmtpState.CHUNK)
+			line.write(b, start, end - start);
+		out.flush();
+	}
+	
+	/** Write the bytes of a message body to the message, until the end of the body.
+	 * Lines beginning with a dot are unstuffed and CRLF are written as LF, like the lines of the header.
+	 * Bytes are written by runs, so that a body is not copied line by line.
+	 * @param b the received bytes.
+	 * @param off the offset of the first byte.
+	 * @param end the offset following the last byte.
+	 * @param out the stream to write the responses to.
+	 * @return the offset following the last byte of the body, or <code>end</code> if the body is not complete. */
+	private int receiveBody(byte[] b, int off, int end, OutputStream out) throws IOException {
+		// Bytes from run to the current byte are written as they are
+		int run = off;
+		for (int i = off; i < end; i++) {
+			byte c = b[i];
+			if (body == BOL) {
+				if (c == '.') {
+					msg.write(b, run, i - run);
+					run = i + 1;
+					body = DOT;
+					continue;
+				}
+				// Any other byte is the first one of a line of text
+				body = TEXT;
+			}
+			switch (body) {
+			case TEXT:
+				if (c == '\r') {
+					msg.write(b, run, i - run);
+					run = i + 1;
+					body = CR;
+				} else if (c == '\n') {
+					body = BOL;
+				}
+				break;
+			case CR:
+				if (c == '\n') {
+					body = BOL;
+				} else {
+					msg.write('\r');
+					if (c == '\r') run = i + 1;
+					else body = TEXT;
+				}
+				break;
+			case DOT:
+				if (c == '\r') {
+					run = i + 1;
+					body = DOT_CR;
+				} else if (c == '\n') {
+					return endBody(i + 1, out);
+				} else {
+					body = TEXT;
+				}
+				break;
+			case DOT_CR:
+				if (c == '\n') {
+					return endBody(i + 1, out);
+				} else {
+					msg.write('\r');
+					if (c == '\r') {
+						run = i + 1;
+						body = CR;
+					} else body = TEXT;
+				}
+				break;
+			}
+		}
+		msg.write(b, run, end - run);
+		if (msg.isFull()) {
+			sendResponse(out, exceeded(smtpState));
+			goon = false;
+		}
+		return end;
+	}
+	
+	/** Execute the end of a message body.
+	 * @param next the offset following the last byte of the body.
+	 * @param out the stream to write the responses to.
+	 * @return <code>next</code> */
+	private int endBody(int next, OutputStream out) throws IOException {
+		body = BOL;
+		sendResponse(out, process("."));
+		return next;
+	}
+
+	/** Write the bytes of a BDAT chunk to the message, until the end of the chunk. The bytes of a rejected chunk are
+	 * read and dropped.
+	 * @param b the received bytes.
+	 * @param off the offset of the first byte.
+	 * @param end the offset following the last byte.
+	 * @param out the stream to write the responses to.
+	 * @return the offset following the last byte of the chunk, or <code>end</code> if the chunk is not complete. */
+	private int receiveChunk(byte[] b, int off, int end, OutputStream out) throws IOException {
+		int next = off + (int) Math.min(chunk, end - off);
+		chunk -= next - off;
+		if (pending.getCode() < 400) {
+			int i = off;
+			// The header lines are stored one by one, like the lines of DATA
+			while (inHeader && i < next) {
+				if (b[i] == '\n') {
+					header.write(b, off, i - off);
+					storeHeader();
+					off = i + 1;
+				}
+				i++;
+			}
+			if (inHeader) header.write(b, off, next - off);
+			else writeChunk(b, i, next);
+			
+			if (msg.isFull()) {
+				sendResponse(out, exceeded(SmtpState.MAIL));
+				goon = false;
+				return end;
+			}
+		}
+		if (chunk == 0) endChunk(out);
+		return next;
+	}
+	
+	/** Write body bytes of a BDAT chunk to the message, CRLF as LF like the body of <code>DATA</code>. Lines are not
+	 * unstuffed: the bytes of a chunk are not dot-stuffed. A CR ending the bytes is held until the next byte is
+	 * received, in this chunk or the next one.
+	 * @param b the received bytes.
+	 * @param off the offset of the first byte.
+	 * @param end the offset following the last byte. */
+	private void writeChunk(byte[] b, int off, int end) throws IOException {
+		int run = off;
+		for (int i = off; i < end; i++) {
+			if (chunkCR) {
+				chunkCR = false;
+				if (b[i] != '\n') msg.write('\r');
+			}
+			if (b[i] == '\r') {
+				msg.write(b, run, i - run);
+				run = i + 1;
+				chunkCR = true;
+			}
+		}
+		msg.write(b, run, end - run);
+	}
+	
+	/** Store the header line received in a BDAT chunk. A blank line ends the header. */
+	private void storeHeader() throws IOException {
+		byte[] l = header.toByteArray();
+		int length = l.length;
+		if (length > 0 && l[length - 1] == '\r') length--;
+		header.reset();
+		if (length == 0) {
+			msg.store(new SmtpResponse(-1, "", SmtpState.DATA_BODY), "\n");
+			inHeader = false;
+		} else {
+			msg.store(new SmtpResponse(-1, "", SmtpState.DATA_HDR), new String(l, 0, length, "ISO-8859-1") + "\n");
+		}
+	}
+	
+	/** Execute the end of a BDAT chunk: send its response, and save the message after the last chunk.
+	 * @param out the stream to write the responses to. */
+	private void endChunk(OutputStream out) throws IOException {
+		SmtpResponse response = pending;
+		pending = null;
+		smtpState = response.getNextState();
+		if (smtpState == SmtpState.QUIT) {
+			if (inHeader && header.size() > 0) storeHeader();
+			if (chunkCR) msg.write('\r');
+			chunkCR = false;
+			inHeader = false;
+			chunked = false;
+			response = complete(response);
+		}
+		sendResponse(out, response);
+	}
+
+	/** Execute a single line received from the client.
+	 * @param input the line without its end of line.
+	 * @return the response to send back. */
+	private SmtpResponse process(String input) throws IOException {
+		// Create request from client input and current state
+		SmtpRequest request = SmtpRequest.createRequest(input, smtpState);
+		// Execute request and create response object
+		SmtpResponse response = request.execute();
+
+		// Defer the new mails while the pipeline is overloaded, Postfix will retry them later
+		if (response.getCode() < 400 && streamedParser.getAdmission().defer()) {
+			if (request.getAction().equals(SmtpActionType.MAIL)) {
+				response = deferred(smtpState);
+			} else if (request.getAction().equals(SmtpActionType.DATA) || (smtpState == SmtpState.RCPT
+					&& (request.getAction().equals(SmtpActionType.BDAT) || request.getAction().equals(SmtpActionType.BDAT_LAST)))) {
+				response = deferred(SmtpState.MAIL);
+				to = null;
+			}
+		}
+
+		// Reserve the spool space for the declared size before accepting the mail
+		if (response.getCode() < 400 && request.getAction().equals(SmtpActionType.MAIL)
+				&& request.getSize() > msg.getReserved() && !msg.reserve(request.getSize() - msg.getReserved())) {
+			response = new SmtpResponse(452, "Requested action not taken by LightAttachment: insufficient system storage",
+					smtpState);
+		}
+
+		if (msg.isFull()) {
+			response = exceeded(response.getNextState());
+			goon = false;
+		}
+
+		// The response to BDAT is sent once its chunk is received
+		if (request.getAction().equals(SmtpActionType.BDAT) || request.getAction().equals(SmtpActionType.BDAT_LAST)) {
+			if (response.getCode() < 400 && !chunked) {
+				chunked = true;
+				inHeader = true;
+				header.reset();
+				chunkCR = false;
+			}
+			pending = response;
+			chunk = Math.max(0, request.getSize());
+			smtpState = SmtpState.CHUNK;
+			return new SmtpResponse(-1, "", SmtpState.CHUNK);
+		}
+
+		// Move to next internal state
+		smtpState = response.getNextState();
+
+		// Store input in message
+		String params = request.getParams();
+		msg.store(response, params);
+
+		if (response.getCode() >= 400) {
+			// Rejected or deferred: the envelope is unchanged
+		} else if (request.getAction().equals(SmtpActionType.MAIL)) {
+			from = request.getFrom();
+		} else if (request.getAction().equals(SmtpActionType.RSET)) {
+			to = null;
+			if (chunked) {
+				// Drop the chunks already received
+				chunked = false;
+				chunkCR = false;
+				msg.end();
+				SpoolSpaceManager.get().delete(msg.getFilename());
+				msg = new StreamedSmtpMessage(LightAttachment.config.getString("directory.temp") + System.nanoTime());
+			}
+		} else if (request.getAction().equals(SmtpActionType.RCPT)) {
+			if (to == null || to.length() <= 0)
+				to = request.getTo();
+			else
+				to += "," + request.getTo();
+		}
+
+		// If message reception is complete save it
+		if (smtpState == SmtpState.QUIT) response = complete(response);
+
+		return response;
+	}
+
+	/** Save a received message: record it in the journal and push it to the parser.
+	 * @param response the response to the end of the message.
+	 * @return the response to send back. */
+	private SmtpResponse complete(SmtpResponse response) throws IOException {
+		if (from != null && to != null) {
+			msg.setFrom(from);
+			msg.setTo(to);
+		}
+		msg.end();
+		log.info("("+id+") received a message in "+(msg.getEnd()-msg.getBegin())+" ms");
+		if (streamedParser.received(msg)) {
+			if (!streamedParser.push(msg)) {
+				// Not taken by the parser: let Postfix keep it
+				streamedParser.drop(msg);
+				response = msg.isFull() ? exceeded(response.getNextState()) : deferred(response.getNextState());
+			}
+			msg = new StreamedSmtpMessage(LightAttachment.config.getString("directory.temp") + System.nanoTime());
+			to = null;
+		} else {
+			// Not recorded, so it wouldn't be resumed after a crash: let Postfix keep it
+			SpoolSpaceManager.get().delete(msg.getFilename());
+			response = new SmtpResponse(451, "Requested action aborted by LightAttachment: local error in processing",
+					response.getNextState());
+			msg = new StreamedSmtpMessage(LightAttachment.config.getString("directory.temp") + System.nanoTime());
+			to = null;
+		}
+
+		return response;
+	}
+
+	/** Build the response sent when a message can't be stored.
+	 * @param next the next state.
+	 * @return the response to send back. */
+	private SmtpResponse exceeded(SmtpState next) {
+		return new SmtpResponse(552, "Requested mail action aborted by LightAttachment: exceeded storage allocation", next);
+	}
+
+	/** Build the response sent when a mail is deferred by the <code>AdmissionControl</code>, or not taken by the
+	 * parser because its queue is full.
+	 * @param next the next state.
+	 * @return the response to send back. */
+	private SmtpResponse deferred(SmtpState next) {
+		return new SmtpResponse(451, "Requested action aborted by LightAttachment: too much mail in progress, try again later",
+				next);
+	}
+
+	/** Send response to client. A message of several lines is sent as a multiline reply.
+	 * @param out output stream.
+	 * @param smtpResponse response object. */
+	private void sendResponse(OutputStream out, SmtpResponse smtpResponse) throws IOException {
+		if (smtpResponse.getCode() > 0) {
+			int code = smtpResponse.getCode();
+			String[] lines = smtpResponse.getMessage().split("\n");
+			StringBuffer reply = new StringBuffer();
+			for (int i = 0; i < lines.length; i++) reply.append(code + (i < lines.length - 1 ? "-" : " ") + lines[i] + "\r\n");
+			out.write(reply.toString().getBytes());
+		}
+	}
+
+	/** Close the session and the message being received, if any. The message wasn't pushed to the parser (deferred
+	 * or interrupted), so its file is deleted. */
+	public void close() {
+		goon = false;
+		if (msg != null) {
+			msg.end();
+			SpoolSpaceManager.get().delete(msg.getFilename());
+		}
+	}
+
+	/** Return <code>true</code> while the client must stay connected.
+	 * @return <code>true</code> while the client must stay connected */
+	public boolean isOpen() {
+		return goon && smtpState != SmtpState.CONNECT;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+}
@@ -18,6 +18,7 @@ import org.rrd4j.core.RrdDef;
 import org.rrd4j.core.Sample;
 
 import com.lightattachment.mails.LightAttachment;
+import com.lightattachment.mails.SpoolSpaceManager;
 
 /** This appender is used to extract statistical information from the logs. */
 public class StatisticAppender extends AppenderSkeleton {
@@ -590,15 +591,13 @@ public class StatisticAppender extends AppenderSkeleton {
 	/** Init the appender and the RRD database for the current session. 
 	 * It is called at the end of each session. The RRD database is defined here.*/
 	public void init() {
-		volume = 0;
-		File temp = new File(LightAttachment.config.getString("directory.temp"));
-		for (File n : temp.listFiles()) volume += n.length();
+		volume = SpoolSpaceManager.get().getUsed();
 		
 		session = new StatisticSession();
 		long time = System.currentTimeMillis();
 		session.setBeginDate(time);
 		session.setEndDate(addLimit(time));
-		session.setFreespaceBefore(new File(".").getFreeSpace());
+		session.setFreespaceBefore(new File(LightAttachment.config.getString("directory.temp")).getFreeSpace());
 		
 		report = new ReportGenerator(session);
 		
@@ -661,7 +660,7 @@ public class StatisticAppender extends AppenderSkeleton {
 	public void close() {		
 		long time = System.currentTimeMillis();
 		session.setEndDate(time);
-		session.setFreespaceAfter(new File(".").getFreeSpace());
+		session.setFreespaceAfter(new File(LightAttachment.config.getString("directory.temp")).getFreeSpace());
 		log.info("Session "+session.hashCode()+" ended at "+new Date(time));
 		try {
 			
@@ -0,0 +1,437 @@
+package com.lightattachment.mails;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test the lookup of the attachments already saved on e-BigSend against a stub e-BigSend host.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class AttachmentSaverTest extends TestCase {
+
+	/** Find the <code>CRC</code> fields of a lookup request. */
+	private static final Pattern CRC = Pattern.compile("name=\"CRC\".*?\r\n\r\n([0-9A-F]+)\r\n", Pattern.DOTALL);
+
+	/** Find the file name of an upload. */
+	private static final Pattern FILENAME = Pattern.compile("filename=\"([^\"]*)\"");
+
+	/** Find the name of a multipart field. */
+	private static final Pattern NAME = Pattern.compile("name=\"([^\"]*)\"");
+
+	/** The stub e-BigSend host. */
+	private HttpServer server;
+
+	/** The stub e-BigSend URL. */
+	private String host;
+
+	/** Status answered by the stub. */
+	private volatile int status;
+
+	/** Body answered by the stub to a single <code>CRC</code> lookup, by CRC. */
+	private ConcurrentHashMap<String, String> saved;
+
+	/** Body answered by the stub to a batch lookup, or <code>null</code> to answer a line by CRC. */
+	private volatile String batchAnswer;
+
+	/** Number of <code>CRC</code> fields of each request received by the stub. */
+	private List<Integer> requests;
+
+	/** File names of the uploads received by the stub. */
+	private List<String> uploads;
+
+	/** Number of uploads the stub still answers with a server error. */
+	private AtomicInteger failUploads;
+
+	/** Bytes of the chunked upload held by the stub. */
+	private ByteArrayOutputStream stored;
+
+	/** Number of chunk bytes received by the stub, stored or not. */
+	private long received;
+
+	/** Number of chunks stored by the stub. */
+	private int chunks;
+
+	/** The stub drops the connection instead of answering once it stored this chunk, 0 to always answer. */
+	private int dropAfter;
+
+	/** The attachment files. */
+	private ArrayList<String> files;
+
+	/** The <code>MailSet</code> of the attachments. */
+	private MailSet set;
+
+	@Override
+	protected void setUp() throws Exception {
+		LightAttachment.config = new XMLConfiguration("config/lightattachment.xml");
+		LightAttachment.config.setProperty("ebigsend.batch-lookup", "true");
+		LightAttachment.config.setProperty("ebigsend.link-cache[@size]", "0");
+		LightAttachment.config.setProperty("ebigsend.breaker[@failures]", "2");
+		LightAttachment.config.setProperty("ebigsend.attempt", "3");
+		LightAttachment.config.setProperty("ebigsend.attempt-wait", "10");
+		LightAttachment.config.setProperty("ebigsend.chunked[@size]", "3000");
+
+		status = 200;
+		saved = new ConcurrentHashMap<String, String>();
+		batchAnswer = null;
+		requests = Collections.synchronizedList(new ArrayList<Integer>());
+		uploads = Collections.synchronizedList(new ArrayList<String>());
+		failUploads = new AtomicInteger();
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/up", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String body = new String(read(exchange.getRequestBody()), "ISO-8859-1");
+				Matcher f = FILENAME.matcher(body);
+				if (f.find()) {
+					uploads.add(f.group(1));
+					if (failUploads.getAndDecrement() > 0) respond(exchange, 500, "Internal Server Error");
+					else respond(exchange, 200, "http://dl/" + f.group(1));
+					return;
+				}
+
+				ArrayList<String> crcs = new ArrayList<String>();
+				Matcher m = CRC.matcher(body);
+				while (m.find()) crcs.add(m.group(1));
+				requests.add(crcs.size());
+
+				String answer = batchAnswer;
+				if (answer == null || crcs.size() == 1) {
+					answer = "";
+					for (String crc : crcs) answer += (saved.containsKey(crc) ? saved.get(crc) : "false") + "\r\n";
+					if (crcs.size() == 1) answer = answer.trim();
+				}
+				respond(exchange, status, answer);
+			}
+		});
+		stored = new ByteArrayOutputStream();
+		received = 0;
+		chunks = 0;
+		dropAfter = 0;
+		server.createContext("/chunks", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String type = exchange.getRequestHeaders().getFirst("Content-Type");
+				String boundary = "--" + type.substring(type.indexOf("boundary=") + 9);
+				String body = new String(read(exchange.getRequestBody()), "ISO-8859-1");
+				HashMap<String, String> fields = new HashMap<String, String>();
+				String chunk = null;
+				for (String part : body.split(Pattern.quote(boundary))) {
+					int h = part.indexOf("\r\n\r\n");
+					if (h < 0) continue;
+					Matcher m = NAME.matcher(part.substring(0, h));
+					if (!m.find()) continue;
+					String content = part.substring(h + 4, part.length() - 2);
+					if (m.group(1).equals("upload-id") || m.group(1).equals("length") || m.group(1).equals("offset")) {
+						fields.put(m.group(1), content);
+					} else chunk = content;
+				}
+
+				long length = Long.parseLong(fields.get("length"));
+				String answer;
+				synchronized (stored) {
+					if (chunk != null) {
+						received += chunk.length();
+						if (Long.parseLong(fields.get("offset")) == stored.size() && chunk.length() > 0) {
+							stored.write(chunk.getBytes("ISO-8859-1"));
+							if (++chunks == dropAfter) {
+								// Stored, but the acknowledgement is lost
+								exchange.close();
+								return;
+							}
+						}
+					}
+					if (chunk != null && stored.size() == length) answer = "http://dl/" + fields.get("upload-id");
+					else answer = "OFFSET " + stored.size();
+				}
+				respond(exchange, 200, answer);
+			}
+		});
+		server.start();
+		host = "http://localhost:" + server.getAddress().getPort() + "/up";
+
+		set = new MailSet("<test@lightattachment>", "a@e-logiq.net", "b@x.org", false);
+		files = new ArrayList<String>();
+		for (int i = 0; i < 3; i++) {
+			File f = File.createTempFile("attachment", ".bin");
+			f.deleteOnExit();
+			FileOutputStream out = new FileOutputStream(f);
+			out.write(("attachment " + i).getBytes());
+			out.close();
+			set.add(f.getPath(), "file" + i + ".bin");
+			files.add(f.getPath());
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop(0);
+	}
+
+	/** Answer a request of the stub.
+	 * @param exchange the request
+	 * @param status the status
+	 * @param answer the body */
+	private static void respond(HttpExchange exchange, int status, String answer) throws IOException {
+		byte[] body = answer.getBytes("ISO-8859-1");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	/** Read a stream until its end.
+	 * @param in the stream */
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) b.write(buffer, 0, read);
+		return b.toByteArray();
+	}
+
+	/** Return the CRC of an attachment, as sent to e-BigSend.
+	 * @param i the index of the attachment */
+	private String crc(int i) throws Exception {
+		MessageDigest m = MessageDigest.getInstance("MD5");
+		m.update(("attachment " + i).getBytes());
+		StringBuilder sb = new StringBuilder();
+		for (byte b : m.digest()) sb.append(Integer.toHexString((b & 0xFF) + 0x100).substring(1).toUpperCase());
+		// Like AttachmentSaver.byteToString, the last character is cut as if it was a separator
+		return sb.substring(0, sb.length() - 1);
+	}
+
+	/** Write an attachment of random bytes.
+	 * @param length the attachment length */
+	private File attachment(int length) throws IOException {
+		byte[] content = new byte[length];
+		new Random(length).nextBytes(content);
+		File f = File.createTempFile("chunked", ".bin");
+		f.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(content);
+		out.close();
+		return f;
+	}
+
+	/** Read a file.
+	 * @param f the file */
+	private static byte[] read(File f) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Every attachment is found with a single request. */
+	public void testHit() throws Exception {
+		for (int i = 0; i < 3; i++) saved.put(crc(i), "http://dl/file" + i);
+		boolean[] missing = new boolean[3];
+		String[] found = new AttachmentSaver(null).findSaved(set, host, files, missing);
+
+		assertEquals(1, requests.size());
+		assertEquals(3, requests.get(0).intValue());
+		for (int i = 0; i < 3; i++) {
+			assertEquals("http://dl/file" + i, found[i]);
+			assertFalse(missing[i]);
+		}
+	}
+
+	/** The attachments not found are known to be missing, so that their upload doesn't look them up again. */
+	public void testMiss() throws Exception {
+		saved.put(crc(1), "http://dl/file1");
+		boolean[] missing = new boolean[3];
+		String[] found = new AttachmentSaver(null).findSaved(set, host, files, missing);
+
+		assertEquals(1, requests.size());
+		assertNull(found[0]);
+		assertEquals("http://dl/file1", found[1]);
+		assertNull(found[2]);
+		assertTrue(missing[0]);
+		assertFalse(missing[1]);
+		assertTrue(missing[2]);
+	}
+
+	/** An answer without a line for each attachment is ignored: each attachment is looked up on its own instead. */
+	public void testLineCountMismatchFallsBackToSingleLookups() throws Exception {
+		saved.put(crc(0), "http://dl/file0");
+		batchAnswer = "http://dl/file0\r\nfalse\r\n";
+		boolean[] missing = new boolean[3];
+		AttachmentSaver saver = new AttachmentSaver(null);
+		String[] found = saver.findSaved(set, host, files, missing);
+
+		assertEquals(1, requests.size());
+		for (int i = 0; i < 3; i++) {
+			assertNull(found[i]);
+			assertFalse(missing[i]);
+		}
+
+		// As done by the uploads of the attachments not known to be missing
+		assertEquals("http://dl/file0", saver.lookup(host, crc(0)));
+		assertNull(saver.lookup(host, crc(1)));
+		assertEquals(3, requests.size());
+		assertEquals(1, requests.get(1).intValue());
+	}
+
+	/** A server error fails the lookup and counts against the host, until its breaker opens. */
+	public void testServerErrorOpensBreaker() throws Exception {
+		status = 503;
+		AttachmentSaver saver = new AttachmentSaver(null);
+		for (int i = 0; i < 2; i++) {
+			boolean[] missing = new boolean[3];
+			String[] found = saver.findSaved(set, host, files, missing);
+			for (int j = 0; j < 3; j++) {
+				assertNull(found[j]);
+				assertFalse(missing[j]);
+			}
+		}
+		assertEquals(2, requests.size());
+
+		// The breaker is open: the host isn't asked anymore
+		assertNull(saver.lookup(set, host, files));
+		assertEquals(2, requests.size());
+	}
+
+	/** A client error fails the lookup without counting against the host. */
+	public void testClientErrorKeepsBreakerClosed() throws Exception {
+		status = 404;
+		AttachmentSaver saver = new AttachmentSaver(null);
+		for (int i = 0; i < 3; i++) assertNull(saver.lookup(set, host, files));
+		assertEquals(3, requests.size());
+	}
+
+	/** The matched hosts take turns, while the default host stays the last resort. */
+	public void testBalanceKeepsDefaultHostLast() throws Exception {
+		LightAttachment.config.setProperty("ebigsend.balancing", "round-robin");
+		AttachmentSaver saver = new AttachmentSaver(null);
+		ArrayList<String> host = new ArrayList<String>(Arrays.asList("http://a/up", "http://b/up", "http://default/up"));
+
+		HashSet<String> first = new HashSet<String>();
+		for (int i = 0; i < 4; i++) {
+			ArrayList<String> ordered = saver.balance(host);
+			assertEquals(3, ordered.size());
+			assertEquals("http://default/up", ordered.get(2));
+			first.add(ordered.get(0));
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("http://a/up", "http://b/up")), first);
+
+		// A single matched host has nothing to share
+		host.remove(1);
+		assertEquals(host, saver.balance(host));
+	}
+
+	/** A chunk stored by e-BigSend whose acknowledgement is lost is not sent again: the upload goes on from the
+	 * offset e-BigSend holds. */
+	public void testChunkedUploadResumesAfterDroppedConnection() throws Exception {
+		File f = attachment(10000);
+		dropAfter = 2;
+		String link = new AttachmentSaver(null).uploadChunks(host.replace("/up", "/chunks"), "CRC", f, "file.bin", set, 1);
+
+		assertEquals("http://dl/CRC-10000", link);
+		assertTrue(Arrays.equals(read(f), stored.toByteArray()));
+		assertEquals(10000, received);
+	}
+
+	/** An upload already started on e-BigSend only sends the bytes it doesn't hold. */
+	public void testChunkedUploadResumesPreviousUpload() throws Exception {
+		File f = attachment(10000);
+		stored.write(read(f), 0, 4000);
+		String link = new AttachmentSaver(null).uploadChunks(host.replace("/up", "/chunks"), "CRC", f, "file.bin", set, 1);
+
+		assertEquals("http://dl/CRC-10000", link);
+		assertTrue(Arrays.equals(read(f), stored.toByteArray()));
+		assertEquals(6000, received);
+	}
+
+	/** Save the attachments of <code>set</code> with the asynchronous client, looking each one up on its own.
+	 * @return the finished request */
+	private AttachmentSaver.SaveByHostRequest saveAsync() throws Exception {
+		LightAttachment.config.setProperty("ebigsend.async", "true");
+		LightAttachment.config.setProperty("ebigsend.batch-lookup", "false");
+		final ArrayBlockingQueue<AttachmentSaver.SaveByHostRequest> finished =
+			new ArrayBlockingQueue<AttachmentSaver.SaveByHostRequest>(1);
+		AttachmentSaver saver = new AttachmentSaver(null) {
+			@Override
+			void finish(SaveByHostRequest request) {
+				finished.add(request);
+			}
+		};
+		try {
+			saver.saveByHost(set, new ArrayList<String>(Arrays.asList(host)));
+			AttachmentSaver.SaveByHostRequest request = finished.poll(10, TimeUnit.SECONDS);
+			assertNotNull(request);
+			return request;
+		} finally {
+			saver.shutdown();
+		}
+	}
+
+	/** The asynchronous uploads find the attachments already saved without sending them. */
+	public void testAsyncHit() throws Exception {
+		for (int i = 0; i < 3; i++) saved.put(crc(i), "http://dl/file" + i);
+		AttachmentSaver.SaveByHostRequest request = saveAsync();
+
+		assertFalse(request.isFailed());
+		for (int i = 0; i < 3; i++) assertEquals("http://dl/file" + i, request.getLinks()[i]);
+		assertEquals(3, requests.size());
+		assertEquals(0, uploads.size());
+	}
+
+	/** The asynchronous uploads send the attachments not saved yet, with the file names of the synchronous uploads. */
+	public void testAsyncMiss() throws Exception {
+		saved.put(crc(1), "http://dl/file1");
+		AttachmentSaver.SaveByHostRequest request = saveAsync();
+
+		assertFalse(request.isFailed());
+		String[] names = { new File(files.get(0)).getName(), new File(files.get(2)).getName() };
+		assertEquals("http://dl/" + names[0], request.getLinks()[0]);
+		assertEquals("http://dl/file1", request.getLinks()[1]);
+		assertEquals("http://dl/" + names[1], request.getLinks()[2]);
+		assertEquals(2, uploads.size());
+		assertTrue(uploads.containsAll(Arrays.asList(names)));
+	}
+
+	/** An asynchronous upload answered with a server error is tried again after a wait. */
+	public void testAsyncFailureIsRetried() throws Exception {
+		failUploads.set(1);
+		AttachmentSaver.SaveByHostRequest request = saveAsync();
+
+		assertFalse(request.isFailed());
+		for (int i = 0; i < 3; i++) assertEquals("http://dl/" + new File(files.get(i)).getName(), request.getLinks()[i]);
+		assertEquals(4, uploads.size());
+		// The attachment which failed is looked up again before it is sent again
+		assertEquals(4, requests.size());
+	}
+
+}
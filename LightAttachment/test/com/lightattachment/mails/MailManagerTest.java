@@ -0,0 +1,244 @@
+package com.lightattachment.mails;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+/**
+ * Test the handling of the mails refused by Postfix, against a stub Postfix <code>smtpd</code>: a temporary refusal is
+ * sent again, and a permanent refusal is cleaned from the spool.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class MailManagerTest extends TestCase {
+
+	/** The stub Postfix <code>smtpd</code>. */
+	private ServerSocket server;
+
+	/** The reply of the stub to the messages it refuses at the end of <code>DATA</code>. */
+	private volatile String refusal;
+
+	/** Number of messages the stub still refuses. */
+	private AtomicInteger refuse;
+
+	/** Number of messages refused by the stub. */
+	private AtomicInteger refused;
+
+	/** Number of messages accepted by the stub. */
+	private AtomicInteger accepted;
+
+	/** The spool directory. */
+	private File spool;
+
+	/** The journal file. */
+	private File journal;
+
+	@Override
+	protected void setUp() throws Exception {
+		spool = File.createTempFile("spool", "");
+		spool.delete();
+		spool.mkdirs();
+		journal = new File(spool, "mails.journal");
+
+		refuse = new AtomicInteger();
+		refused = new AtomicInteger();
+		accepted = new AtomicInteger();
+		server = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+		Thread acceptor = new Thread("StubSmtpd") {
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = server.accept();
+						new Thread("StubSmtpdSession") {
+							public void run() {
+								try {
+									converse(socket);
+								} catch (IOException e) {
+									// The client dropped the connection
+								}
+							}
+						}.start();
+					}
+				} catch (IOException e) {
+					// Closed by tearDown
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		LightAttachment.config = new XMLConfiguration("config/lightattachment.xml");
+		LightAttachment.config.setProperty("postfix.out-address[@host]", "localhost");
+		LightAttachment.config.setProperty("postfix.out-address[@port]", String.valueOf(server.getLocalPort()));
+		LightAttachment.config.setProperty("postfix.out-address[@warm]", "0");
+		LightAttachment.config.setProperty("postfix.out-address[@retry-wait]", "50");
+		LightAttachment.config.setProperty("directory.temp", spool.getPath() + File.separator);
+		LightAttachment.config.setProperty("directory.journal", "true");
+		LightAttachment.config.setProperty("directory.journal[@file]", journal.getPath());
+		LightAttachment.config.setProperty("ebigsend.link-cache[@size]", "0");
+		LightAttachment.config.setProperty("report.smtp", "localhost");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		File[] files = spool.listFiles();
+		if (files != null) for (File f : files) f.delete();
+		spool.delete();
+	}
+
+	/** Talk to a client as Postfix <code>smtpd</code> would.
+	 * @param socket the client connection */
+	private void converse(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+		OutputStream out = socket.getOutputStream();
+		out.write("220 stub ESMTP\r\n".getBytes("ISO-8859-1"));
+		String line;
+		while ((line = in.readLine()) != null) {
+			String command = line.toUpperCase();
+			String reply;
+			if (command.startsWith("EHLO") || command.startsWith("HELO")) reply = "250 stub";
+			else if (command.startsWith("DATA")) {
+				out.write("354 End data with <CR><LF>.<CR><LF>\r\n".getBytes("ISO-8859-1"));
+				while ((line = in.readLine()) != null && !line.equals(".")) {}
+				if (refuse.getAndDecrement() > 0) {
+					refused.incrementAndGet();
+					reply = refusal;
+				} else {
+					accepted.incrementAndGet();
+					reply = "250 2.0.0 Queued";
+				}
+			} else if (command.startsWith("QUIT")) {
+				out.write("221 Bye\r\n".getBytes("ISO-8859-1"));
+				break;
+			} else reply = "250 OK";
+			out.write((reply + "\r\n").getBytes("ISO-8859-1"));
+			out.flush();
+		}
+		socket.close();
+	}
+
+	/** Wait until a number of messages got their final reply and the <code>MailManager</code> has nothing left to send.
+	 * @param count the messages refused or accepted
+	 * @param expected the number expected
+	 * @param manager the <code>MailManager</code> */
+	private static void await(AtomicInteger count, int expected, MailManager manager) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((count.get() < expected || manager.getInjectDepth() > 0) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(expected, count.get());
+		assertEquals(0, manager.getInjectDepth());
+	}
+
+	/** Spool a mail and forward it.
+	 * @param manager the <code>MailManager</code>
+	 * @param message the spool file of the mail
+	 * @return the forwarded <code>MailSet</code> */
+	private static MailSet forward(MailManager manager, File message) throws Exception {
+		FileOutputStream out = new FileOutputStream(message);
+		out.write("From: a@x.org\r\nTo: b@y.org\r\nSubject: test\r\n\r\nbody\r\n".getBytes("ISO-8859-1"));
+		out.close();
+
+		manager.getJournal().received(message.getPath(), "a@x.org", "b@y.org");
+		MailSet set = new MailSet(null, "a@x.org", "b@y.org", false);
+		set.getOriginalMessages().add(message.getPath());
+		manager.getJournal().parsed(set);
+		manager.pushToInjectFromFile(set);
+		return set;
+	}
+
+	/** Wait until a file is removed from the spool.
+	 * @param file the file */
+	private static void awaitDeleted(File file) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (file.exists() && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		assertFalse(file.exists());
+	}
+
+	/** Assert that the journal holds no mail to resume. */
+	private void assertJournalEmpty() throws Exception {
+		Journal reopened = new Journal(journal.getPath(), Journal.DEFAULT_MAX_SIZE, true);
+		assertEquals(0, reopened.open().size());
+		reopened.close();
+	}
+
+	/** A forward deferred by Postfix is sent again after a delay, by the same process. */
+	public void testDeferredForwardIsRetried() throws Exception {
+		refusal = "451 4.3.0 Try again later";
+		refuse.set(2);
+		MailManager manager = new MailManager();
+		File message = new File(spool, "forward");
+		MailSet set = forward(manager, message);
+		await(accepted, 1, manager);
+		manager.shutdown();
+
+		assertTrue(set.isSent());
+		assertEquals(2, refused.get());
+		awaitDeleted(message);
+		assertJournalEmpty();
+	}
+
+	/** A forward deferred by Postfix more than <code>retry</code> times is kept in the spool and forwarded again on
+	 * the next start. */
+	public void testDeferredForwardIsResumed() throws Exception {
+		LightAttachment.config.setProperty("postfix.out-address[@retry]", "1");
+		refusal = "451 4.3.0 Try again later";
+		refuse.set(2);
+		MailManager manager = new MailManager();
+		File message = new File(spool, "forward");
+		MailSet set = forward(manager, message);
+		await(refused, 2, manager);
+		manager.shutdown();
+
+		assertFalse(set.isSent());
+		assertTrue(message.exists());
+
+		// Restart: the journal still holds the mail
+		manager = new MailManager();
+		manager.recover(null);
+		await(accepted, 1, manager);
+		manager.shutdown();
+
+		assertEquals(2, refused.get());
+		assertFalse(message.exists());
+		assertJournalEmpty();
+	}
+
+	/** A forward rejected by Postfix is given up: it is cleaned from the spool and the journal, so that it is not
+	 * rejected again on every start. */
+	public void testRejectedForwardIsCleaned() throws Exception {
+		refusal = "554 5.7.1 Refused";
+		refuse.set(1);
+		MailManager manager = new MailManager();
+		File message = new File(spool, "forward");
+		forward(manager, message);
+		await(refused, 1, manager);
+		awaitDeleted(message);
+		manager.shutdown();
+
+		assertJournalEmpty();
+
+		// Restart: nothing is resumed
+		manager = new MailManager();
+		manager.recover(null);
+		manager.shutdown();
+		assertEquals(1, refused.get());
+		assertEquals(0, accepted.get());
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.lightattachment.smtp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the line end normalization, the dot-stuffing and the termination of the data written to Postfix.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class SmtpDataOutputStreamTest extends TestCase {
+
+	/** Write the data, each string by its own <code>write(byte[])</code> call, then close the stream.
+	 * @param pieces the data
+	 * @return the bytes sent to the connection */
+	private static String data(String... pieces) throws IOException {
+		ByteArrayOutputStream connection = new ByteArrayOutputStream();
+		SmtpDataOutputStream out = new SmtpDataOutputStream(connection);
+		for (String piece : pieces) out.write(piece.getBytes("ISO-8859-1"));
+		out.close();
+		return connection.toString("ISO-8859-1");
+	}
+
+	/** LF and CRLF are both sent as CRLF. */
+	public void testLineEnds() throws Exception {
+		assertEquals("a\r\nb\r\nc\r\n.\r\n", data("a\nb\r\nc\n"));
+		// A CR not followed by LF is sent as it is
+		assertEquals("a\rb\r\n.\r\n", data("a\rb\n"));
+	}
+
+	/** A CRLF split between two writes is not doubled. */
+	public void testLineEndAcrossWrites() throws Exception {
+		assertEquals("a\r\nb\r\n.\r\n", data("a\r", "\nb\r", "\n"));
+	}
+
+	/** A dot beginning a line is stuffed, and only there. */
+	public void testDotStuffing() throws Exception {
+		assertEquals("..a\r\nb.c\r\n...\r\n.\r\n", data(".a\nb.c\n..\n"));
+	}
+
+	/** A dot beginning a line is stuffed when the line end and the dot come in different writes. */
+	public void testDotStuffingAcrossWrites() throws Exception {
+		assertEquals("a\r\n..b\r\n..\r\n.\r\n", data("a\n", ".b\r", "\n.", "\r\n"));
+		assertEquals("a\r\n..\r\n.\r\n", data("a\r\n", ".", "\r", "\n"));
+	}
+
+	/** The data written by single bytes is sent like the data written by runs. */
+	public void testSingleBytes() throws Exception {
+		ByteArrayOutputStream connection = new ByteArrayOutputStream();
+		SmtpDataOutputStream out = new SmtpDataOutputStream(connection);
+		byte[] b = ".a\nb\r\n.\n".getBytes("ISO-8859-1");
+		for (byte c : b) out.write(c);
+		out.close();
+		assertEquals("..a\r\nb\r\n..\r\n.\r\n", connection.toString("ISO-8859-1"));
+	}
+
+	/** <code>close</code> ends the last line if needed before the final dot. */
+	public void testCloseAfterLine() throws Exception {
+		assertEquals("a\r\n.\r\n", data("a\r\n"));
+		assertEquals("a\r\n.\r\n", data("a\n"));
+		assertEquals("a\r\n.\r\n", data("a\r"));
+		assertEquals("a\r\n.\r\n", data("a"));
+		assertEquals(".\r\n", data());
+	}
+
+	/** <code>close</code> terminates the data once, and the connection is left open. */
+	public void testCloseTwice() throws Exception {
+		final boolean[] closed = new boolean[1];
+		ByteArrayOutputStream connection = new ByteArrayOutputStream() {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		SmtpDataOutputStream out = new SmtpDataOutputStream(connection);
+		out.write("a".getBytes("ISO-8859-1"));
+		out.close();
+		out.close();
+		assertEquals("a\r\n.\r\n", connection.toString("ISO-8859-1"));
+		assertFalse(closed[0]);
+	}
+
+}
@@ -0,0 +1,101 @@
+package com.lightattachment.smtp;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import com.lightattachment.mails.LightAttachment;
+
+/**
+ * Test the parsing of the SMTP commands and the state transitions of their responses.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class SmtpRequestTest extends TestCase {
+
+	@Override
+	protected void setUp() throws Exception {
+		LightAttachment.config = new XMLConfiguration("config/lightattachment.xml");
+		LightAttachment.config.setProperty("message.message-size.max-size", "1000");
+	}
+
+	/** The <code>SIZE</code> parameter of <code>MAIL FROM</code> is parsed apart from the reverse path. */
+	public void testMailSize() {
+		SmtpRequest request = SmtpRequest.createRequest("MAIL FROM:<a@x.org> SIZE=100 BODY=8BITMIME", SmtpState.MAIL);
+		assertEquals(SmtpActionType.MAIL, request.getAction());
+		assertEquals(100, request.getSize());
+
+		SmtpResponse response = request.execute();
+		assertEquals(250, response.getCode());
+		assertEquals(SmtpState.RCPT, response.getNextState());
+	}
+
+	/** A declared size above <code>max-size</code> is answered 552, and the state is unchanged. */
+	public void testMailSizeExceeded() {
+		SmtpRequest request = SmtpRequest.createRequest("MAIL FROM:<a@x.org> size=1001", SmtpState.MAIL);
+		assertEquals(1001, request.getSize());
+
+		SmtpResponse response = request.execute();
+		assertEquals(552, response.getCode());
+		assertEquals(SmtpState.MAIL, response.getNextState());
+	}
+
+	/** A <code>SIZE</code> without a valid value is ignored. */
+	public void testMailSizeWithoutValue() {
+		String[] commands = { "MAIL FROM:<a@x.org> SIZE=", "MAIL FROM:<a@x.org> SIZE=big", "MAIL FROM:<a@x.org>" };
+		for (String command : commands) {
+			SmtpRequest request = SmtpRequest.createRequest(command, SmtpState.MAIL);
+			assertEquals(command, -1, request.getSize());
+
+			SmtpResponse response = request.execute();
+			assertEquals(command, 250, response.getCode());
+			assertEquals(SmtpState.RCPT, response.getNextState());
+		}
+	}
+
+	/** <code>BDAT n LAST</code> ends the message after its chunk. */
+	public void testBdatLast() {
+		SmtpRequest request = SmtpRequest.createRequest("BDAT 10 LAST", SmtpState.RCPT);
+		assertEquals(SmtpActionType.BDAT_LAST, request.getAction());
+		assertEquals(10, request.getSize());
+
+		SmtpResponse response = request.execute();
+		assertEquals(250, response.getCode());
+		assertEquals(SmtpState.QUIT, response.getNextState());
+	}
+
+	/** <code>BDAT n</code> waits for the next chunk. */
+	public void testBdat() {
+		SmtpRequest request = SmtpRequest.createRequest("bdat 10", SmtpState.BDAT);
+		assertEquals(SmtpActionType.BDAT, request.getAction());
+		assertEquals(10, request.getSize());
+
+		SmtpResponse response = request.execute();
+		assertEquals(250, response.getCode());
+		assertEquals(SmtpState.BDAT, response.getNextState());
+	}
+
+	/** <code>BDAT</code> without a size is a syntax error, and the state is unchanged. */
+	public void testBdatWithoutSize() {
+		String[] commands = { "BDAT", "BDAT LAST", "BDAT ten" };
+		for (String command : commands) {
+			SmtpRequest request = SmtpRequest.createRequest(command, SmtpState.RCPT);
+			assertEquals(-1, request.getSize());
+
+			SmtpResponse response = request.execute();
+			assertEquals(command, 501, response.getCode());
+			assertEquals(SmtpState.RCPT, response.getNextState());
+		}
+	}
+
+	/** <code>BDAT</code> before <code>MAIL FROM</code> and <code>RCPT TO</code> is out of sequence. */
+	public void testBdatOutOfTransaction() {
+		SmtpResponse response = SmtpRequest.createRequest("BDAT 10", SmtpState.MAIL).execute();
+		assertEquals(503, response.getCode());
+		assertEquals(SmtpState.MAIL, response.getNextState());
+	}
+
+}
@@ -0,0 +1,209 @@
+package com.lightattachment.smtp.streamed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.configuration.XMLConfiguration;
+
+import com.lightattachment.mails.LightAttachment;
+
+/**
+ * Test the SMTP dialog of a session, the received bytes being split across several <code>receive</code> calls.
+ *
+ * @author Benoit Giannangeli
+ * @version 0.1a
+ *
+ */
+
+public class StreamedSmtpSessionTest extends TestCase {
+
+	/** The spool directory. */
+	private File spool;
+
+	/** Take the messages received by the session. */
+	private StreamedMailParser parser;
+
+	/** The messages received by the session. */
+	private ArrayList<StreamedSmtpMessage> messages;
+
+	/** The session. */
+	private StreamedSmtpSession session;
+
+	@Override
+	protected void setUp() throws Exception {
+		spool = File.createTempFile("spool", "");
+		spool.delete();
+		spool.mkdirs();
+
+		LightAttachment.config = new XMLConfiguration("config/lightattachment.xml");
+		LightAttachment.config.setProperty("directory.temp", spool.getPath() + File.separator);
+		LightAttachment.config.setProperty("directory.journal", "false");
+		LightAttachment.config.clearTree("message.admission");
+		LightAttachment.config.setProperty("report.smtp", "localhost");
+
+		messages = new ArrayList<StreamedSmtpMessage>();
+		parser = new StreamedMailParser(null) {
+			@Override
+			public boolean received(StreamedSmtpMessage message) {
+				return true;
+			}
+			@Override
+			public synchronized boolean push(StreamedSmtpMessage message) {
+				messages.add(message);
+				return true;
+			}
+		};
+		session = new StreamedSmtpSession(parser, 0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		session.open(out);
+		assertTrue(out.toString("ISO-8859-1").startsWith("220 "));
+		assertTrue(send("EHLO test\r\n").contains("CHUNKING"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		parser.shutdown();
+		File[] files = spool.listFiles();
+		if (files != null) for (File f : files) f.delete();
+		spool.delete();
+	}
+
+	/** Hand bytes to the session, each string in its own <code>receive</code> call.
+	 * @param pieces the received bytes
+	 * @return the replies of the session */
+	private String send(String... pieces) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String piece : pieces) {
+			byte[] b = piece.getBytes("ISO-8859-1");
+			session.receive(b, 0, b.length, out);
+		}
+		return out.toString("ISO-8859-1");
+	}
+
+	/** Start a mail transaction. */
+	private void envelope() throws IOException {
+		assertEquals("250 OK\r\n", send("MAIL FROM:<a@x.org>\r\n"));
+		assertEquals("250 OK\r\n", send("RCPT TO:<b@y.org>\r\n"));
+	}
+
+	/** Return the content of the only message received.
+	 * @return the spool file content */
+	private String stored() throws IOException {
+		assertEquals(1, messages.size());
+		FileInputStream in = new FileInputStream(messages.get(0).getFilename());
+		try {
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) >= 0) b.write(buffer, 0, read);
+			return b.toString("ISO-8859-1");
+		} finally {
+			in.close();
+		}
+	}
+
+	/** A declared size the spool cannot hold is answered 452, and the transaction can start again. */
+	public void testMailSizeOverSpool() throws Exception {
+		LightAttachment.config.setProperty("message.message-size.max-size", String.valueOf(Long.MAX_VALUE));
+		assertTrue(send("MAIL FROM:<a@x.org> SIZE=" + (Long.MAX_VALUE / 2) + "\r\n").startsWith("452 "));
+		assertEquals("250 OK\r\n", send("MAIL FROM:<a@x.org> SIZE=100\r\n"));
+		assertEquals("250 OK\r\n", send("RCPT TO:<b@y.org>\r\n"));
+	}
+
+	/** Start a mail transaction and the <code>DATA</code> of its message, up to the first line of the body. */
+	private void data() throws IOException {
+		envelope();
+		assertTrue(send("DATA\r\n").startsWith("354 "));
+		assertEquals("", send("Subject: t\r\n\r\n"));
+	}
+
+	/** A dot-stuffed line split after its dots is unstuffed once. */
+	public void testBodyDotsSplitFromLine() throws Exception {
+		data();
+		assertEquals("", send("..", "x\r\n"));
+		assertEquals("", send(".", ".y\r\n"));
+		assertEquals("250 OK\r\n", send(".\r\n"));
+		assertEquals("Subject: t\n\n.x\n.y\n", stored());
+	}
+
+	/** The end of data is found when its dot, CR and LF come in three <code>receive</code> calls. */
+	public void testBodyEndSplitByte() throws Exception {
+		data();
+		assertEquals("", send("body\r\n"));
+		assertEquals("", send(".", "\r"));
+		assertEquals(0, messages.size());
+		assertEquals("250 OK\r\n", send("\n"));
+		assertEquals("Subject: t\n\nbody\n", stored());
+	}
+
+	/** A CR followed by a CRLF in the next buffer is kept, and the CRLF is written as LF. */
+	public void testBodyCrBeforeCrlf() throws Exception {
+		data();
+		assertEquals("", send("a\r", "\r\n"));
+		assertEquals("250 OK\r\n", send(".\r\n"));
+		assertEquals("Subject: t\n\na\r\n", stored());
+	}
+
+	/** A body ended by a bare LF end of data, as some clients send it. */
+	public void testBodyBareLfEnd() throws Exception {
+		data();
+		assertEquals("250 OK\r\n", send("a\nb\n", ".\n"));
+		assertEquals("Subject: t\n\na\nb\n", stored());
+	}
+
+	/** A command pipelined after the end of data, in the same buffer, is executed. */
+	public void testBodyPipelinedCommand() throws Exception {
+		data();
+		assertEquals("250 OK\r\n250 OK\r\n", send("body\r\n.\r\nMAIL FROM:<c@x.org>\r\n"));
+		assertEquals("Subject: t\n\nbody\n", stored());
+		assertEquals("250 OK\r\n", send("RCPT TO:<d@y.org>\r\n"));
+	}
+
+	/** A chunk received by several <code>receive</code> calls is answered once complete, and stored with LF. */
+	public void testBdatChunkSplitAcrossReceive() throws Exception {
+		envelope();
+		assertEquals("", send("BDAT 20 LAST\r\nSubject: t\r", "\n\r\nbo"));
+		assertEquals("250 OK\r\n", send("dy\r\n"));
+		assertEquals("Subject: t\n\nbody\n", stored());
+	}
+
+	/** A header line split between two chunks is stored as a single line. */
+	public void testBdatHeaderAcrossChunks() throws Exception {
+		envelope();
+		assertEquals("250 11 octets received\r\n", send("BDAT 11\r\nSubject: te"));
+		assertEquals("250 OK\r\n", send("BDAT 19 LAST\r\nst\r\n\r\n..body\r\na\rb\r\n"));
+		// The chunks are not dot-stuffed, and a lone CR is kept
+		assertEquals("Subject: test\n\n..body\na\rb\n", stored());
+	}
+
+	/** <code>BDAT 0 LAST</code> ends the message, and a CRLF split between two chunks is stored as LF. */
+	public void testBdatZeroLast() throws Exception {
+		envelope();
+		assertEquals("250 19 octets received\r\n", send("BDAT 19\r\nSubject: t\r\n\r\nbody\r"));
+		assertEquals("250 1 octets received\r\n", send("BDAT 1\r\n\n"));
+		assertEquals(0, messages.size());
+		assertEquals("250 OK\r\n", send("BDAT 0 LAST\r\n"));
+		assertEquals("Subject: t\n\nbody\n", stored());
+	}
+
+	/** <code>BDAT</code> without a size is refused, and the transaction goes on. */
+	public void testBdatWithoutSize() throws Exception {
+		envelope();
+		assertTrue(send("BDAT LAST\r\n").startsWith("501 "));
+		assertEquals("250 OK\r\n", send("BDAT 14 LAST\r\nSubject: t\r\n\r\n"));
+		assertEquals("Subject: t\n\n", stored());
+	}
+
+	/** <code>BDAT</code> out of a mail transaction is refused, and the transaction can start. */
+	public void testBdatOutOfTransaction() throws Exception {
+		assertTrue(send("BDAT 0 LAST\r\n").startsWith("503 "));
+		assertEquals(0, messages.size());
+		envelope();
+	}
+
+}